@@ -0,0 +1,123 @@
+package benchmarks;
+
+/**
+ * A log-linear histogram of latencies in microseconds with a relative error below 1%,
+ * in the spirit of HdrHistogram.
+ * <p>
+ * Values below 128 get a bucket each; above, every power of two is split into 64 linear
+ * sub-buckets. Recording is an index computation and an increment, so a histogram per
+ * connection can record without allocation or synchronization; the histograms of all
+ * connections are {@link #add added} up once the run is over.
+ */
+final class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 6;
+    // Up to 2^38 µs (more than three days).
+    private static final int MAX_SHIFT = 32;
+
+    private final long[] counts = new long[LINEAR_BUCKETS + MAX_SHIFT * SUB_BUCKETS];
+    private long totalCount;
+    private long maxValue;
+    private double sum;
+
+    void record(final long valueMicros) {
+        recordCount(Math.max(valueMicros, 0), 1);
+    }
+
+    void add(final LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        maxValue = Math.max(maxValue, other.maxValue);
+        sum += other.sum;
+    }
+
+    /**
+     * Corrects for coordinated omission of a closed-loop measurement, as HdrHistogram's
+     * {@code copyCorrectedForCoordinatedOmission} does: a client that waited {@code v} for a
+     * response did not send the requests it would have sent every {@code expectedIntervalMicros}
+     * in the meantime, so they are added with the latencies they would have seen,
+     * {@code v - interval}, {@code v - 2 * interval}, ... down to the interval.
+     *
+     * @return a corrected copy
+     */
+    LatencyHistogram correctedForCoordinatedOmission(final long expectedIntervalMicros) {
+        final LatencyHistogram corrected = new LatencyHistogram();
+        corrected.add(this);
+        if (expectedIntervalMicros <= 0) {
+            return corrected;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                continue;
+            }
+            final long value = valueAt(i);
+            for (long missing = value - expectedIntervalMicros; missing >= expectedIntervalMicros; missing -= expectedIntervalMicros) {
+                corrected.recordCount(missing, counts[i]);
+            }
+        }
+        return corrected;
+    }
+
+    long getTotalCount() {
+        return totalCount;
+    }
+
+    long getMaxValue() {
+        return maxValue;
+    }
+
+    double getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    /**
+     * @param percentile e.g. {@code 99.9}
+     * @return the value below or at which {@code percentile} percent of the recorded values are
+     */
+    long getValueAtPercentile(final double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= rank) {
+                return Math.min(valueAt(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    private void recordCount(final long value, final long count) {
+        counts[indexOf(value)] += count;
+        totalCount += count;
+        maxValue = Math.max(maxValue, value);
+        sum += (double) value * count;
+    }
+
+    private static int indexOf(final long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        // value >> shift lies in [64, 128).
+        final int shift = Math.min(63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS, MAX_SHIFT);
+        final long subBucket = Math.min(value >> shift, 2 * SUB_BUCKETS - 1) - SUB_BUCKETS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) subBucket;
+    }
+
+    /**
+     * @return the largest value that maps to the bucket, so percentiles are never understated
+     */
+    private static long valueAt(final int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        final int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        final long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,435 @@
+package benchmarks;
+
+import common.Constants;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end HTTP load generator for a locally running server, to compare the execution
+ * modes of {@code server.Main} (keep-alive on/off, thread pool, virtual threads, NIO).
+ * <p>
+ * Every connection is driven by a thread of its own with a minimal blocking HTTP/1.1 client
+ * and records into a histogram of its own. Two modes are supported:
+ * <ul>
+ *   <li><b>closed</b> loop: each connection sends its next request as soon as the previous
+ *   response arrived. Throughput is whatever the server sustains, but a stalled server also
+ *   stalls the load, so the recorded latencies omit exactly the requests that would have
+ *   seen the stall (coordinated omission). The corrected percentiles back-fill them with the
+ *   median latency as the expected interval between requests.</li>
+ *   <li><b>rate</b>: requests are scheduled at a constant arrival rate over all connections
+ *   and latency is measured from the time a request was <em>scheduled</em>, not sent. A
+ *   request delayed by a slow predecessor is thus charged its waiting time, which corrects
+ *   for coordinated omission; the latency from the actual send is reported as service time.</li>
+ * </ul>
+ * GET requests are spread uniformly over the files below the web root; PUT requests write the
+ * current content of a device state back, so a run leaves the states as they were.
+ * <p>
+ * Usage: {@code java -cp benchmarks/target/benchmarks.jar benchmarks.LoadGenerator [--option=value ...]},
+ * see {@link Options} for the options and their defaults.
+ */
+public final class LoadGenerator {
+    private static final int MAX_RESPONSE_HEAD_BYTES = 16 * 1024;
+    private static final int SOCKET_TIMEOUT_MILLI_SECONDS = 30_000;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private LoadGenerator() {
+    }
+
+    /**
+     * Command line options, given as {@code --name=value}.
+     */
+    static final class Options {
+        String host = "localhost";
+        int port = 8080;
+        // "closed" or "rate"
+        String mode = "closed";
+        int connections = 16;
+        // Requests per second over all connections, rate mode only.
+        double rate = 1000;
+        long warmupSeconds = 5;
+        long durationSeconds = 30;
+        boolean keepAlive = true;
+        // Share of PUT requests, between 0 and 1.
+        double putRatio = 0.1;
+        Path webRoot = Paths.get(Constants.WEB_ROOT);
+
+        static Options parse(final String[] args) {
+            final Options options = new Options();
+            for (String arg : args) {
+                final int separator = arg.indexOf('=');
+                if (!arg.startsWith("--") || separator < 0) {
+                    throw new IllegalArgumentException("Expected --name=value, got: " + arg);
+                }
+                final String name = arg.substring(2, separator);
+                final String value = arg.substring(separator + 1);
+                switch (name) {
+                    case "host" -> options.host = value;
+                    case "port" -> options.port = Integer.parseInt(value);
+                    case "mode" -> options.mode = value;
+                    case "connections" -> options.connections = Integer.parseInt(value);
+                    case "rate" -> options.rate = Double.parseDouble(value);
+                    case "warmup" -> options.warmupSeconds = Long.parseLong(value);
+                    case "duration" -> options.durationSeconds = Long.parseLong(value);
+                    case "keep-alive" -> options.keepAlive = Boolean.parseBoolean(value);
+                    case "put-ratio" -> options.putRatio = Double.parseDouble(value);
+                    case "web-root" -> options.webRoot = Paths.get(value);
+                    default -> throw new IllegalArgumentException("Unknown option: " + name);
+                }
+            }
+            if (!options.mode.equals("closed") && !options.mode.equals("rate")) {
+                throw new IllegalArgumentException("mode must be closed or rate: " + options.mode);
+            }
+            if (options.connections <= 0 || options.rate <= 0 || options.durationSeconds <= 0 || options.warmupSeconds < 0
+                    || options.putRatio < 0 || options.putRatio > 1) {
+                throw new IllegalArgumentException("connections, rate and duration must be positive, warmup not negative, put-ratio in [0, 1]");
+            }
+            return options;
+        }
+
+        boolean isRateMode() {
+            return mode.equals("rate");
+        }
+    }
+
+    /**
+     * The requests to choose from, encoded once.
+     */
+    private static final class Workload {
+        private final List<byte[]> gets = new ArrayList<>();
+        private final List<byte[]> puts = new ArrayList<>();
+        private final double putRatio;
+
+        private Workload(final Options options) throws IOException {
+            final String connection = options.keepAlive ? "keep-alive" : "close";
+            final Path stateDirectory = options.webRoot.resolve(Constants.DEVICE_STATE_DIRECTORY);
+            try (Stream<Path> files = Files.walk(options.webRoot)) {
+                for (Path file : files.filter(Files::isRegularFile).sorted().toList()) {
+                    final String path = "/" + options.webRoot.relativize(file).toString().replace('\\', '/');
+                    gets.add(encode("GET", path, options.host, connection, null));
+                    if (file.getParent().equals(stateDirectory) && path.endsWith(".json")) {
+                        puts.add(encode("PUT", path, options.host, connection, Files.readAllBytes(file)));
+                    }
+                }
+            }
+            if (gets.isEmpty()) {
+                throw new IOException("No files below " + options.webRoot.toAbsolutePath());
+            }
+            this.putRatio = puts.isEmpty() ? 0 : options.putRatio;
+        }
+
+        private byte[] next(final ThreadLocalRandom random) {
+            final List<byte[]> requests = random.nextDouble() < putRatio ? puts : gets;
+            return requests.get(random.nextInt(requests.size()));
+        }
+
+        private static byte[] encode(final String method, final String path, final String host, final String connection, final byte[] body) {
+            final StringBuilder head = new StringBuilder()
+                    .append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(host).append("\r\n")
+                    .append("Connection: ").append(connection).append("\r\n")
+                    .append("Accept-Encoding: gzip, deflate\r\n");
+            if (body != null) {
+                head.append("Content-Type: application/json\r\n").append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            final byte[] headBytes = head.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII);
+            if (body == null) {
+                return headBytes;
+            }
+            final byte[] request = new byte[headBytes.length + body.length];
+            System.arraycopy(headBytes, 0, request, 0, headBytes.length);
+            System.arraycopy(body, 0, request, headBytes.length, body.length);
+            return request;
+        }
+    }
+
+    /**
+     * Drives one connection and records its latencies.
+     */
+    private static final class Client implements Runnable {
+        private final Options options;
+        private final Workload workload;
+        private final long measureFromNanos;
+        private final long endNanos;
+        // Rate mode: the time the first request is due and the interval between requests of this connection.
+        private final long firstDueNanos;
+        private final long intervalNanos;
+
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram serviceTime = new LatencyHistogram();
+        private final Map<Integer, Long> statusCounts = new HashMap<>();
+        private long requests;
+        private long errors;
+        private long connects;
+
+        private final byte[] responseHead = new byte[MAX_RESPONSE_HEAD_BYTES];
+        private final byte[] discard = new byte[16 * 1024];
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private boolean serverClosing;
+
+        private Client(final Options options, final Workload workload, final long measureFromNanos, final long endNanos,
+                       final long firstDueNanos, final long intervalNanos) {
+            this.options = options;
+            this.workload = workload;
+            this.measureFromNanos = measureFromNanos;
+            this.endNanos = endNanos;
+            this.firstDueNanos = firstDueNanos;
+            this.intervalNanos = intervalNanos;
+        }
+
+        @Override
+        public void run() {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            long due = firstDueNanos;
+            try {
+                while (true) {
+                    if (options.isRateMode()) {
+                        if (due >= endNanos) {
+                            break;
+                        }
+                        waitUntil(due);
+                    } else if (System.nanoTime() >= endNanos) {
+                        break;
+                    }
+
+                    final long sent = System.nanoTime();
+                    final long scheduled = options.isRateMode() ? due : sent;
+                    final int status = exchange(workload.next(random));
+                    final long done = System.nanoTime();
+                    due += intervalNanos;
+
+                    if (scheduled < measureFromNanos) {
+                        continue;
+                    }
+                    if (status < 0) {
+                        errors++;
+                        continue;
+                    }
+                    requests++;
+                    statusCounts.merge(status, 1L, Long::sum);
+                    latency.record(TimeUnit.NANOSECONDS.toMicros(done - scheduled));
+                    serviceTime.record(TimeUnit.NANOSECONDS.toMicros(done - sent));
+                }
+            } finally {
+                closeConnection();
+            }
+        }
+
+        /**
+         * Sends the request and reads the response.
+         *
+         * @return the status code, or -1 if the exchange failed
+         */
+        private int exchange(final byte[] request) {
+            try {
+                if (socket == null) {
+                    openConnection();
+                }
+                out.write(request);
+                out.flush();
+                final int status = readResponse();
+                if (!options.keepAlive || serverClosing) {
+                    closeConnection();
+                }
+                return status;
+            } catch (IOException e) {
+                closeConnection();
+                return -1;
+            }
+        }
+
+        private void openConnection() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(SOCKET_TIMEOUT_MILLI_SECONDS);
+            socket.connect(new InetSocketAddress(options.host, options.port), SOCKET_TIMEOUT_MILLI_SECONDS);
+            in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+            out = socket.getOutputStream();
+            connects++;
+        }
+
+        private void closeConnection() {
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with it.
+            }
+            socket = null;
+        }
+
+        private int readResponse() throws IOException {
+            final int headLength = readHead();
+            final String head = new String(responseHead, 0, headLength, StandardCharsets.US_ASCII);
+            final String[] lines = head.split("\r\n");
+            if (lines.length == 0 || !lines[0].startsWith("HTTP/1.1 ") || lines[0].length() < 12) {
+                throw new IOException("Malformed status line: " + (lines.length == 0 ? "" : lines[0]));
+            }
+            final int status = Integer.parseInt(lines[0].substring(9, 12));
+            long contentLength = -1;
+            serverClosing = false;
+            for (int i = 1; i < lines.length; i++) {
+                final int colon = lines[i].indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                final String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                final String value = lines[i].substring(colon + 1).trim();
+                if (name.equals("content-length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equals("connection")) {
+                    serverClosing = value.equalsIgnoreCase("close");
+                }
+            }
+            if (status == 304 || status / 100 == 1 || status == 204) {
+                return status;
+            }
+            if (contentLength < 0) {
+                // Delimited by the end of the connection.
+                while (in.read(discard) >= 0) {
+                    // Skip.
+                }
+                serverClosing = true;
+                return status;
+            }
+            for (long remaining = contentLength; remaining > 0; ) {
+                final int read = in.read(discard, 0, (int) Math.min(discard.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Connection closed within the body");
+                }
+                remaining -= read;
+            }
+            return status;
+        }
+
+        /**
+         * @return the length of the head including the terminating empty line
+         */
+        private int readHead() throws IOException {
+            int length = 0;
+            while (length < 4 || responseHead[length - 4] != '\r' || responseHead[length - 3] != '\n'
+                    || responseHead[length - 2] != '\r' || responseHead[length - 1] != '\n') {
+                if (length == responseHead.length) {
+                    throw new IOException("Response head exceeds " + responseHead.length + " bytes");
+                }
+                final int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("Connection closed before the response head");
+                }
+                responseHead[length++] = (byte) b;
+            }
+            return length;
+        }
+
+        private static void waitUntil(final long deadlineNanos) {
+            long remaining;
+            while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final Options options = Options.parse(args);
+        final Workload workload = new Workload(options);
+
+        final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        final long measureFrom = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        final long end = measureFrom + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        // Rate mode: every connection sends at rate / connections, the connections staggered evenly.
+        final long intervalNanos = options.isRateMode() ? Math.round(options.connections * 1e9 / options.rate) : 0;
+
+        System.out.printf("Running %s against http://%s:%d for %ds (warm-up %ds): %d connections, keep-alive %s, %.0f%% PUT%s%n",
+                options.mode, options.host, options.port, options.durationSeconds, options.warmupSeconds, options.connections,
+                options.keepAlive ? "on" : "off", options.putRatio * 100, options.isRateMode() ? ", %.0f req/s".formatted(options.rate) : "");
+
+        final List<Client> clients = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < options.connections; i++) {
+            final Client client = new Client(options, workload, measureFrom, end, start + intervalNanos * i / options.connections, intervalNanos);
+            final Thread thread = new Thread(client, "load-generator-" + i);
+            thread.setDaemon(true);
+            clients.add(client);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsedNanos = Math.max(System.nanoTime(), end) - measureFrom;
+
+        report(options, clients, elapsedNanos);
+    }
+
+    private static void report(final Options options, final List<Client> clients, final long elapsedNanos) {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram serviceTime = new LatencyHistogram();
+        final Map<Integer, Long> statusCounts = new HashMap<>();
+        long requests = 0;
+        long errors = 0;
+        long connects = 0;
+        for (Client client : clients) {
+            latency.add(client.latency);
+            serviceTime.add(client.serviceTime);
+            client.statusCounts.forEach((status, count) -> statusCounts.merge(status, count, Long::sum));
+            requests += client.requests;
+            errors += client.errors;
+            connects += client.connects;
+        }
+
+        final double seconds = elapsedNanos / 1e9;
+        System.out.printf("Requests: %d in %.1fs, %.1f req/s; errors: %d; connections opened: %d; status codes: %s%n",
+                requests, seconds, requests / seconds, errors, connects, statusCounts);
+        if (options.isRateMode()) {
+            printLatency("Latency (from scheduled send, corrected)", latency);
+            printLatency("Service time (from actual send)", serviceTime);
+            final double target = options.rate * seconds;
+            if (requests + errors < 0.95 * target) {
+                System.out.printf("Warning: only %.0f%% of the target rate was sent; the load generator or the server is saturated.%n",
+                        100.0 * (requests + errors) / target);
+            }
+        } else {
+            printLatency("Latency (uncorrected)", latency);
+            final long expectedInterval = latency.getValueAtPercentile(50);
+            printLatency("Latency (corrected, expected interval %dus)".formatted(expectedInterval),
+                    latency.correctedForCoordinatedOmission(expectedInterval));
+        }
+    }
+
+    private static void printLatency(final String title, final LatencyHistogram histogram) {
+        final StringBuilder line = new StringBuilder(title).append(':');
+        for (double percentile : PERCENTILES) {
+            line.append("  p").append(percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile).replace(".", ""))
+                    .append(' ').append(formatMillis(histogram.getValueAtPercentile(percentile)));
+        }
+        line.append("  max ").append(formatMillis(histogram.getMaxValue()))
+                .append("  mean ").append(formatMillis(Math.round(histogram.getMean())));
+        System.out.println(line);
+    }
+
+    private static String formatMillis(final long micros) {
+        return "%.3fms".formatted(micros / 1000.0);
+    }
+}
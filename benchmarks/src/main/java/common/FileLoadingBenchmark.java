@@ -0,0 +1,60 @@
+package common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a whole file onto the heap, as done when the static file cache and the device
+ * state store load their files. The file is in the page cache, so this measures the copy
+ * and allocation cost rather than the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FileLoadingBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int fileSize;
+
+    private Path path;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final byte[] data = new byte[fileSize];
+        new Random(42).nextBytes(data);
+        path = Files.createTempFile("file-loading-benchmark", ".bin");
+        Files.write(path, data);
+        file = path.toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    public byte[] readFileData() throws IOException {
+        return Utility.readFileData(file);
+    }
+}
@@ -0,0 +1,86 @@
+package common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing a response with an in-memory body into a socket-like stream, both through
+ * {@link Utility#sendResponseWithData} (a fresh encoder per response) and through a
+ * {@link HttpResponseEncoder} reused across responses, as the connection handlers do.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseSerializationBenchmark {
+    @Param({"0", "512", "8192", "65536"})
+    public int bodySize;
+
+    private byte[] body;
+    private OutputStream out;
+    private final HttpResponseEncoder encoder = new HttpResponseEncoder();
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+        out = new BlackholeOutputStream(blackhole);
+    }
+
+    @Benchmark
+    public void sendResponseWithData() throws IOException {
+        Utility.sendResponseWithData(out, HttpURLConnection.HTTP_OK, Constants.HTTP_OK_MESSAGE, "text/html", body, true);
+    }
+
+    @Benchmark
+    public void reusedEncoder() throws IOException {
+        encoder.reset()
+                .startHead(HttpURLConnection.HTTP_OK, Constants.HTTP_OK_MESSAGE)
+                .contentType("text/html")
+                .contentLength(body.length)
+                .connection(true)
+                .endHead()
+                .writeTo(out, null, body);
+        out.flush();
+    }
+
+    /**
+     * Stands in for the socket: consumes the written bytes without copying them.
+     */
+    private static final class BlackholeOutputStream extends OutputStream {
+        private final Blackhole blackhole;
+
+        private BlackholeOutputStream(final Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(final int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            blackhole.consume(b);
+            blackhole.consume(off + len);
+        }
+    }
+}
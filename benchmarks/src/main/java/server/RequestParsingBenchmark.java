@@ -0,0 +1,93 @@
+package server;
+
+import common.Utility;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request-line validation and request (header) parsing as done for every request.
+ * <p>
+ * Lives in package {@code server} to reach the package-private {@link HttpRequestParser},
+ * which replaced the line-by-line header parsing of the blocking handlers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark {
+    private static final String REQUEST_LINE = "GET /js/app.js HTTP/1.1";
+
+    private static final String BROWSER_GET = """
+            GET /js/app.js HTTP/1.1\r
+            Host: localhost:8080\r
+            Connection: keep-alive\r
+            sec-ch-ua: "Chromium";v="128", "Not;A=Brand";v="24"\r
+            sec-ch-ua-mobile: ?0\r
+            User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/128.0.0.0 Safari/537.36\r
+            Accept: */*\r
+            Sec-Fetch-Site: same-origin\r
+            Sec-Fetch-Mode: no-cors\r
+            Sec-Fetch-Dest: script\r
+            Referer: http://localhost:8080/\r
+            Accept-Encoding: gzip, deflate, br, zstd\r
+            Accept-Language: en-US,en;q=0.9\r
+            If-None-Match: "5d41402abc4b2a76b9719d91"\r
+            \r
+            """;
+
+    private static final String STATE_PUT = """
+            PUT /data/heating.json HTTP/1.1\r
+            Host: localhost:8080\r
+            Connection: keep-alive\r
+            Content-Type: application/json\r
+            Content-Length: 19\r
+            \r
+            {"temperature": 21}""";
+
+    /**
+     * A request as received, with a parser of its own.
+     */
+    @State(Scope.Thread)
+    public static class ReceivedRequest {
+        @Param({"browserGet", "statePut"})
+        public String request;
+
+        private byte[] bytes;
+        private final HttpRequestParser parser = new HttpRequestParser();
+
+        @Setup
+        public void setUp() {
+            bytes = (request.equals("statePut") ? STATE_PUT : BROWSER_GET).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    @Benchmark
+    public boolean isHttpRequestLineValid() {
+        return Utility.isHttpRequestLineValid(REQUEST_LINE);
+    }
+
+    @Benchmark
+    public void parseRequest(final ReceivedRequest received, final Blackhole blackhole) {
+        final HttpRequestParser parser = received.parser;
+        parser.reset();
+        blackhole.consume(parser.parse(received.bytes, 0, received.bytes.length));
+        blackhole.consume(parser.isKeepAliveRequested());
+        final HttpRequest parsed = parser.getRequest();
+        blackhole.consume(parsed.getPath());
+        blackhole.consume(parsed.getHeader("accept-encoding"));
+    }
+}
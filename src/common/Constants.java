@@ -2,12 +2,61 @@ package common;
 
 public class Constants {
     public static final String WEB_ROOT = "www";
-    public static final int SOCKET_TIMEOUT_MILLI_SECONDS = 5000;
+    // A connection without a complete request for this long is closed (idle keep-alive connections, slow clients).
+    public static final int KEEP_ALIVE_TIMEOUT_MILLI_SECONDS = 5000;
+    // After this many requests a keep-alive connection is closed, so that connections are spread anew over the threads.
+    public static final int MAX_REQUESTS_PER_CONNECTION = 1000;
+    public static final int IDLE_REAPER_TICK_MILLI_SECONDS = 100;
+    public static final int IDLE_REAPER_WHEEL_SIZE = 512;
+    // Suggested delay before a client whose connection was rejected under overload tries again.
+    public static final int OVERLOAD_RETRY_AFTER_SECONDS = 1;
+    public static final int MAX_REQUEST_LINE_BYTES = 8 * 1024;
+    public static final int MAX_REQUEST_HEADER_BYTES = 16 * 1024;
+    public static final int MAX_REQUEST_BODY_BYTES = 1024 * 1024;
+    // Pipelined requests answered per batch (one socket write) before a connection reads again.
+    public static final int MAX_PIPELINED_REQUESTS = 16;
+    // Streams an HTTP/2 client may have open at once (SETTINGS_MAX_CONCURRENT_STREAMS); each may buffer a request body.
+    public static final int HTTP2_MAX_CONCURRENT_STREAMS = 100;
+    public static final long STATIC_CACHE_MAX_BYTES = 32L * 1024 * 1024;
+    public static final long ZERO_COPY_THRESHOLD_BYTES = 256 * 1024;
+    public static final int COMPRESSION_MIN_BYTES = 256;
+    // Device component states, e.g. www/data/heating.json, are kept in memory and written back in batches.
+    public static final String DEVICE_STATE_DIRECTORY = "data";
+    public static final String DEVICE_STATE_PATH_PREFIX = "/data/";
+    public static final int DEVICE_STATE_MAX_BYTES = 64 * 1024;
+    public static final int DEVICE_STATE_PERSIST_INTERVAL_MILLI_SECONDS = 1000;
+    // Server-sent events pushing device state changes to subscribed clients.
+    public static final String EVENT_STREAM_PATH = "/events";
+    public static final int EVENT_STREAM_CAPACITY = 256;
+    public static final int MAX_EVENT_STREAM_SUBSCRIBERS = 1000;
+    public static final int EVENT_STREAM_HEARTBEAT_SECONDS = 15;
+    public static final int EVENT_STREAM_WRITE_BATCH_BYTES = 16 * 1024;
+    // Suggested delay before a client rejected at the subscriber limit tries again.
+    public static final int EVENT_STREAM_RETRY_AFTER_SECONDS = 5;
+    // Access log of all requests, written in batches by a background thread; records beyond the capacity are dropped.
+    public static final String ACCESS_LOG_FILE = "logs/access.log";
+    public static final int ACCESS_LOG_CAPACITY = 16 * 1024;
+    public static final int ACCESS_LOG_FLUSH_INTERVAL_MILLI_SECONDS = 100;
+    public static final long ACCESS_LOG_MAX_FILE_BYTES = 16L * 1024 * 1024;
+    public static final int ACCESS_LOG_MAX_FILES = 5;
+    // Reserved path of the metrics in the Prometheus text format.
+    public static final String METRICS_PATH = "/metrics";
+    // Let clients store responses but revalidate them (ETag / Last-Modified) before every reuse.
+    public static final String HTTP_CACHE_CONTROL = "no-cache";
     public static final String HTTP_METHOD_GET = "GET";
     public static final String HTTP_METHOD_PUT = "PUT";
     public static final String HTTP_OK_MESSAGE = "OK";
+    public static final String HTTP_PARTIAL_CONTENT_MESSAGE = "Partial Content";
+    public static final String HTTP_NOT_MODIFIED_MESSAGE = "Not Modified";
     public static final String HTTP_BAD_REQUEST_MESSAGE = "Bad Request";
+    public static final String HTTP_URI_TOO_LONG_MESSAGE = "URI Too Long";
+    public static final String HTTP_CONTENT_TOO_LARGE_MESSAGE = "Content Too Large";
+    public static final int HTTP_HEADERS_TOO_LARGE = 431;
+    public static final String HTTP_HEADERS_TOO_LARGE_MESSAGE = "Request Header Fields Too Large";
+    public static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    public static final String HTTP_RANGE_NOT_SATISFIABLE_MESSAGE = "Range Not Satisfiable";
     public static final String HTTP_BAD_METHOD_MESSAGE = "Method Not Allowed";
     public static final String HTTP_NOT_FOUND_MESSAGE = "File Not Found";
     public static final String HTTP_INTERNAL_ERROR_MESSAGE = "Internal Server Error";
+    public static final String HTTP_UNAVAILABLE_MESSAGE = "Service Unavailable";
 }
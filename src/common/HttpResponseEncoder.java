@@ -0,0 +1,260 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Serializes HTTP/1.1 responses into a reusable byte buffer.
+ * <p>
+ * Status lines for the standard messages and the common header names are encoded once;
+ * header values and numbers are written as ASCII straight into the buffer, so encoding a
+ * head allocates nothing once the buffer has reached its working size. The encoded bytes
+ * then leave the process in a single {@code write} (small bodies are copied behind the
+ * head) or, for a larger body, in one gathering write of head and body, instead of one
+ * small socket write per header line.
+ * <p>
+ * Responses are appended until {@link #reset()}, so several responses can be sent
+ * together. An encoder is meant to be owned by one connection and is not thread-safe.
+ */
+public final class HttpResponseEncoder {
+    /**
+     * Bodies up to this size are copied behind the head, so that head and body leave in one write.
+     */
+    public static final int COALESCE_BODY_MAX_BYTES = 8 * 1024;
+
+    private static final int INITIAL_CAPACITY = 512;
+    private static final int STATUS_CODE_MIN = 100;
+    private static final int STATUS_CODE_MAX = 599;
+
+    private static final byte[] HTTP_VERSION = ascii("HTTP/1.1 ");
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] HEADER_SEPARATOR = ascii(": ");
+    private static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+
+    private static final String[] STATUS_MESSAGES = new String[STATUS_CODE_MAX - STATUS_CODE_MIN + 1];
+    private static final byte[][] STATUS_LINES = new byte[STATUS_MESSAGES.length][];
+
+    static {
+        registerStatusLine(HttpURLConnection.HTTP_OK, Constants.HTTP_OK_MESSAGE);
+        registerStatusLine(HttpURLConnection.HTTP_PARTIAL, Constants.HTTP_PARTIAL_CONTENT_MESSAGE);
+        registerStatusLine(HttpURLConnection.HTTP_NOT_MODIFIED, Constants.HTTP_NOT_MODIFIED_MESSAGE);
+        registerStatusLine(HttpURLConnection.HTTP_BAD_REQUEST, Constants.HTTP_BAD_REQUEST_MESSAGE);
+        registerStatusLine(HttpURLConnection.HTTP_NOT_FOUND, Constants.HTTP_NOT_FOUND_MESSAGE);
+        registerStatusLine(HttpURLConnection.HTTP_BAD_METHOD, Constants.HTTP_BAD_METHOD_MESSAGE);
+        registerStatusLine(HttpURLConnection.HTTP_ENTITY_TOO_LARGE, Constants.HTTP_CONTENT_TOO_LARGE_MESSAGE);
+        registerStatusLine(HttpURLConnection.HTTP_REQ_TOO_LONG, Constants.HTTP_URI_TOO_LONG_MESSAGE);
+        registerStatusLine(Constants.HTTP_HEADERS_TOO_LARGE, Constants.HTTP_HEADERS_TOO_LARGE_MESSAGE);
+        registerStatusLine(Constants.HTTP_RANGE_NOT_SATISFIABLE, Constants.HTTP_RANGE_NOT_SATISFIABLE_MESSAGE);
+        registerStatusLine(HttpURLConnection.HTTP_INTERNAL_ERROR, Constants.HTTP_INTERNAL_ERROR_MESSAGE);
+        registerStatusLine(HttpURLConnection.HTTP_UNAVAILABLE, Constants.HTTP_UNAVAILABLE_MESSAGE);
+    }
+
+    private byte[] buffer;
+    private int length;
+    private ByteBuffer view;
+
+    public HttpResponseEncoder() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public HttpResponseEncoder(final int initialCapacity) {
+        buffer = new byte[Math.max(initialCapacity, 64)];
+        view = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Discards the encoded bytes; the buffer is kept for the next response.
+     */
+    public HttpResponseEncoder reset() {
+        length = 0;
+        return this;
+    }
+
+    public HttpResponseEncoder startHead(final int statusCode, final String message) {
+        Objects.requireNonNull(message, "message must not be null");
+
+        final int index = statusCode - STATUS_CODE_MIN;
+        if (index >= 0 && index < STATUS_LINES.length && STATUS_LINES[index] != null && STATUS_MESSAGES[index].equals(message)) {
+            append(STATUS_LINES[index]);
+        } else {
+            append(HTTP_VERSION);
+            appendNumber(statusCode);
+            appendByte((byte) ' ');
+            appendAscii(message);
+            append(CRLF);
+        }
+        return this;
+    }
+
+    public HttpResponseEncoder contentType(final String contentType) {
+        Objects.requireNonNull(contentType, "contentType must not be null");
+        append(CONTENT_TYPE);
+        appendAscii(contentType);
+        append(CRLF);
+        return this;
+    }
+
+    public HttpResponseEncoder contentLength(final long contentLength) {
+        append(CONTENT_LENGTH);
+        appendNumber(contentLength);
+        append(CRLF);
+        return this;
+    }
+
+    public HttpResponseEncoder header(final String name, final String value) {
+        Objects.requireNonNull(name, "name must not be null");
+        Objects.requireNonNull(value, "value must not be null");
+        appendAscii(name);
+        append(HEADER_SEPARATOR);
+        appendAscii(value);
+        append(CRLF);
+        return this;
+    }
+
+    public HttpResponseEncoder headers(final Map<String, String> headers) {
+        Objects.requireNonNull(headers, "headers must not be null");
+        if (!headers.isEmpty()) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                header(header.getKey(), header.getValue());
+            }
+        }
+        return this;
+    }
+
+    public HttpResponseEncoder connection(final boolean keepAlive) {
+        append(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+        return this;
+    }
+
+    public HttpResponseEncoder endHead() {
+        append(CRLF);
+        return this;
+    }
+
+    public HttpResponseEncoder body(final byte[] body) {
+        Objects.requireNonNull(body, "body must not be null");
+        append(body);
+        return this;
+    }
+
+    /**
+     * @return the number of encoded bytes
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return a view on the encoded bytes (position 0, limit {@link #length()}), valid until the encoder is next modified
+     */
+    public ByteBuffer getBuffer() {
+        view.limit(length).position(0);
+        return view;
+    }
+
+    /**
+     * Writes the encoded bytes with a single {@code write} call.
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        Objects.requireNonNull(out, "out must not be null");
+        out.write(buffer, 0, length);
+    }
+
+    /**
+     * Writes the encoded head followed by {@code body}. A small body is copied behind the head
+     * and written with it; a larger one is sent together with the head in one gathering write
+     * on {@code channel} if that is available.
+     *
+     * @param channel the socket's channel, or {@code null} to write through {@code out} only
+     */
+    public void writeTo(final OutputStream out, final GatheringByteChannel channel, final byte[] body) throws IOException {
+        Objects.requireNonNull(out, "out must not be null");
+        Objects.requireNonNull(body, "body must not be null");
+
+        if (body.length <= COALESCE_BODY_MAX_BYTES) {
+            append(body);
+            writeTo(out);
+        } else if (channel != null) {
+            final ByteBuffer[] buffers = {getBuffer(), ByteBuffer.wrap(body)};
+            while (buffers[1].hasRemaining()) {
+                channel.write(buffers);
+            }
+        } else {
+            writeTo(out);
+            out.write(body);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HttpResponseEncoder{length=%d, capacity=%d}".formatted(length, buffer.length);
+    }
+
+    private void append(final byte[] bytes) {
+        ensureCapacity(length + bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void appendByte(final byte b) {
+        ensureCapacity(length + 1);
+        buffer[length++] = b;
+    }
+
+    /**
+     * Header values are ASCII (RFC 9110, section 5.5); other characters are replaced by '?'.
+     */
+    private void appendAscii(final String value) {
+        final int valueLength = value.length();
+        ensureCapacity(length + valueLength);
+        for (int i = 0; i < valueLength; i++) {
+            final char c = value.charAt(i);
+            buffer[length++] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+    }
+
+    private void appendNumber(long value) {
+        if (value < 0) {
+            appendByte((byte) '-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+            digits++;
+        }
+        ensureCapacity(length + digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity <= buffer.length) {
+            return;
+        }
+        buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        view = ByteBuffer.wrap(buffer);
+    }
+
+    private static void registerStatusLine(final int statusCode, final String message) {
+        final int index = statusCode - STATUS_CODE_MIN;
+        STATUS_MESSAGES[index] = message;
+        STATUS_LINES[index] = ascii("HTTP/1.1 " + statusCode + " " + message + "\r\n");
+    }
+
+    private static byte[] ascii(final String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
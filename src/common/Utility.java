@@ -1,17 +1,47 @@
 package common;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HexFormat;
 import java.util.Objects;
 import java.util.logging.Level;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Parts of the OutputStream writing implementation of this code were generated with the help of OpenAI's ChatGPT.
+ * <p>
+ * These helpers are called from virtual threads when the server runs with {@code VIRTUAL_THREADS}.
+ * They must not block (socket or file I/O) while holding a monitor, since a virtual thread blocked
+ * inside a {@code synchronized} block pins its carrier thread. {@code VirtualThreadPinningTest} fails
+ * on any {@code jdk.VirtualThreadPinned} event recorded while the blocking handlers serve requests.
  */
 public class Utility {
+    // Some VMs reserve header words in an array, see jdk.internal.util.ArraysSupport.SOFT_MAX_ARRAY_LENGTH.
+    private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+    private static final int FILE_COPY_BUFFER_SIZE = 16 * 1024;
+    private static final int ETAG_DIGEST_BYTES = 12;
+    private static final int DISCARD_BUFFER_SIZE = 1024;
+    // Per accepting thread, so that shedding load allocates no buffer per rejected connection.
+    private static final ThreadLocal<ByteBuffer> discardBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DISCARD_BUFFER_SIZE));
 
     public static boolean isHttpRequestLineValid(final String httpRequestLine) {
         String[] requestLineTokens = httpRequestLine.trim().split("\\s+");
@@ -20,34 +50,181 @@ public class Utility {
 
     public static byte[] readFileData(final File file) throws IOException {
         Objects.requireNonNull(file, "file must not be null");
+        final long length = file.length();
+        if (length > MAX_ARRAY_LENGTH) {
+            throw new IOException("File too large to be read into memory: " + file);
+        }
         try (FileInputStream fis = new FileInputStream(file)) {
-            final byte[] data = new byte[(int) file.length()];
-            fis.read(data);
+            final byte[] data = new byte[(int) length];
+            final int read = fis.readNBytes(data, 0, data.length);
+            if (read != data.length) {
+                throw new IOException("Short read of %s: %d of %d bytes".formatted(file, read, data.length));
+            }
             return data;
         }
     }
 
     public static void sendResponseWithoutData(final OutputStream out, final int statusCode, final String message) throws IOException {
         //TODO: Sanity check parameters
-        out.write(("HTTP/1.1 " + statusCode + " " + message + "\r\n").getBytes());
-        out.write(("Content-Type: text/html\r\n").getBytes());
-        out.write(("Content-Length: 0\r\n").getBytes());
-        out.write("\r\n".getBytes());
+        new HttpResponseEncoder()
+                .startHead(statusCode, message)
+                .contentType("text/html")
+                .contentLength(0)
+                .endHead()
+                .writeTo(out);
         out.flush();
     }
 
     public static void sendResponseWithData(final OutputStream out, final int statusCode, final String message, final String contentType, final byte[] fileData, final boolean keepAlive) throws IOException {
         //TODO: Sanity check parameters
-        out.write(("HTTP/1.1 " + statusCode + " " + message + "\r\n").getBytes());
-        out.write(("Content-Type: " + contentType + "\r\n").getBytes());
-        out.write(("Content-Length: " + fileData.length + "\r\n").getBytes());
-        out.write(("Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n").getBytes());
-        out.write("\r\n".getBytes());
-        out.write(fileData);
+        new HttpResponseEncoder(fileData.length + 256)
+                .startHead(statusCode, message)
+                .contentType(contentType)
+                .contentLength(fileData.length)
+                .connection(keepAlive)
+                .endHead()
+                .body(fileData)
+                .writeTo(out);
         out.flush();
     }
 
+    /**
+     * Rejects a just accepted connection with {@code 503 Service Unavailable} and closes it,
+     * without ever blocking the accepting thread: the tiny response fits into the empty socket
+     * buffer, and what the client has sent so far is read (not waited for), so that closing
+     * does not reset the connection before the client has read the response.
+     */
+    public static void rejectConnection(final SocketChannel channel, final int retryAfterSeconds) throws IOException {
+        Objects.requireNonNull(channel, "channel must not be null");
+        try (channel) {
+            channel.configureBlocking(false);
+            channel.write(new HttpResponseEncoder()
+                    .startHead(HttpURLConnection.HTTP_UNAVAILABLE, Constants.HTTP_UNAVAILABLE_MESSAGE)
+                    .contentType("text/html")
+                    .contentLength(0)
+                    .header("Retry-After", String.valueOf(retryAfterSeconds))
+                    .connection(false)
+                    .endHead()
+                    .getBuffer());
+            channel.shutdownOutput();
+            // Read what already arrived, at most a request head.
+            final ByteBuffer discard = discardBuffer.get();
+            int discarded = 0;
+            int read;
+            do {
+                discard.clear();
+                read = channel.read(discard);
+                discarded += read;
+            } while (read > 0 && discarded < Constants.MAX_REQUEST_HEADER_BYTES);
+        }
+    }
+
+    /**
+     * Sends {@code count} bytes of the file starting at {@code position}, with {@link FileChannel#transferTo}
+     * if {@code channel} is available and otherwise through a small, bounded buffer. Anything buffered in
+     * {@code out} must have been flushed before.
+     */
+    public static void sendFileRegion(final OutputStream out, final WritableByteChannel channel, final FileChannel fileChannel,
+                                      final long position, final long count) throws IOException {
+        Objects.requireNonNull(out, "out must not be null");
+        Objects.requireNonNull(fileChannel, "fileChannel must not be null");
+
+        final long end = position + count;
+        if (channel != null) {
+            long current = position;
+            while (current < end) {
+                final long transferred = transferFileData(fileChannel, current, end - current, channel);
+                if (transferred <= 0) {
+                    throw new IOException("File was truncated while being sent");
+                }
+                current += transferred;
+            }
+        } else {
+            final InputStream in = Channels.newInputStream(fileChannel.position(position));
+            final byte[] buffer = new byte[(int) Math.min(FILE_COPY_BUFFER_SIZE, Math.max(count, 1))];
+            long remaining = count;
+            while (remaining > 0) {
+                final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("File was truncated while being sent");
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    /**
+     * Transfers up to {@code count} bytes starting at {@code position} of the file to the target channel.
+     * A non-blocking target may accept fewer bytes (or none) than requested.
+     *
+     * @return the number of bytes transferred
+     */
+    public static long transferFileData(final FileChannel fileChannel, final long position, final long count, final WritableByteChannel target) throws IOException {
+        return fileChannel.transferTo(position, count, target);
+    }
+
     public static String getContentType(final String fileRequested) {
+        return getFileType(fileRequested).contentType;
+    }
+
+    /**
+     * Whether responses for the requested file benefit from gzip/deflate compression.
+     */
+    public static boolean isCompressible(final String fileRequested) {
+        return getFileType(fileRequested).compressible;
+    }
+
+    public static byte[] gzip(final byte[] data) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(data);
+        }
+        return compressed.toByteArray();
+    }
+
+    public static byte[] deflate(final byte[] data) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2);
+        final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (DeflaterOutputStream deflate = new DeflaterOutputStream(compressed, deflater)) {
+            deflate.write(data);
+        } finally {
+            deflater.end();
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * @return a strong entity tag derived from a SHA-256 digest of the content
+     */
+    public static String computeEtag(final byte[] data) {
+        Objects.requireNonNull(data, "data must not be null");
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            return "\"" + HexFormat.of().formatHex(digest, 0, ETAG_DIGEST_BYTES) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String formatHttpDate(final long epochSeconds) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochSecond(epochSeconds).atOffset(ZoneOffset.UTC));
+    }
+
+    /**
+     * @return the epoch seconds of an HTTP-date (IMF-fixdate), or -1 if it cannot be parsed
+     */
+    public static long parseHttpDate(final String httpDate) {
+        Objects.requireNonNull(httpDate, "httpDate must not be null");
+        try {
+            return ZonedDateTime.parse(httpDate.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static FileType getFileType(final String fileRequested) {
         Objects.requireNonNull(fileRequested, "fileRequested must not be null");
         String fileExtension = "";
         final int dotIndex = fileRequested.lastIndexOf('.');
@@ -56,11 +233,41 @@ public class Utility {
         }
 
         return switch (fileExtension) {
-            case "html" -> "text/html";
-            case "json" -> "application/json";
-            case "css" -> "text/css";
-            case "js" -> "application/javascript";
+            case "html" -> FileType.HTML;
+            case "json" -> FileType.JSON;
+            case "css" -> FileType.CSS;
+            case "js" -> FileType.JAVASCRIPT;
+            case "svg" -> FileType.SVG;
+            case "png" -> FileType.PNG;
+            case "jpg", "jpeg" -> FileType.JPEG;
+            case "gif" -> FileType.GIF;
+            case "webp" -> FileType.WEBP;
+            case "woff" -> FileType.WOFF;
+            case "woff2" -> FileType.WOFF2;
             default -> throw new IllegalArgumentException("Unsupported file requested: " + fileRequested);
         };
     }
+
+    private enum FileType {
+        HTML("text/html", true),
+        JSON("application/json", true),
+        CSS("text/css", true),
+        JAVASCRIPT("application/javascript", true),
+        SVG("image/svg+xml", true),
+        // Already compressed formats: gzip or deflate would cost CPU without saving bytes.
+        PNG("image/png", false),
+        JPEG("image/jpeg", false),
+        GIF("image/gif", false),
+        WEBP("image/webp", false),
+        WOFF("font/woff", false),
+        WOFF2("font/woff2", false);
+
+        private final String contentType;
+        private final boolean compressible;
+
+        FileType(final String contentType, final boolean compressible) {
+            this.contentType = contentType;
+            this.compressible = compressible;
+        }
+    }
 }
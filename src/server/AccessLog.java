@@ -0,0 +1,413 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Access log of all served requests, written to a file off the request path.
+ * <p>
+ * Recording a request copies its fields into a slot of a preallocated ring: the method and
+ * path are references to strings the request holds anyway, so nothing is formatted or
+ * allocated on the worker thread. Workers claim slots with a compare-and-set and never wait;
+ * when the ring is full because the disk cannot keep up, the record is dropped and counted
+ * ({@link #getDroppedCount()}) instead of slowing the server down.
+ * <p>
+ * A single background writer drains the ring once per flush interval, formats the records
+ * into one buffer and appends each batch with one write. When the file would exceed its
+ * maximum size it is rotated: {@code access.log} becomes {@code access.log.1}, which becomes
+ * {@code access.log.2} and so on, and the oldest file is deleted. Records still in the ring
+ * are written by {@link #close()}.
+ * <p>
+ * Each record is one line of space-separated fields:
+ * <pre>
+ * 2026-10-18T09:15:02.123Z 127.0.0.1 GET /index.html 200 1234 153
+ * </pre>
+ * i.e. the time (UTC), the client address, method, path, status code, the length of the
+ * response body ({@code -} if not known up front, e.g. for event streams) and the processing
+ * time in microseconds. Requests the parser rejected have {@code -} as method and path.
+ * Spaces and bytes outside printable ASCII are percent-encoded, so the fields stay separable
+ * and every record stays one line.
+ */
+public final class AccessLog implements Closeable {
+    private static final Logger logger = Logger.getLogger(AccessLog.class.getName());
+    private static final int BATCH_BYTES = 64 * 1024;
+    // Upper bound of a record's fixed-size fields: time, IPv6 address, status, bytes, duration and separators.
+    private static final int MAX_FIXED_RECORD_BYTES = 128;
+    // A percent-encoded char.
+    private static final int MAX_ENCODED_BYTES_PER_CHAR = 3;
+    private static final byte[] NONE = {'-'};
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final DateTimeFormatter SECOND_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.").withZone(ZoneOffset.UTC);
+
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final Record[] ring;
+    private final int mask;
+    // Sequence of the next record a producer claims.
+    private final AtomicLong tail = new AtomicLong();
+    // Sequence of the next record the writer takes; only used by the writer.
+    private long head;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final ScheduledExecutorService writer;
+
+    // Writer state.
+    private FileChannel channel;
+    private long fileBytes;
+    private byte[] batch = new byte[BATCH_BYTES];
+    private int batchLength;
+    private int batchRecords;
+    private long reportedDropped;
+    private long cachedSecond = Long.MIN_VALUE;
+    private byte[] cachedSecondPrefix;
+    private InetAddress cachedClient;
+    private byte[] cachedClientAddress;
+
+    /**
+     * A slot of the ring. Its sequence tells who owns it: a producer may claim it for the
+     * record with that sequence, the writer may read it once it is one higher.
+     */
+    private static final class Record {
+        private volatile long sequence;
+        private long timeMillis;
+        private InetAddress client;
+        private String method;
+        private String path;
+        private int statusCode;
+        private long bodyBytes;
+        private long durationNanos;
+
+        private Record(final long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * @param capacity            the number of records buffered for the writer, rounded up to a power of two
+     * @param flushIntervalMillis how often the writer appends the buffered records to the file
+     * @param maxFileBytes        the size at which the file is rotated
+     * @param maxFiles            the number of rotated files kept besides the current one
+     * @throws IOException if the file cannot be opened for appending
+     */
+    public AccessLog(final Path file, final int capacity, final long flushIntervalMillis, final long maxFileBytes, final int maxFiles)
+            throws IOException {
+        Objects.requireNonNull(file, "file must not be null");
+        if (capacity <= 0 || capacity > 1 << 20 || flushIntervalMillis <= 0 || maxFileBytes <= 0 || maxFiles <= 0) {
+            throw new IllegalArgumentException("capacity, flushIntervalMillis, maxFileBytes and maxFiles must be positive");
+        }
+
+        this.file = file.toAbsolutePath().normalize();
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        final int ringSize = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.ring = new Record[ringSize];
+        this.mask = ringSize - 1;
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new Record(i);
+        }
+        Files.createDirectories(this.file.getParent());
+        openFile();
+        this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "access-log-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writer.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a served request. Never blocks: if the ring is full, the record is dropped.
+     *
+     * @param client        the client's address, may be {@code null}
+     * @param method        the request method, or {@code null} for a rejected request
+     * @param path          the request path, or {@code null} for a rejected request
+     * @param bodyBytes     the length of the response body, or a negative value if unknown
+     * @param durationNanos the time from the parsed request to its response
+     */
+    public void record(final InetAddress client, final String method, final String path, final int statusCode, final long bodyBytes,
+                       final long durationNanos) {
+        final long sequence = claim();
+        if (sequence < 0) {
+            dropped.increment();
+            return;
+        }
+        final Record record = ring[(int) sequence & mask];
+        record.timeMillis = System.currentTimeMillis();
+        record.client = client;
+        record.method = method;
+        record.path = path;
+        record.statusCode = statusCode;
+        record.bodyBytes = bodyBytes;
+        record.durationNanos = durationNanos;
+        // Publishes the fields to the writer.
+        record.sequence = sequence + 1;
+    }
+
+    /**
+     * @return the number of records written to the file
+     */
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    /**
+     * @return the number of records dropped because the ring was full or the file could not be written
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stops the background writer and writes the records still buffered.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.log(Level.WARNING, "Access log writer did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error closing access log", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AccessLog[file=%s, written=%d, dropped=%d]".formatted(file, getWrittenCount(), getDroppedCount());
+    }
+
+    /**
+     * @return the sequence of a free slot now owned by the caller, or -1 if the ring is full
+     */
+    private long claim() {
+        long sequence = tail.get();
+        while (true) {
+            final long slotSequence = ring[(int) sequence & mask].sequence;
+            if (slotSequence == sequence) {
+                if (tail.compareAndSet(sequence, sequence + 1)) {
+                    return sequence;
+                }
+                sequence = tail.get();
+            } else if (slotSequence < sequence) {
+                // The slot still holds the record of the previous lap, which the writer has not taken yet.
+                return -1;
+            } else {
+                // Another producer claimed the slot meanwhile.
+                sequence = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Writes all records published so far; called by the writer thread only (and by {@link #close()} once it stopped).
+     */
+    private void flush() {
+        while (true) {
+            final Record record = ring[(int) head & mask];
+            if (record.sequence != head + 1) {
+                // Empty, or the next record is still being written by its producer.
+                break;
+            }
+            append(record);
+            record.client = null;
+            record.method = null;
+            record.path = null;
+            // Hands the slot to the producer of the next lap.
+            record.sequence = head + ring.length;
+            head++;
+        }
+        writeBatch();
+
+        final long droppedNow = dropped.sum();
+        if (droppedNow != reportedDropped) {
+            logger.log(Level.WARNING, "Access log dropped %d record(s)".formatted(droppedNow - reportedDropped));
+            reportedDropped = droppedNow;
+        }
+    }
+
+    private void append(final Record record) {
+        final String method = record.method;
+        final String path = record.path;
+        final int length = MAX_FIXED_RECORD_BYTES + (lengthOf(method) + lengthOf(path)) * MAX_ENCODED_BYTES_PER_CHAR;
+        if (batchLength + length > batch.length) {
+            writeBatch();
+            if (length > batch.length) {
+                batch = new byte[length];
+            }
+        }
+
+        appendTime(record.timeMillis);
+        batch[batchLength++] = ' ';
+        appendBytes(record.client == null ? NONE : clientAddress(record.client));
+        batch[batchLength++] = ' ';
+        appendEncoded(method);
+        batch[batchLength++] = ' ';
+        appendEncoded(path);
+        batch[batchLength++] = ' ';
+        appendNumber(record.statusCode);
+        batch[batchLength++] = ' ';
+        if (record.bodyBytes < 0) {
+            appendBytes(NONE);
+        } else {
+            appendNumber(record.bodyBytes);
+        }
+        batch[batchLength++] = ' ';
+        appendNumber(Math.max(record.durationNanos, 0) / 1000);
+        batch[batchLength++] = '\n';
+        batchRecords++;
+    }
+
+    private static int lengthOf(final String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    /**
+     * Appends the batch to the file, rotating the file first if it would grow too large. A batch
+     * that cannot be written is counted as dropped.
+     */
+    private void writeBatch() {
+        if (batchRecords == 0) {
+            return;
+        }
+        try {
+            if (fileBytes > 0 && fileBytes + batchLength > maxFileBytes) {
+                rotate();
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(batch, 0, batchLength);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            fileBytes += batchLength;
+            written.add(batchRecords);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error writing access log", e);
+            dropped.add(batchRecords);
+        }
+        batchLength = 0;
+        batchRecords = 0;
+    }
+
+    private void rotate() throws IOException {
+        channel.close();
+        Files.deleteIfExists(rotatedFile(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            final Path rotated = rotatedFile(i);
+            if (Files.exists(rotated)) {
+                Files.move(rotated, rotatedFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, rotatedFile(1), StandardCopyOption.REPLACE_EXISTING);
+        openFile();
+    }
+
+    private Path rotatedFile(final int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void openFile() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = channel.size();
+    }
+
+    /**
+     * Appends e.g. {@code 2026-10-18T09:15:02.123Z}; the part up to the seconds is formatted once per second.
+     */
+    private void appendTime(final long timeMillis) {
+        final long second = Math.floorDiv(timeMillis, 1000);
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedSecondPrefix = SECOND_FORMATTER.format(Instant.ofEpochSecond(second)).getBytes(StandardCharsets.US_ASCII);
+        }
+        appendBytes(cachedSecondPrefix);
+        final int millis = Math.floorMod(timeMillis, 1000);
+        batch[batchLength++] = (byte) ('0' + millis / 100);
+        batch[batchLength++] = (byte) ('0' + millis / 10 % 10);
+        batch[batchLength++] = (byte) ('0' + millis % 10);
+        batch[batchLength++] = 'Z';
+    }
+
+    /**
+     * @return the textual address, kept for the next record, which is often from the same connection
+     */
+    private byte[] clientAddress(final InetAddress client) {
+        if (client != cachedClient) {
+            cachedClient = client;
+            cachedClientAddress = client.getHostAddress().getBytes(StandardCharsets.US_ASCII);
+        }
+        return cachedClientAddress;
+    }
+
+    private void appendBytes(final byte[] bytes) {
+        System.arraycopy(bytes, 0, batch, batchLength, bytes.length);
+        batchLength += bytes.length;
+    }
+
+    private void appendNumber(final long number) {
+        if (number == 0) {
+            batch[batchLength++] = '0';
+            return;
+        }
+        int digits = 0;
+        for (long rest = number; rest > 0; rest /= 10) {
+            digits++;
+        }
+        long rest = number;
+        for (int i = batchLength + digits - 1; i >= batchLength; i--) {
+            batch[i] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        }
+        batchLength += digits;
+    }
+
+    /**
+     * Appends the value with spaces, {@code %} and characters outside printable ASCII percent-encoded. Request
+     * strings are decoded as ISO-8859-1, so each char stands for one byte of the request.
+     */
+    private void appendEncoded(final String value) {
+        if (value == null || value.isEmpty()) {
+            appendBytes(NONE);
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c > ' ' && c < 0x7f && c != '%') {
+                batch[batchLength++] = (byte) c;
+            } else {
+                appendPercentEncoded(c);
+            }
+        }
+    }
+
+    private void appendPercentEncoded(final int b) {
+        batch[batchLength++] = '%';
+        batch[batchLength++] = HEX_DIGITS[b >> 4 & 0xf];
+        batch[batchLength++] = HEX_DIGITS[b & 0xf];
+    }
+}
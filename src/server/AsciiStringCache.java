@@ -0,0 +1,74 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Process-wide cache turning byte ranges of the read buffers into {@link String}s.
+ * <p>
+ * Request paths and header values repeat constantly (the same few assets, the same
+ * {@code Accept-Encoding} of every browser), so a direct-mapped table lets the parser
+ * return an existing {@code String} instead of allocating one per request.
+ * <p>
+ * The table is shared without locking: slots may be overwritten concurrently, which
+ * only costs a cache miss. Strings are immutable, so a racy read always sees a fully
+ * constructed instance.
+ */
+final class AsciiStringCache {
+    private static final int SIZE = 1024;
+    private static final int MAX_CACHED_LENGTH = 256;
+    private static final String[] cache = new String[SIZE];
+
+    private AsciiStringCache() {
+    }
+
+    static String get(final byte[] buffer, final int from, final int to) {
+        final int length = to - from;
+        if (length > MAX_CACHED_LENGTH) {
+            return new String(buffer, from, length, StandardCharsets.ISO_8859_1);
+        }
+
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + (buffer[i] & 0xff);
+        }
+        final int slot = (hash ^ (hash >>> 16)) & (SIZE - 1);
+        final String cached = cache[slot];
+        if (cached != null && matches(cached, buffer, from, to)) {
+            return cached;
+        }
+        final String created = new String(buffer, from, length, StandardCharsets.ISO_8859_1);
+        cache[slot] = created;
+        return created;
+    }
+
+    static boolean matches(final String string, final byte[] buffer, final int from, final int to) {
+        if (string.length() != to - from) {
+            return false;
+        }
+        for (int i = 0; i < string.length(); i++) {
+            if (string.charAt(i) != (char) (buffer[from + i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares a byte range case-insensitively (ASCII only) with a lower-case string.
+     */
+    static boolean matchesIgnoreCase(final String lowerCase, final byte[] buffer, final int from, final int to) {
+        if (lowerCase.length() != to - from) {
+            return false;
+        }
+        for (int i = 0; i < lowerCase.length(); i++) {
+            int b = buffer[from + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (lowerCase.charAt(i) != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,161 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Parsing of {@code Range} request headers and framing of {@code multipart/byteranges}
+ * bodies (RFC 9110, section 14).
+ * <p>
+ * Only the {@code bytes} unit is supported. Ranges are sorted and overlapping or adjacent
+ * ones are coalesced, which the specification allows, so the parts of a multipart response
+ * never add up to more than the representation itself, however the ranges were requested.
+ */
+final class ByteRanges {
+    /**
+     * More ranges than this in one request are ignored and the full representation is sent.
+     */
+    static final int MAX_RANGES = 16;
+
+    private static final String BYTES_UNIT = "bytes=";
+    private static final int BOUNDARY_BYTES = 12;
+
+    /**
+     * An inclusive range of byte positions, as in {@code Content-Range}.
+     */
+    record ByteRange(long first, long last) {
+        long length() {
+            return last - first + 1;
+        }
+
+        String contentRange(final long completeLength) {
+            return "bytes " + first + "-" + last + "/" + completeLength;
+        }
+    }
+
+    private ByteRanges() {
+    }
+
+    /**
+     * @param rangeHeader    the {@code Range} header value, may be {@code null}
+     * @param completeLength the length of the selected representation
+     * @return the satisfiable ranges in ascending order, an empty list if none is satisfiable
+     * ({@code 416}), or {@code null} if the header is absent, malformed or asks for too many
+     * ranges, in which case it is ignored ({@code 200})
+     */
+    static List<ByteRange> parse(final String rangeHeader, final long completeLength) {
+        if (rangeHeader == null || !rangeHeader.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+            return null;
+        }
+
+        final List<ByteRange> ranges = new ArrayList<>();
+        int specs = 0;
+        int start = BYTES_UNIT.length();
+        while (start <= rangeHeader.length()) {
+            int end = rangeHeader.indexOf(',', start);
+            if (end < 0) {
+                end = rangeHeader.length();
+            }
+            final String spec = rangeHeader.substring(start, end).trim();
+            start = end + 1;
+            // Empty list elements are allowed (RFC 9110, section 5.6.1).
+            if (spec.isEmpty()) {
+                continue;
+            }
+            if (++specs > MAX_RANGES) {
+                return null;
+            }
+            final int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            final long first = parseNumber(spec, 0, dash);
+            final long last = parseNumber(spec, dash + 1, spec.length());
+            if (dash == 0) {
+                // Suffix range: the last N bytes.
+                if (last < 0) {
+                    return null;
+                }
+                if (last > 0 && completeLength > 0) {
+                    ranges.add(new ByteRange(Math.max(0, completeLength - last), completeLength - 1));
+                }
+            } else {
+                if (first < 0 || (dash + 1 < spec.length() && (last < 0 || last < first))) {
+                    return null;
+                }
+                if (first < completeLength) {
+                    ranges.add(new ByteRange(first, dash + 1 < spec.length() ? Math.min(last, completeLength - 1) : completeLength - 1));
+                }
+            }
+        }
+        if (specs == 0) {
+            return null;
+        }
+        return coalesce(ranges);
+    }
+
+    /**
+     * @return a boundary that is, with overwhelming probability, not contained in any part
+     */
+    static String newBoundary() {
+        final byte[] random = new byte[BOUNDARY_BYTES];
+        ThreadLocalRandom.current().nextBytes(random);
+        return HexFormat.of().formatHex(random);
+    }
+
+    /**
+     * @return the delimiter and headers preceding a part of a {@code multipart/byteranges} body
+     */
+    static byte[] partHead(final String boundary, final String contentType, final ByteRange range, final long completeLength) {
+        return ("\r\n--" + boundary + "\r\nContent-Type: " + contentType + "\r\nContent-Range: " + range.contentRange(completeLength) + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the close delimiter ending a {@code multipart/byteranges} body
+     */
+    static byte[] multipartTail(final String boundary) {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static List<ByteRange> coalesce(final List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        ranges.sort((a, b) -> Long.compare(a.first(), b.first()));
+        final List<ByteRange> coalesced = new ArrayList<>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            final ByteRange next = ranges.get(i);
+            if (next.first() <= current.last() + 1) {
+                current = new ByteRange(current.first(), Math.max(current.last(), next.last()));
+            } else {
+                coalesced.add(current);
+                current = next;
+            }
+        }
+        coalesced.add(current);
+        return coalesced;
+    }
+
+    /**
+     * @return the decimal number in {@code value[from, to)}, or -1 if it is empty, not a number or too large
+     */
+    private static long parseNumber(final String value, final int from, final int to) {
+        if (from >= to || to - from > 18) {
+            return -1;
+        }
+        long number = 0;
+        for (int i = from; i < to; i++) {
+            final int digit = value.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            number = number * 10 + digit;
+        }
+        return number;
+    }
+}
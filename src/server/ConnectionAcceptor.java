@@ -0,0 +1,116 @@
+package server;
+
+import common.Constants;
+import common.Utility;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accepts connections on a listening socket and hands each one, wrapped in a
+ * {@link ClientHandler}, to its own worker partition.
+ * <p>
+ * {@link Main} runs one acceptor per thread. In multi-acceptor mode every acceptor owns a
+ * listener bound with {@code SO_REUSEPORT}, so the kernel spreads incoming connections over
+ * the acceptors, or, where that option is not supported, all acceptors share one listener.
+ * Either way no acceptor waits for another, and connections are queued in the executor of
+ * their acceptor only, instead of all accept threads and workers contending for one queue.
+ * <p>
+ * A connection that finds no permit in {@code clientPermits} or no room in the executor's
+ * queue is answered with {@code 503} and a {@code Retry-After} hint on the accepting thread.
+ */
+class ConnectionAcceptor implements Runnable {
+    private static final Logger logger = Logger.getLogger(ConnectionAcceptor.class.getName());
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService workers;
+    private final Semaphore clientPermits;
+    private final HttpClientHandler httpClientHandler;
+    private final ServerMetrics metrics;
+
+    /**
+     * @param clientPermits bounds the number of clients being served or waiting to be served; may be shared by all acceptors
+     */
+    ConnectionAcceptor(final ServerSocket serverSocket, final ExecutorService workers, final Semaphore clientPermits,
+                       final HttpClientHandler httpClientHandler, final ServerMetrics metrics) {
+        Objects.requireNonNull(serverSocket, "serverSocket must not be null");
+        Objects.requireNonNull(workers, "workers must not be null");
+        Objects.requireNonNull(clientPermits, "clientPermits must not be null");
+        Objects.requireNonNull(httpClientHandler, "httpClientHandler must not be null");
+        Objects.requireNonNull(metrics, "metrics must not be null");
+
+        this.serverSocket = serverSocket;
+        this.workers = workers;
+        this.clientPermits = clientPermits;
+        this.httpClientHandler = httpClientHandler;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Accepts connections until the listening socket is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                final Socket clientSocket = serverSocket.accept();
+                // Beyond the limit, connections are shed right away instead of piling up in the kernel's
+                // accept backlog, where clients cannot tell a busy server from a dead one.
+                if (!clientPermits.tryAcquire()) {
+                    rejectConnection(clientSocket);
+                    continue;
+                }
+
+                final ClientHandler clientHandler = new ClientHandler(clientSocket, httpClientHandler);
+                try {
+                    workers.submit(() -> {
+                        try {
+                            clientHandler.run();
+                        } finally {
+                            clientPermits.release();
+                        }
+                    });
+                } catch (RejectedExecutionException rejectedExecutionException) {
+                    clientPermits.release();
+                    if (!workers.isShutdown()) {
+                        // The partition's queue is full.
+                        rejectConnection(clientSocket);
+                        continue;
+                    }
+                    logger.log(Level.SEVERE, "Failed to submit client handler to thread pool", rejectedExecutionException);
+                    // In case socket is not closed, we try to close it here.
+                    try {
+                        clientSocket.close();
+                    } catch (IOException ioException) {
+                        logger.log(Level.WARNING, "Error closing client socket after rejection", ioException);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (serverSocket.isClosed()) {
+                logger.log(Level.INFO, "Server socket closed, accept loop stopped.");
+            } else {
+                logger.log(Level.SEVERE, "Error while accepting socket", e);
+            }
+        }
+    }
+
+    /**
+     * Answers {@code 503 Service Unavailable} with a {@code Retry-After} hint and closes the connection.
+     */
+    private void rejectConnection(final Socket clientSocket) {
+        metrics.connectionRejected();
+        try {
+            Utility.rejectConnection(clientSocket.getChannel(), Constants.OVERLOAD_RETRY_AFTER_SECONDS);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error rejecting connection", e);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package server;
+
+import common.Utility;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory store of the device component states below the data directory, requested as
+ * e.g. {@code /data/heating.json}.
+ * <p>
+ * Reads are served from memory. A {@code PUT} replaces the state of a component in memory
+ * and marks it dirty; a single background writer persists the dirty states once per
+ * persist interval (write-behind). A burst of updates to one component therefore costs
+ * one disk write, and all components changed within an interval are written as one batch.
+ * <p>
+ * Files are replaced crash-safely: a state is written to a temporary file in the data
+ * directory, forced to disk and atomically renamed over the old file, so that after a
+ * crash each file holds either the previous or the new state. Updates accepted within
+ * the last interval before a crash are lost; {@link #close()} persists them on shutdown.
+ * <p>
+ * A component's state is loaded from its file on first access and the store owns the file
+ * from then on, so later external edits are not picked up. Only components with an existing
+ * file can be updated: a request never creates a file. States are immutable snapshots
+ * published through a {@link ConcurrentHashMap}, so reads never block. {@link Listener}s
+ * are told about every update, e.g. to push it to clients.
+ */
+public final class DeviceStateStore implements Closeable {
+    private static final Logger logger = Logger.getLogger(DeviceStateStore.class.getName());
+    private static final String STATE_FILE_SUFFIX = ".json";
+    private static final String TEMPORARY_FILE_SUFFIX = ".tmp";
+    private static final int MAX_COMPONENT_NAME_LENGTH = 64;
+
+    private final Path dataDirectory;
+    private final String requestPathPrefix;
+    private final int maxStateBytes;
+    private final Map<String, State> states = new ConcurrentHashMap<>();
+    private final Set<String> dirtyComponents = ConcurrentHashMap.newKeySet();
+    // Serializes the background writer with the final flush on close.
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final ScheduledExecutorService writer;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Applies updates and notifies listeners in one order, so that listeners never see an outdated state last.
+    private final ReentrantLock updateLock = new ReentrantLock();
+
+    /**
+     * Notified of every accepted update, in the order the updates were applied.
+     */
+    public interface Listener {
+        /**
+         * Called on the updating thread; must not block.
+         */
+        void stateChanged(String component, State state);
+    }
+
+    /**
+     * An immutable snapshot of a component's state, with its validators computed once.
+     */
+    public static final class State {
+        private final byte[] data;
+        private final String etag;
+        private final long lastModifiedSeconds;
+        private final String lastModified;
+
+        private State(final byte[] data, final long lastModifiedSeconds) {
+            this.data = data;
+            this.etag = Utility.computeEtag(data);
+            this.lastModifiedSeconds = lastModifiedSeconds;
+            this.lastModified = Utility.formatHttpDate(lastModifiedSeconds);
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public long getLastModifiedSeconds() {
+            return lastModifiedSeconds;
+        }
+
+        /**
+         * @return the modification time formatted as an HTTP-date
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * @param requestPathPrefix     the request path of the data directory, e.g. {@code /data/}
+     * @param persistIntervalMillis how long changes are collected before they are written to disk
+     */
+    public DeviceStateStore(final Path dataDirectory, final String requestPathPrefix, final int maxStateBytes, final long persistIntervalMillis) {
+        Objects.requireNonNull(dataDirectory, "dataDirectory must not be null");
+        Objects.requireNonNull(requestPathPrefix, "requestPathPrefix must not be null");
+        if (maxStateBytes <= 0 || persistIntervalMillis <= 0) {
+            throw new IllegalArgumentException("maxStateBytes and persistIntervalMillis must be positive");
+        }
+
+        this.dataDirectory = dataDirectory.toAbsolutePath().normalize();
+        this.requestPathPrefix = requestPathPrefix;
+        this.maxStateBytes = maxStateBytes;
+        this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "device-state-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writer.scheduleWithFixedDelay(this::flush, persistIntervalMillis, persistIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return whether the request path lies in the data directory and is therefore handled by this store
+     */
+    public boolean isStatePath(final String requestPath) {
+        return requestPath.startsWith(requestPathPrefix);
+    }
+
+    /**
+     * Returns the state for the given request path, e.g. {@code /data/heating.json}.
+     *
+     * @return the state, or {@code null} if there is no such component
+     */
+    public State get(final String requestPath) throws IOException {
+        Objects.requireNonNull(requestPath, "requestPath must not be null");
+
+        final String component = componentOf(requestPath);
+        if (component == null) {
+            return null;
+        }
+        final State state = states.get(component);
+        return state != null ? state : load(component);
+    }
+
+    /**
+     * Replaces the state of an existing component. The change is visible to readers
+     * immediately and persisted by the background writer.
+     *
+     * @return the new state, or {@code null} if there is no such component
+     * @throws IllegalArgumentException if {@code data} exceeds the maximum state size
+     */
+    public State put(final String requestPath, final byte[] data) throws IOException {
+        Objects.requireNonNull(requestPath, "requestPath must not be null");
+        Objects.requireNonNull(data, "data must not be null");
+        if (data.length > maxStateBytes) {
+            throw new IllegalArgumentException("State exceeds %d bytes".formatted(maxStateBytes));
+        }
+
+        // Loading first ensures that only existing components are updated.
+        if (get(requestPath) == null) {
+            return null;
+        }
+        final String component = componentOf(requestPath);
+        final State state = new State(data.clone(), TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+        updateLock.lock();
+        try {
+            states.put(component, state);
+            dirtyComponents.add(component);
+            updates.increment();
+            for (Listener listener : listeners) {
+                try {
+                    listener.stateChanged(component, state);
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Device state listener failed", e);
+                }
+            }
+        } finally {
+            updateLock.unlock();
+        }
+        return state;
+    }
+
+    public void addListener(final Listener listener) {
+        Objects.requireNonNull(listener, "listener must not be null");
+        listeners.add(listener);
+    }
+
+    /**
+     * Writes all changed states to disk now.
+     */
+    public void flush() {
+        flushLock.lock();
+        try {
+            if (dirtyComponents.isEmpty()) {
+                return;
+            }
+            final List<String> components = new ArrayList<>(dirtyComponents);
+            int written = 0;
+            for (String component : components) {
+                // Cleared before reading the state, so that a concurrent update marks the component dirty again.
+                dirtyComponents.remove(component);
+                try {
+                    persist(component, states.get(component));
+                    written++;
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Error persisting state of %s, retrying later".formatted(component), e);
+                    dirtyComponents.add(component);
+                }
+            }
+            if (written > 0) {
+                forceDataDirectory();
+                writes.add(written);
+                logger.log(Level.FINE, "Persisted %d device state(s)".formatted(written));
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    public long getUpdateCount() {
+        return updates.sum();
+    }
+
+    /**
+     * @return the number of state files written; lower than the update count when updates were coalesced
+     */
+    public long getWriteCount() {
+        return writes.sum();
+    }
+
+    /**
+     * Stops the background writer and persists all pending changes.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.log(Level.WARNING, "Device state writer did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceStateStore[components=%d, dirty=%d, updates=%d, writes=%d]"
+                .formatted(states.size(), dirtyComponents.size(), getUpdateCount(), getWriteCount());
+    }
+
+    /**
+     * @return the component name of a request path such as {@code /data/heating.json}, or {@code null} if it names none
+     */
+    private String componentOf(final String requestPath) {
+        if (!requestPath.startsWith(requestPathPrefix) || !requestPath.endsWith(STATE_FILE_SUFFIX)) {
+            return null;
+        }
+        final int end = requestPath.length() - STATE_FILE_SUFFIX.length();
+        if (end <= requestPathPrefix.length() || end - requestPathPrefix.length() > MAX_COMPONENT_NAME_LENGTH) {
+            return null;
+        }
+        // A restricted alphabet also rules out path traversal and hidden (e.g. temporary) files.
+        for (int i = requestPathPrefix.length(); i < end; i++) {
+            final char c = requestPath.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == '-')) {
+                return null;
+            }
+        }
+        return requestPath.substring(requestPathPrefix.length(), end);
+    }
+
+    private State load(final String component) throws IOException {
+        final Path file = dataDirectory.resolve(component + STATE_FILE_SUFFIX);
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        if (attributes.size() > maxStateBytes) {
+            throw new IOException("State file %s exceeds %d bytes".formatted(file, maxStateBytes));
+        }
+
+        final State loaded = new State(Utility.readFileData(file.toFile()), attributes.lastModifiedTime().to(TimeUnit.SECONDS));
+        // A concurrent load or update wins, so an update is never overwritten by the file content.
+        final State existing = states.putIfAbsent(component, loaded);
+        return existing != null ? existing : loaded;
+    }
+
+    private void persist(final String component, final State state) throws IOException {
+        final Path file = dataDirectory.resolve(component + STATE_FILE_SUFFIX);
+        final Path temporaryFile = dataDirectory.resolve("." + component + STATE_FILE_SUFFIX + TEMPORARY_FILE_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temporaryFile,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.wrap(state.data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            logger.log(Level.WARNING, "Atomic rename not supported, replacing %s non-atomically".formatted(file));
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Makes the renames of a batch durable. Not every platform can sync a directory, which only
+     * weakens durability of the latest batch, not the atomicity of the file replacement.
+     */
+    private void forceDataDirectory() {
+        try (FileChannel directory = FileChannel.open(dataDirectory, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Could not sync data directory", e);
+        }
+    }
+}
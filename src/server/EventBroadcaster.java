@@ -0,0 +1,329 @@
+package server;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fans out server-sent events ({@code text/event-stream}) to any number of subscribers.
+ * <p>
+ * Every event is encoded once into a frame and stored in a fixed-size ring shared by all
+ * subscribers; a {@link Subscription} is merely a cursor into that ring, so publishing costs
+ * the same regardless of the number of subscribers and nothing is copied per subscriber.
+ * <p>
+ * Each subscriber consumes at its own pace, which gives per-client back-pressure: a client
+ * that reads slowly just falls behind. A subscriber that falls behind by more than the ring
+ * capacity would miss events; it is evicted instead, i.e. its subscription is closed and
+ * its listener told to drop the connection. Clients reconnect with {@code Last-Event-ID}
+ * and resume without loss as long as the events are still in the ring.
+ * <p>
+ * A heartbeat comment is published periodically, so that idle streams stay open through
+ * proxies and connections of vanished clients are detected by the failing write.
+ * <p>
+ * Publishing and blocking waits use a {@link ReentrantLock} (not a monitor, so virtual
+ * threads are never pinned); polling a subscription is lock-free.
+ */
+public final class EventBroadcaster implements Closeable {
+    private static final Logger logger = Logger.getLogger(EventBroadcaster.class.getName());
+    private static final byte[] HEARTBEAT_FRAME = ": heartbeat\n\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final AtomicReferenceArray<Event> ring;
+    private final int mask;
+    private final int maxSubscribers;
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final ScheduledExecutorService heartbeat;
+    // Sequence number of the next event; the ring holds the events before it.
+    private volatile long nextSequence = 1;
+    private volatile boolean stopped;
+
+    private static final class Event {
+        private final long sequence;
+        private final byte[] frame;
+
+        private Event(final long sequence, final byte[] frame) {
+            this.sequence = sequence;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * A subscriber's position in the event ring. Frames are consumed with {@link #poll()} by
+     * a single thread, either blocking in {@link #await()} or woken by the {@link #setListener listener}.
+     */
+    public final class Subscription implements Closeable {
+        private volatile long cursor;
+        private volatile Runnable listener;
+        private volatile boolean closed;
+
+        private Subscription(final long cursor) {
+            this.cursor = cursor;
+        }
+
+        /**
+         * @param listener called on the publishing thread when events are available or the subscription
+         *                 was closed (e.g. evicted); it must not block
+         */
+        public void setListener(final Runnable listener) {
+            this.listener = listener;
+            // Events published before the listener was set must not go unnoticed.
+            if (closed || cursor < nextSequence) {
+                notifyListener();
+            }
+        }
+
+        /**
+         * @return the next frame, or {@code null} if there is none or the subscription is closed
+         */
+        public byte[] poll() {
+            if (closed) {
+                return null;
+            }
+            final long sequence = cursor;
+            if (sequence >= nextSequence) {
+                return null;
+            }
+            final Event event = ring.get(slotOf(sequence));
+            if (event == null || event.sequence != sequence) {
+                // Overwritten before this subscriber read it.
+                evict(this);
+                return null;
+            }
+            cursor = sequence + 1;
+            return event.frame;
+        }
+
+        /**
+         * Blocks until an event is available or the subscription is closed.
+         */
+        public void await() throws InterruptedException {
+            lock.lock();
+            try {
+                while (!closed && cursor >= nextSequence) {
+                    published.await();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void close() {
+            if (subscriptions.remove(this)) {
+                closeSubscription(this);
+            }
+        }
+
+        private void notifyListener() {
+            final Runnable current = listener;
+            if (current != null) {
+                current.run();
+            }
+        }
+    }
+
+    /**
+     * @param capacity          the number of events kept for slow subscribers and resumption; rounded up to a power of two
+     * @param maxSubscribers    the maximum number of concurrent subscriptions
+     * @param heartbeatSeconds  the interval of heartbeat comments
+     */
+    public EventBroadcaster(final int capacity, final int maxSubscribers, final long heartbeatSeconds) {
+        if (capacity <= 0 || capacity > 1 << 20 || maxSubscribers <= 0 || heartbeatSeconds <= 0) {
+            throw new IllegalArgumentException("capacity, maxSubscribers and heartbeatSeconds must be positive");
+        }
+
+        final int ringSize = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.ring = new AtomicReferenceArray<>(ringSize);
+        this.mask = ringSize - 1;
+        this.maxSubscribers = maxSubscribers;
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "event-broadcaster-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.heartbeat.scheduleAtFixedRate(this::publishHeartbeat, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Subscribes to all events published from now on, or, if {@code lastEventId} names an
+     * event still held in the ring, to the events following it.
+     *
+     * @param lastEventId the {@code Last-Event-ID} request header, or {@code null}
+     * @return the subscription, or {@code null} if the subscriber limit is reached or the broadcaster is closed
+     */
+    public Subscription subscribe(final String lastEventId) {
+        lock.lock();
+        try {
+            if (stopped || subscriptions.size() >= maxSubscribers) {
+                return null;
+            }
+            long cursor = nextSequence;
+            final long resumeFrom = parseEventId(lastEventId) + 1;
+            if (resumeFrom > 0 && resumeFrom < cursor && cursor - resumeFrom <= ring.length()) {
+                cursor = resumeFrom;
+            }
+            final Subscription subscription = new Subscription(cursor);
+            subscriptions.add(subscription);
+            return subscription;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Publishes an event to all subscribers. Multi-line data is sent as several {@code data} lines.
+     */
+    public void publish(final String eventName, final String data) {
+        Objects.requireNonNull(eventName, "eventName must not be null");
+        Objects.requireNonNull(data, "data must not be null");
+
+        lock.lock();
+        try {
+            final long sequence = nextSequence;
+            final StringBuilder frame = new StringBuilder(data.length() + eventName.length() + 32)
+                    .append("id: ").append(sequence).append('\n')
+                    .append("event: ").append(eventName).append('\n');
+            appendDataLines(frame, data);
+            append(sequence, frame.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+        } finally {
+            lock.unlock();
+        }
+        events.increment();
+        notifySubscribers();
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    public long getEventCount() {
+        return events.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Closes all subscriptions, which ends their streams.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            stopped = true;
+        } finally {
+            lock.unlock();
+        }
+        heartbeat.shutdownNow();
+        for (Subscription subscription : subscriptions) {
+            subscription.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EventBroadcaster[subscribers=%d, events=%d, evictions=%d]"
+                .formatted(getSubscriberCount(), getEventCount(), getEvictionCount());
+    }
+
+    private void publishHeartbeat() {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        lock.lock();
+        try {
+            append(nextSequence, HEARTBEAT_FRAME);
+        } finally {
+            lock.unlock();
+        }
+        notifySubscribers();
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void append(final long sequence, final byte[] frame) {
+        ring.set(slotOf(sequence), new Event(sequence, frame));
+        // The volatile write publishes the slot to lock-free pollers.
+        nextSequence = sequence + 1;
+        published.signalAll();
+    }
+
+    private void notifySubscribers() {
+        final long next = nextSequence;
+        for (Subscription subscription : subscriptions) {
+            if (next - subscription.cursor > ring.length()) {
+                evict(subscription);
+            } else {
+                subscription.notifyListener();
+            }
+        }
+    }
+
+    private void evict(final Subscription subscription) {
+        if (subscriptions.remove(subscription)) {
+            evictions.increment();
+            logger.log(Level.WARNING, "Evicting slow event stream subscriber");
+            closeSubscription(subscription);
+        }
+    }
+
+    private void closeSubscription(final Subscription subscription) {
+        lock.lock();
+        try {
+            subscription.closed = true;
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        subscription.notifyListener();
+    }
+
+    private int slotOf(final long sequence) {
+        return (int) (sequence & mask);
+    }
+
+    private static void appendDataLines(final StringBuilder frame, final String data) {
+        int lineStart = 0;
+        for (int i = 0; i <= data.length(); i++) {
+            final char c = i < data.length() ? data.charAt(i) : '\n';
+            if (c == '\r' || c == '\n') {
+                frame.append("data: ").append(data, lineStart, i).append('\n');
+                if (c == '\r' && i + 1 < data.length() && data.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                lineStart = i + 1;
+            }
+        }
+    }
+
+    private static long parseEventId(final String lastEventId) {
+        if (lastEventId == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(lastEventId.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
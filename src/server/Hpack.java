@@ -0,0 +1,397 @@
+package server;
+
+import java.io.IOException;
+import java.io.Serial;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541).
+ * <p>
+ * A connection has one {@link Decoder} for the header blocks it receives and one {@link Encoder}
+ * for those it sends, each with its own dynamic table. Both must see the header blocks in the
+ * order they travel on the connection, so each is confined to the thread reading respectively
+ * writing frames.
+ * <p>
+ * The encoder indexes the response headers that repeat from response to response (content
+ * types, {@code cache-control}, {@code vary}, ...), so that after the first response they
+ * take one byte each; string literals are Huffman-coded when that is shorter.
+ */
+final class Hpack {
+    /**
+     * The dynamic table size both ends start with ({@code SETTINGS_HEADER_TABLE_SIZE}).
+     */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    // Every entry is accounted with its name and value length plus this overhead (RFC 7541, section 4.1).
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+            {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+            {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+            {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""}, {"date", ""},
+            {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""}, {"if-match", ""},
+            {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""},
+            {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""},
+            {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+            {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+
+    // Index of the first static entry with a name, respectively with a name and value (joined by '\n').
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\n' + STATIC_TABLE[i][1], i + 1);
+        }
+    }
+
+    /**
+     * A header field; names are in lower case, as HTTP/2 requires.
+     */
+    record Header(String name, String value) {
+        int size() {
+            return name.length() + value.length() + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * A header block that cannot be decoded. The decoder's state is lost with it, so this
+     * is a connection error of type {@code COMPRESSION_ERROR}.
+     */
+    static final class DecodingException extends IOException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        DecodingException(final String message) {
+            super(message);
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Decodes the header blocks of one connection.
+     */
+    static final class Decoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private final int maxTableSize;
+
+        /**
+         * @param maxTableSize the table size advertised to the peer; the peer must not use a larger table
+         */
+        Decoder(final int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            table.setMaxSize(maxTableSize);
+        }
+
+        /**
+         * Decodes a complete header block. A block exceeding {@code maxHeaderListSize} is decoded
+         * nevertheless, since the dynamic table must stay in sync with the peer's.
+         *
+         * @param maxHeaderListSize the maximum sum of {@link Header#size()} over the fields
+         * @return the header fields in order, or {@code null} if they exceed {@code maxHeaderListSize}
+         */
+        List<Header> decode(final byte[] block, final int from, final int to, final int maxHeaderListSize) throws DecodingException {
+            final List<Header> headers = new ArrayList<>();
+            final int[] position = {from};
+            long listSize = 0;
+            boolean fieldSeen = false;
+            while (position[0] < to) {
+                final int first = block[position[0]] & 0xff;
+                final Header header;
+                if ((first & 0x80) != 0) {
+                    header = get(decodeInteger(block, position, to, 7));
+                } else if ((first & 0xe0) == 0x20) {
+                    // A dynamic table size update may only start a block (RFC 7541, section 4.2).
+                    if (fieldSeen) {
+                        throw new DecodingException("Dynamic table size update after a header field");
+                    }
+                    final int size = decodeInteger(block, position, to, 5);
+                    if (size > maxTableSize) {
+                        throw new DecodingException("Dynamic table size update beyond the advertised maximum");
+                    }
+                    table.setMaxSize(size);
+                    continue;
+                } else {
+                    // Literal with incremental indexing (01), without indexing (0000) or never indexed (0001).
+                    final boolean indexing = (first & 0x40) != 0;
+                    final int nameIndex = decodeInteger(block, position, to, indexing ? 6 : 4);
+                    final String name = nameIndex == 0 ? decodeString(block, position, to) : get(nameIndex).name();
+                    header = new Header(name, decodeString(block, position, to));
+                    if (indexing) {
+                        table.add(header);
+                    }
+                }
+                fieldSeen = true;
+                listSize += header.size();
+                if (listSize <= maxHeaderListSize) {
+                    headers.add(header);
+                }
+            }
+            return listSize <= maxHeaderListSize ? headers : null;
+        }
+
+        private Header get(final int index) throws DecodingException {
+            if (index >= 1 && index <= STATIC_TABLE.length) {
+                return new Header(STATIC_TABLE[index - 1][0], STATIC_TABLE[index - 1][1]);
+            }
+            final Header header = table.get(index - STATIC_TABLE.length - 1);
+            if (header == null) {
+                throw new DecodingException("Invalid header table index " + index);
+            }
+            return header;
+        }
+
+        private static int decodeInteger(final byte[] block, final int[] position, final int to, final int prefixBits) throws DecodingException {
+            final int prefixMax = (1 << prefixBits) - 1;
+            int value = block[position[0]++] & prefixMax;
+            if (value < prefixMax) {
+                return value;
+            }
+            for (int shift = 0; ; shift += 7) {
+                if (position[0] == to) {
+                    throw new DecodingException("Truncated integer");
+                }
+                if (shift > 21) {
+                    throw new DecodingException("Integer too large");
+                }
+                final int octet = block[position[0]++] & 0xff;
+                value += (octet & 0x7f) << shift;
+                if ((octet & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        private static String decodeString(final byte[] block, final int[] position, final int to) throws DecodingException {
+            if (position[0] == to) {
+                throw new DecodingException("Truncated string");
+            }
+            final boolean huffman = (block[position[0]] & 0x80) != 0;
+            final int length = decodeInteger(block, position, to, 7);
+            if (length > to - position[0]) {
+                throw new DecodingException("Truncated string");
+            }
+            final int start = position[0];
+            position[0] += length;
+            return huffman ? HpackHuffman.decode(block, start, start + length) : new String(block, start, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Encodes the header blocks of one connection into a reusable buffer.
+     */
+    static final class Encoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private byte[] buffer = new byte[1024];
+        private int length;
+        // The smallest and the last table size set since the previous block; -1 if unchanged.
+        private int smallestSizeUpdate = -1;
+        private int lastSizeUpdate = -1;
+
+        /**
+         * Applies the peer's {@code SETTINGS_HEADER_TABLE_SIZE}. The encoder never uses more
+         * than {@link #DEFAULT_TABLE_SIZE}, however large a table the peer allows.
+         */
+        void setMaxTableSize(final int peerMaxTableSize) {
+            final int size = Math.min(peerMaxTableSize, DEFAULT_TABLE_SIZE);
+            if (size == table.maxSize && lastSizeUpdate < 0) {
+                return;
+            }
+            table.setMaxSize(size);
+            smallestSizeUpdate = smallestSizeUpdate < 0 ? size : Math.min(smallestSizeUpdate, size);
+            lastSizeUpdate = size;
+        }
+
+        /**
+         * Starts a new header block, discarding the previous one.
+         */
+        Encoder startBlock() {
+            length = 0;
+            // Signal the table size changes (RFC 7541, section 4.2).
+            if (lastSizeUpdate >= 0) {
+                if (smallestSizeUpdate < lastSizeUpdate) {
+                    encodeInteger(0x20, 5, smallestSizeUpdate);
+                }
+                encodeInteger(0x20, 5, lastSizeUpdate);
+                smallestSizeUpdate = -1;
+                lastSizeUpdate = -1;
+            }
+            return this;
+        }
+
+        /**
+         * Appends a header field to the block.
+         *
+         * @param name     the name in lower case
+         * @param indexing whether to add the field to the dynamic table; worthwhile for fields that
+         *                 recur on the connection, wasteful for one-off values like {@code content-length}
+         */
+        Encoder header(final String name, final String value, final boolean indexing) {
+            final Integer staticField = STATIC_FIELDS.get(name + '\n' + value);
+            if (staticField != null) {
+                encodeInteger(0x80, 7, staticField);
+                return this;
+            }
+            final int dynamicField = table.indexOf(name, value);
+            if (dynamicField >= 0) {
+                encodeInteger(0x80, 7, dynamicField + STATIC_TABLE.length + 1);
+                return this;
+            }
+
+            final Integer staticName = STATIC_NAMES.get(name);
+            int nameIndex = staticName != null ? staticName : 0;
+            if (nameIndex == 0) {
+                final int dynamicName = table.indexOfName(name);
+                nameIndex = dynamicName >= 0 ? dynamicName + STATIC_TABLE.length + 1 : 0;
+            }
+            if (indexing) {
+                encodeInteger(0x40, 6, nameIndex);
+                table.add(new Header(name, value));
+            } else {
+                encodeInteger(0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0) {
+                encodeString(name);
+            }
+            encodeString(value);
+            return this;
+        }
+
+        byte[] getBuffer() {
+            return buffer;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        private void encodeInteger(final int pattern, final int prefixBits, int value) {
+            ensureCapacity(6);
+            final int prefixMax = (1 << prefixBits) - 1;
+            if (value < prefixMax) {
+                buffer[length++] = (byte) (pattern | value);
+                return;
+            }
+            buffer[length++] = (byte) (pattern | prefixMax);
+            value -= prefixMax;
+            while (value >= 0x80) {
+                buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        private void encodeString(final String value) {
+            final byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            final int huffmanLength = HpackHuffman.encodedLength(bytes, 0, bytes.length);
+            if (huffmanLength < bytes.length) {
+                encodeInteger(0x80, 7, huffmanLength);
+                ensureCapacity(huffmanLength);
+                length = HpackHuffman.encode(bytes, 0, bytes.length, buffer, length);
+            } else {
+                encodeInteger(0x00, 7, bytes.length);
+                ensureCapacity(bytes.length);
+                System.arraycopy(bytes, 0, buffer, length, bytes.length);
+                length += bytes.length;
+            }
+        }
+
+        private void ensureCapacity(final int additional) {
+            if (length + additional > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+            }
+        }
+    }
+
+    /**
+     * The dynamic table: a ring of entries, newest first, evicted oldest first when the
+     * table would exceed its maximum size.
+     */
+    private static final class DynamicTable {
+        private Header[] entries = new Header[16];
+        // Position of the newest entry in the ring.
+        private int head;
+        private int count;
+        private int size;
+        private int maxSize;
+
+        DynamicTable(final int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * @param index 0 for the newest entry
+         * @return the entry, or {@code null} if there is none at {@code index}
+         */
+        Header get(final int index) {
+            return index >= 0 && index < count ? entries[(head + index) % entries.length] : null;
+        }
+
+        int indexOf(final String name, final String value) {
+            for (int i = 0; i < count; i++) {
+                final Header header = get(i);
+                if (header.name().equals(name) && header.value().equals(value)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int indexOfName(final String name) {
+            for (int i = 0; i < count; i++) {
+                if (get(i).name().equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void add(final Header header) {
+            // An entry larger than the table empties it and is not added (RFC 7541, section 4.4).
+            evictUntil(maxSize - header.size());
+            if (header.size() > maxSize) {
+                return;
+            }
+            if (count == entries.length) {
+                final Header[] grown = new Header[entries.length * 2];
+                for (int i = 0; i < count; i++) {
+                    grown[i] = get(i);
+                }
+                entries = grown;
+                head = 0;
+            }
+            head = (head - 1 + entries.length) % entries.length;
+            entries[head] = header;
+            count++;
+            size += header.size();
+        }
+
+        void setMaxSize(final int maxSize) {
+            this.maxSize = maxSize;
+            evictUntil(maxSize);
+        }
+
+        private void evictUntil(final int targetSize) {
+            while (count > 0 && size > targetSize) {
+                final int oldest = (head + count - 1) % entries.length;
+                size -= entries[oldest].size();
+                entries[oldest] = null;
+                count--;
+            }
+        }
+    }
+}
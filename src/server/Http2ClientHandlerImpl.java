@@ -0,0 +1,61 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP/2 version of the HttpClientHandler for cleartext connections ("h2c"), see {@link Http2Connection}.
+ * <p>
+ * {@link #handleClient(Socket)} serves clients that open the connection with the HTTP/2 preface
+ * ("prior knowledge"). Connections that switch to HTTP/2 after they were accepted as HTTP/1.1, by
+ * sending the preface or a request with {@code Upgrade: h2c}, are handed over by
+ * {@link KeepAliveHttpClientHandlerImpl} via {@link #serve(Socket, InputStream, HttpResponse, byte[])}.
+ * <p>
+ * Unlike HTTP/1.1, where a browser opens several connections to fetch a page's assets in parallel,
+ * all requests of a client share one connection, and therefore one pool thread (plus a virtual
+ * thread writing the responses).
+ */
+public class Http2ClientHandlerImpl implements HttpClientHandler {
+    private static final Logger logger = Logger.getLogger(Http2ClientHandlerImpl.class.getName());
+
+    private final HttpRequestProcessor requestProcessor;
+    private final IdleConnectionReaper idleConnectionReaper;
+
+    public Http2ClientHandlerImpl(final HttpRequestProcessor requestProcessor, final IdleConnectionReaper idleConnectionReaper) {
+        Objects.requireNonNull(requestProcessor, "requestProcessor must not be null");
+        Objects.requireNonNull(idleConnectionReaper, "idleConnectionReaper must not be null");
+        this.requestProcessor = requestProcessor;
+        this.idleConnectionReaper = idleConnectionReaper;
+    }
+
+    @Override
+    public void handleClient(final Socket socket) throws IOException {
+        Objects.requireNonNull(socket, "socket must not be null");
+
+        final ServerMetrics metrics = requestProcessor.getMetrics();
+        metrics.connectionOpened();
+        int requests = 0;
+        try (socket) {
+            requests = serve(socket, socket.getInputStream(), null, null);
+        } finally {
+            metrics.connectionClosed(requests);
+            logger.log(Level.FINE, "Socket closed");
+        }
+    }
+
+    /**
+     * Serves an HTTP/2 connection until it ends; the socket is closed on return.
+     *
+     * @param in              the socket's input, positioned at the client connection preface
+     * @param upgradeResponse the response to the HTTP/1.1 request that asked for the upgrade, or {@code null}
+     * @param upgradeSettings the decoded {@code HTTP2-Settings} header of that request
+     * @return the number of requests served
+     */
+    int serve(final Socket socket, final InputStream in, final HttpResponse upgradeResponse, final byte[] upgradeSettings) throws IOException {
+        return new Http2Connection(socket, in, requestProcessor, idleConnectionReaper).serve(upgradeResponse, upgradeSettings);
+    }
+}
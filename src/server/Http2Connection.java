@@ -0,0 +1,1441 @@
+package server;
+
+import common.Constants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serial;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One HTTP/2 connection (RFC 9113) over a blocking socket, serving all its streams with two threads.
+ * <p>
+ * The handler's thread reads frames: it decodes header blocks ({@link Hpack}), collects request
+ * bodies within the receive windows and hands every complete request to the {@link HttpRequestProcessor}
+ * at once, so no request waits for the response to another one. A writer thread sends control
+ * frames first, then the headers of new responses, then DATA frames of at most 16 KB. For each DATA
+ * frame it picks, among the responses with send window left, the one with the most urgent priority:
+ * responses of equal urgency are sent in stream order, or take turns frame by frame if the client
+ * marked them incremental. Priorities follow RFC 9218, signalled by the {@code priority} request
+ * header or {@code PRIORITY_UPDATE} frames; the dependency tree of RFC 7540 is deprecated and ignored.
+ * A large file therefore does not hold up the small responses behind it, nor does a stream whose
+ * client stopped reading hold up the others.
+ * <p>
+ * The connection is closed by the {@link IdleConnectionReaper} when for
+ * {@link Constants#KEEP_ALIVE_TIMEOUT_MILLI_SECONDS} no request was being processed or answered, whether it
+ * was idle or the client did not finish its requests, and sends {@code GOAWAY} after
+ * {@link Constants#MAX_REQUESTS_PER_CONNECTION} streams. A client that provokes control frames
+ * (e.g. PING or SETTINGS acknowledgements) faster than it reads them is disconnected with
+ * {@code ENHANCE_YOUR_CALM}. Server push is not supported.
+ */
+final class Http2Connection {
+    private static final Logger logger = Logger.getLogger(Http2Connection.class.getName());
+
+    static final byte[] CLIENT_PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_PRIORITY = 0x2;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+    private static final int TYPE_PRIORITY_UPDATE = 0x10;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int NO_ERROR = 0x0;
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int INTERNAL_ERROR = 0x2;
+    private static final int FLOW_CONTROL_ERROR = 0x3;
+    private static final int STREAM_CLOSED = 0x5;
+    private static final int FRAME_SIZE_ERROR = 0x6;
+    private static final int REFUSED_STREAM = 0x7;
+    private static final int COMPRESSION_ERROR = 0x9;
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private static final int FRAME_HEADER_BYTES = 9;
+    // The frame size both ends start with; the server neither accepts nor sends larger frames.
+    private static final int MAX_FRAME_SIZE = 16_384;
+    private static final int MAX_FRAME_SIZE_LIMIT = 16_777_215;
+    private static final int DEFAULT_WINDOW_SIZE = 65_535;
+    private static final int DEFAULT_URGENCY = 3;
+    // How long the writer may take to send what is left (e.g. GOAWAY) once the connection ends.
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+    // Control frames waiting for the writer. A client that provokes them (PING, SETTINGS, resets, ...) faster than
+    // it reads them would otherwise grow the queue without bound; beyond this it is disconnected.
+    private static final int MAX_QUEUED_CONTROL_FRAMES = 256;
+    // States of the request deadline.
+    private static final int DEADLINE_DISARMED = 0;
+    private static final int DEADLINE_ARMED = 1;
+    private static final int DEADLINE_EXPIRED = 2;
+    // Headers that are specific to an HTTP/1.1 connection and make an HTTP/2 request malformed.
+    private static final Set<String> CONNECTION_SPECIFIC_HEADERS = Set.of("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+    // Response headers whose values rarely repeat on a connection, so indexing them would only evict useful entries.
+    private static final Set<String> UNINDEXED_HEADERS = Set.of("content-length", "content-range");
+
+    private final Socket socket;
+    private final InetAddress client;
+    private final InputStream in;
+    private final OutputStream out;
+    private final HttpRequestProcessor requestProcessor;
+    private final IdleConnectionReaper.Timeout requestTimeout;
+    // Whichever of the reaper (ARMED -> EXPIRED) and a request becoming complete (ARMED -> DISARMED) wins decides
+    // whether the connection is closed or the request processed, so that a request is never processed on a closed socket.
+    private final AtomicInteger requestDeadline = new AtomicInteger(DEADLINE_DISARMED);
+
+    // Only accessed by the reading thread.
+    private final Hpack.Decoder hpackDecoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final byte[] frameHeader = new byte[FRAME_HEADER_BYTES];
+    private final byte[] payload = new byte[MAX_FRAME_SIZE];
+    private byte[] headerBlock = new byte[1024];
+    private int headerBlockLength;
+    // The stream whose header block is being received in CONTINUATION frames, or 0.
+    private int headerBlockStreamId;
+    private boolean headerBlockEndsStream;
+    private int lastStreamId;
+    private int streamCount;
+    private int connectionReceiveWindow = DEFAULT_WINDOW_SIZE;
+
+    // Only accessed by the writer thread.
+    private final Hpack.Encoder hpackEncoder = new Hpack.Encoder();
+    private final byte[] dataFrame = new byte[FRAME_HEADER_BYTES + MAX_FRAME_SIZE];
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled whenever the writer may have something to send.
+    private final Condition writable = lock.newCondition();
+    // Guarded by lock.
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private final ArrayDeque<byte[]> controlFrames = new ArrayDeque<>();
+    private final ArrayDeque<Stream> pendingHeaders = new ArrayDeque<>();
+    private final List<Stream> sendingStreams = new ArrayList<>();
+    private final ArrayDeque<Stream> releasedStreams = new ArrayDeque<>();
+    private int connectionSendWindow = DEFAULT_WINDOW_SIZE;
+    private int initialSendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerHeaderTableSize = Hpack.DEFAULT_TABLE_SIZE;
+    private int nextIncremental;
+    // Streams whose request is complete or answered: while there are none, the request deadline runs.
+    private int activeStreams;
+    // Set when a control frame did not fit into the queue; the reading thread then ends the connection.
+    private volatile boolean controlFramesOverflowed;
+    // No new streams are accepted; the connection ends once the open ones are done.
+    private boolean goingAway;
+    private boolean readerDone;
+    private boolean writerDone;
+
+    /**
+     * A request/response exchange. Its state is guarded by the connection's lock, except for
+     * the request and its receive window (reading thread) and the response body position (writer thread).
+     */
+    private static final class Stream {
+        private final int id;
+        private int sendWindow;
+        private int receiveWindow = DEFAULT_WINDOW_SIZE;
+        private int urgency = DEFAULT_URGENCY;
+        private boolean incremental;
+        // The client sent END_STREAM (or the stream was opened by an upgrade).
+        private boolean remoteClosed;
+        // Counted in activeStreams.
+        private boolean active;
+        private boolean reset;
+        private HttpResponse response;
+        private boolean eventsAvailable;
+
+        // Only accessed by the reading thread.
+        private Request request;
+        private byte[] body = new byte[0];
+        private int bodyLength;
+
+        // Only accessed by the writer thread.
+        private long bodySent;
+        private FileChannel fileChannel;
+        private int regionIndex;
+        private long regionPosition;
+        private byte[] eventFrame;
+        private int eventFrameOffset;
+
+        private Stream(final int id, final int sendWindow) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+        }
+
+        /**
+         * Copies up to {@code max} bytes of the response body that are available now.
+         *
+         * @return the number of bytes copied
+         */
+        private int readBody(final byte[] destination, final int offset, final int max) throws IOException {
+            int position = offset;
+            final int end = offset + max;
+            if (response.isEventStream()) {
+                while (position < end) {
+                    if (eventFrame == null || eventFrameOffset == eventFrame.length) {
+                        eventFrame = response.getEventStream().poll();
+                        eventFrameOffset = 0;
+                        if (eventFrame == null) {
+                            break;
+                        }
+                    }
+                    final int length = Math.min(end - position, eventFrame.length - eventFrameOffset);
+                    System.arraycopy(eventFrame, eventFrameOffset, destination, position, length);
+                    eventFrameOffset += length;
+                    position += length;
+                }
+            } else if (response.hasFileBody()) {
+                position = readFileRegions(destination, position, end);
+            } else {
+                final int length = (int) Math.min(end - position, response.getContentLength() - bodySent);
+                System.arraycopy(response.getBody(), (int) bodySent, destination, position, length);
+                position += length;
+            }
+            bodySent += position - offset;
+            return position - offset;
+        }
+
+        private int readFileRegions(final byte[] destination, int position, final int end) throws IOException {
+            final List<HttpResponse.FileRegion> regions = response.getFileRegions();
+            while (position < end && regionIndex <= regions.size()) {
+                final byte[] head = regionIndex < regions.size() ? regions.get(regionIndex).head() : response.getFileTail();
+                if (regionPosition < head.length) {
+                    final int length = (int) Math.min(end - position, head.length - regionPosition);
+                    System.arraycopy(head, (int) regionPosition, destination, position, length);
+                    regionPosition += length;
+                    position += length;
+                    continue;
+                }
+                if (regionIndex == regions.size()) {
+                    regionIndex++;
+                    break;
+                }
+                final HttpResponse.FileRegion region = regions.get(regionIndex);
+                final long fileOffset = regionPosition - head.length;
+                if (fileOffset == region.length()) {
+                    regionIndex++;
+                    regionPosition = 0;
+                    continue;
+                }
+                final int length = (int) Math.min(end - position, region.length() - fileOffset);
+                final int read = fileChannel.read(ByteBuffer.wrap(destination, position, length), region.offset() + fileOffset);
+                if (read < 0) {
+                    throw new IOException("File %s was truncated while being sent".formatted(response.getFile()));
+                }
+                regionPosition += read;
+                position += read;
+            }
+            return position;
+        }
+
+        private boolean isBodyComplete() {
+            if (response.isEventStream()) {
+                // A closed subscription has nothing more to poll.
+                return response.getEventStream().isClosed();
+            }
+            return bodySent == response.getContentLength();
+        }
+
+        /**
+         * Opens the file of a file body, failing before the headers are sent if it was truncated.
+         */
+        private void openFile() throws IOException {
+            fileChannel = FileChannel.open(response.getFile(), StandardOpenOption.READ);
+            if (fileChannel.size() < response.getFileRegionsEnd()) {
+                throw new IOException("File %s was truncated before being sent".formatted(response.getFile()));
+            }
+        }
+
+        private void release() {
+            if (fileChannel != null) {
+                try {
+                    fileChannel.close();
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Error closing file", e);
+                }
+            }
+            if (response != null && response.isEventStream()) {
+                response.getEventStream().close();
+            }
+        }
+    }
+
+    /**
+     * A request received on a stream. Header values of fields repeated in the header block are joined.
+     */
+    private static final class Request implements HttpRequest {
+        private final String method;
+        private final String path;
+        private final Map<String, String> headers;
+        private byte[] body;
+
+        private Request(final String method, final String path, final Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+        }
+
+        @Override
+        public String getMethod() {
+            return method;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public String getHeader(final String lowerCaseName) {
+            return headers.get(lowerCaseName);
+        }
+
+        @Override
+        public byte[] getBody() {
+            return body;
+        }
+
+        @Override
+        public String toString() {
+            return getMethod() + " " + getPath();
+        }
+    }
+
+    /**
+     * An error that ends the connection with {@code GOAWAY}.
+     */
+    private static final class ConnectionError extends IOException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final int errorCode;
+
+        private ConnectionError(final int errorCode, final String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+    }
+
+    /**
+     * Work for one iteration of the writer: a control frame, the headers of a response, or a DATA
+     * frame of up to {@code credit} bytes.
+     */
+    private record Work(byte[] controlFrame, Stream headers, Stream data, int credit) {
+    }
+
+    /**
+     * @param in the socket's input, positioned at the client connection preface
+     */
+    Http2Connection(final Socket socket, final InputStream in, final HttpRequestProcessor requestProcessor, final IdleConnectionReaper idleConnectionReaper)
+            throws IOException {
+        Objects.requireNonNull(socket, "socket must not be null");
+        Objects.requireNonNull(in, "in must not be null");
+        Objects.requireNonNull(requestProcessor, "requestProcessor must not be null");
+        Objects.requireNonNull(idleConnectionReaper, "idleConnectionReaper must not be null");
+
+        this.socket = socket;
+        this.client = socket.getInetAddress();
+        this.in = new BufferedInputStream(in, FRAME_HEADER_BYTES + MAX_FRAME_SIZE);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), FRAME_HEADER_BYTES + MAX_FRAME_SIZE);
+        this.requestProcessor = requestProcessor;
+        // Closing the socket makes the blocked read fail, which ends the connection.
+        this.requestTimeout = idleConnectionReaper.newTimeout(() -> {
+            if (requestDeadline.compareAndSet(DEADLINE_ARMED, DEADLINE_EXPIRED)) {
+                KeepAliveHttpClientHandlerImpl.closeQuietly(socket);
+            }
+        });
+    }
+
+    /**
+     * Serves the connection until the client closes it, it is idle for too long or a connection error occurs.
+     * The socket is closed on return.
+     *
+     * @param upgradeResponse the response to the HTTP/1.1 request that upgraded the connection, sent on
+     *                        stream 1, or {@code null} if the client started with HTTP/2
+     * @param upgradeSettings the payload of the client's SETTINGS from the {@code HTTP2-Settings} header of that request
+     * @return the number of streams served
+     */
+    int serve(final HttpResponse upgradeResponse, final byte[] upgradeSettings) {
+        // The server connection preface.
+        queueControlFrame(frame(TYPE_SETTINGS, 0, 0, settingsPayload()));
+        final Thread writer = Thread.ofVirtual().name("http2-writer-" + socket.getPort()).start(this::writeFrames);
+        try {
+            if (upgradeResponse != null) {
+                applySettings(upgradeSettings, 0, upgradeSettings.length);
+                lastStreamId = 1;
+                streamCount = 1;
+                final Stream stream = openStream(1);
+                lock.lock();
+                try {
+                    stream.remoteClosed = true;
+                    activate(stream);
+                } finally {
+                    lock.unlock();
+                }
+                respond(stream, upgradeResponse);
+            } else {
+                lock.lock();
+                try {
+                    updateRequestDeadline();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            readPreface();
+            readFrames();
+        } catch (ConnectionError e) {
+            logger.log(Level.FINE, "HTTP/2 connection error", e);
+            goAway(e.errorCode);
+        } catch (Hpack.DecodingException e) {
+            logger.log(Level.FINE, "HPACK decoding error", e);
+            goAway(COMPRESSION_ERROR);
+        } catch (IOException e) {
+            // Also when the connection was reaped, or the writer failed, and the socket closed under the reader.
+            logger.log(Level.FINE, "HTTP/2 connection closed", e);
+        } finally {
+            requestTimeout.cancel();
+            lock.lock();
+            try {
+                readerDone = true;
+                writable.signal();
+            } finally {
+                lock.unlock();
+            }
+            // Give the writer a moment to send what is queued (e.g. GOAWAY), unless the client stopped reading.
+            join(writer, CLOSE_TIMEOUT_MILLIS);
+            KeepAliveHttpClientHandlerImpl.closeQuietly(socket);
+            join(writer, 0);
+        }
+        return streamCount;
+    }
+
+    private void readPreface() throws IOException {
+        final byte[] preface = in.readNBytes(CLIENT_PREFACE.length);
+        if (!Arrays.equals(preface, CLIENT_PREFACE)) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid connection preface");
+        }
+    }
+
+    private void readFrames() throws IOException {
+        boolean settingsExpected = true;
+        while (true) {
+            if (in.readNBytes(frameHeader, 0, FRAME_HEADER_BYTES) < FRAME_HEADER_BYTES) {
+                return;
+            }
+            final int length = ((frameHeader[0] & 0xff) << 16) | ((frameHeader[1] & 0xff) << 8) | (frameHeader[2] & 0xff);
+            final int type = frameHeader[3] & 0xff;
+            final int flags = frameHeader[4] & 0xff;
+            final int streamId = readInt(frameHeader, 5) & 0x7fffffff;
+            if (length > MAX_FRAME_SIZE) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "Frame of %d bytes".formatted(length));
+            }
+            if (in.readNBytes(payload, 0, length) < length) {
+                return;
+            }
+            // The client preface ends with a SETTINGS frame.
+            if (settingsExpected && type != TYPE_SETTINGS) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Expected SETTINGS");
+            }
+            settingsExpected = false;
+            if (headerBlockStreamId != 0 && (type != TYPE_CONTINUATION || streamId != headerBlockStreamId)) {
+                throw new ConnectionError(PROTOCOL_ERROR, "Expected CONTINUATION");
+            }
+
+            switch (type) {
+                case TYPE_DATA -> onData(flags, streamId, length);
+                case TYPE_HEADERS -> onHeaders(flags, streamId, length);
+                case TYPE_PRIORITY -> onPriority(streamId, length);
+                case TYPE_RST_STREAM -> onRstStream(streamId, length);
+                case TYPE_SETTINGS -> onSettings(flags, streamId, length);
+                case TYPE_PUSH_PROMISE -> throw new ConnectionError(PROTOCOL_ERROR, "PUSH_PROMISE sent by a client");
+                case TYPE_PING -> onPing(flags, streamId, length);
+                case TYPE_GOAWAY -> onGoAway(streamId, length);
+                case TYPE_WINDOW_UPDATE -> onWindowUpdate(streamId, length);
+                case TYPE_CONTINUATION -> onContinuation(flags, streamId, length);
+                case TYPE_PRIORITY_UPDATE -> onPriorityUpdate(streamId, length);
+                default -> {
+                    // Frames of unknown types are ignored (RFC 9113, section 4.1).
+                }
+            }
+            if (controlFramesOverflowed) {
+                throw new ConnectionError(ENHANCE_YOUR_CALM, "Too many control frames queued");
+            }
+        }
+    }
+
+    private void onData(final int flags, final int streamId, final int length) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        // Flow control counts the whole payload, padding included.
+        if (length > connectionReceiveWindow) {
+            throw new ConnectionError(FLOW_CONTROL_ERROR, "Connection receive window exceeded");
+        }
+        connectionReceiveWindow -= length;
+        if (connectionReceiveWindow < DEFAULT_WINDOW_SIZE / 2) {
+            queueControlFrame(windowUpdateFrame(0, DEFAULT_WINDOW_SIZE - connectionReceiveWindow));
+            connectionReceiveWindow = DEFAULT_WINDOW_SIZE;
+        }
+        final int dataEnd = length - padding(flags, length);
+
+        final Stream stream = getStream(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new ConnectionError(PROTOCOL_ERROR, "DATA on idle stream");
+            }
+            // The stream was closed (e.g. reset) while the client was still sending.
+            return;
+        }
+        if (isRemoteClosed(stream)) {
+            resetStream(stream, STREAM_CLOSED);
+            return;
+        }
+        if (length > stream.receiveWindow) {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+            return;
+        }
+        stream.receiveWindow -= length;
+        final boolean endStream = (flags & FLAG_END_STREAM) != 0;
+
+        if (stream.request != null) {
+            final int dataStart = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+            final int dataLength = dataEnd - dataStart;
+            if (stream.bodyLength + dataLength > Constants.MAX_REQUEST_BODY_BYTES) {
+                respondEarly(stream, requestProcessor.rejectedRequestResponse(HttpRequestParser.Result.BODY_TOO_LARGE, client));
+            } else {
+                if (stream.bodyLength + dataLength > stream.body.length) {
+                    stream.body = Arrays.copyOf(stream.body, Math.min(Math.max(stream.body.length * 2, stream.bodyLength + dataLength),
+                            Constants.MAX_REQUEST_BODY_BYTES));
+                }
+                System.arraycopy(payload, dataStart, stream.body, stream.bodyLength, dataLength);
+                stream.bodyLength += dataLength;
+                if (!endStream && stream.receiveWindow < DEFAULT_WINDOW_SIZE / 2) {
+                    queueControlFrame(windowUpdateFrame(streamId, DEFAULT_WINDOW_SIZE - stream.receiveWindow));
+                    stream.receiveWindow = DEFAULT_WINDOW_SIZE;
+                }
+            }
+        }
+        if (endStream) {
+            completeRequest(stream);
+        }
+    }
+
+    private void onHeaders(final int flags, final int streamId, final int length) throws IOException {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        final int end = length - padding(flags, length);
+        int start = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        if ((flags & FLAG_PRIORITY) != 0) {
+            // Stream dependency and weight, deprecated by RFC 9113.
+            start += 5;
+        }
+        if (start > end) {
+            throw new ConnectionError(PROTOCOL_ERROR, "HEADERS too short");
+        }
+        headerBlockStreamId = streamId;
+        headerBlockEndsStream = (flags & FLAG_END_STREAM) != 0;
+        headerBlockLength = 0;
+        appendHeaderBlock(start, end);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onContinuation(final int flags, final int streamId, final int length) throws IOException {
+        if (headerBlockStreamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "CONTINUATION without HEADERS on stream " + streamId);
+        }
+        appendHeaderBlock(0, length);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void appendHeaderBlock(final int from, final int to) throws ConnectionError {
+        final int length = to - from;
+        // A block larger than the header list it encodes is no legitimate use of HPACK.
+        if (headerBlockLength + length > Constants.MAX_REQUEST_HEADER_BYTES) {
+            throw new ConnectionError(ENHANCE_YOUR_CALM, "Header block too large");
+        }
+        if (headerBlockLength + length > headerBlock.length) {
+            headerBlock = Arrays.copyOf(headerBlock, Math.max(headerBlock.length * 2, headerBlockLength + length));
+        }
+        System.arraycopy(payload, from, headerBlock, headerBlockLength, length);
+        headerBlockLength += length;
+    }
+
+    /**
+     * Handles a complete header block: opens a stream for a request, or ends one with trailers.
+     */
+    private void onHeaderBlock() throws IOException {
+        final int streamId = headerBlockStreamId;
+        headerBlockStreamId = 0;
+        // Decoded in any case, to keep the dynamic table in sync with the client's.
+        final List<Hpack.Header> headers = hpackDecoder.decode(headerBlock, 0, headerBlockLength, Constants.MAX_REQUEST_HEADER_BYTES);
+
+        if ((streamId & 1) == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Stream %d not initiated by the client".formatted(streamId));
+        }
+        if (streamId <= lastStreamId) {
+            final Stream stream = getStream(streamId);
+            if (stream == null) {
+                // Trailers of a stream closed meanwhile.
+                return;
+            }
+            if (isRemoteClosed(stream)) {
+                resetStream(stream, STREAM_CLOSED);
+            } else if (!headerBlockEndsStream) {
+                // Trailers must end the stream (RFC 9113, section 8.1).
+                resetStream(stream, PROTOCOL_ERROR);
+            } else {
+                completeRequest(stream);
+            }
+            return;
+        }
+
+        lastStreamId = streamId;
+        lock.lock();
+        try {
+            if (goingAway) {
+                // Streams the client opened after (or without seeing) our GOAWAY are not processed.
+                return;
+            }
+            if (streams.size() >= Constants.HTTP2_MAX_CONCURRENT_STREAMS) {
+                queueControlFrame(rstStreamFrame(streamId, REFUSED_STREAM));
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        final Stream stream = openStream(streamId);
+        if (++streamCount >= Constants.MAX_REQUESTS_PER_CONNECTION) {
+            goAway(NO_ERROR);
+        }
+        final Request request = headers != null ? newRequest(headers) : null;
+        if (request == null) {
+            if (headerBlockEndsStream) {
+                lock.lock();
+                try {
+                    stream.remoteClosed = true;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            respondEarly(stream, requestProcessor.rejectedRequestResponse(
+                    headers == null ? HttpRequestParser.Result.HEADERS_TOO_LARGE : HttpRequestParser.Result.BAD_REQUEST, client));
+            return;
+        }
+        stream.request = request;
+        final String priority = request.getHeader("priority");
+        if (priority != null) {
+            lock.lock();
+            try {
+                applyPriority(stream, priority);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (headerBlockEndsStream) {
+            completeRequest(stream);
+        }
+    }
+
+    private void onPriority(final int streamId, final int length) throws ConnectionError {
+        if (streamId == 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "PRIORITY on stream 0");
+        }
+        if (length != 5) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "PRIORITY of %d bytes".formatted(length));
+        }
+        // Deprecated by RFC 9113; the RFC 9218 signals are used instead.
+    }
+
+    private void onPriorityUpdate(final int streamId, final int length) throws ConnectionError {
+        if (streamId != 0 || length < 4) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Invalid PRIORITY_UPDATE");
+        }
+        final int prioritizedStreamId = readInt(payload, 0) & 0x7fffffff;
+        final String priority = new String(payload, 4, length - 4, StandardCharsets.US_ASCII);
+        lock.lock();
+        try {
+            final Stream stream = streams.get(prioritizedStreamId);
+            if (stream != null) {
+                applyPriority(stream, priority);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onRstStream(final int streamId, final int length) throws ConnectionError {
+        if (length != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "RST_STREAM of %d bytes".formatted(length));
+        }
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new ConnectionError(PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+        }
+        lock.lock();
+        try {
+            final Stream stream = streams.get(streamId);
+            if (stream != null) {
+                closeStream(stream);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onSettings(final int flags, final int streamId, final int length) throws ConnectionError {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS acknowledgement with payload");
+            }
+            return;
+        }
+        applySettings(payload, 0, length);
+        queueControlFrame(frame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0]));
+    }
+
+    private void applySettings(final byte[] settings, final int from, final int to) throws ConnectionError {
+        if ((to - from) % 6 != 0) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "SETTINGS of %d bytes".formatted(to - from));
+        }
+        lock.lock();
+        try {
+            for (int position = from; position < to; position += 6) {
+                final int identifier = ((settings[position] & 0xff) << 8) | (settings[position + 1] & 0xff);
+                final long value = readInt(settings, position + 2) & 0xffffffffL;
+                switch (identifier) {
+                    case SETTINGS_HEADER_TABLE_SIZE -> peerHeaderTableSize = (int) Math.min(value, Integer.MAX_VALUE);
+                    case SETTINGS_ENABLE_PUSH -> {
+                        if (value > 1) {
+                            throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                        }
+                    }
+                    case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                        if (value > Integer.MAX_VALUE) {
+                            throw new ConnectionError(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                        }
+                        // Applies to the open streams as well, whose windows may even become negative (RFC 9113, section 6.9.2).
+                        final int delta = (int) value - initialSendWindow;
+                        for (Stream stream : streams.values()) {
+                            if ((long) stream.sendWindow + delta > Integer.MAX_VALUE) {
+                                throw new ConnectionError(FLOW_CONTROL_ERROR, "Stream send window overflow");
+                            }
+                            stream.sendWindow += delta;
+                        }
+                        initialSendWindow = (int) value;
+                    }
+                    case SETTINGS_MAX_FRAME_SIZE -> {
+                        // Any valid value is fine, since the server never sends frames above the minimum.
+                        if (value < MAX_FRAME_SIZE || value > MAX_FRAME_SIZE_LIMIT) {
+                            throw new ConnectionError(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                        }
+                    }
+                    default -> {
+                        // SETTINGS_MAX_CONCURRENT_STREAMS and SETTINGS_MAX_HEADER_LIST_SIZE do not constrain a server
+                        // that neither pushes nor sends large headers; unknown settings are ignored.
+                    }
+                }
+            }
+            writable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onPing(final int flags, final int streamId, final int length) throws ConnectionError {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "PING on stream " + streamId);
+        }
+        if (length != 8) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "PING of %d bytes".formatted(length));
+        }
+        if ((flags & FLAG_ACK) == 0) {
+            queueControlFrame(frame(TYPE_PING, FLAG_ACK, 0, Arrays.copyOf(payload, 8)));
+        }
+    }
+
+    private void onGoAway(final int streamId, final int length) throws ConnectionError {
+        if (streamId != 0) {
+            throw new ConnectionError(PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+        }
+        if (length < 8) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "GOAWAY of %d bytes".formatted(length));
+        }
+        final int errorCode = readInt(payload, 4);
+        if (errorCode != NO_ERROR) {
+            logger.log(Level.FINE, "Client sent GOAWAY with error code %d".formatted(errorCode));
+        }
+        lock.lock();
+        try {
+            goingAway = true;
+            writable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onWindowUpdate(final int streamId, final int length) throws ConnectionError {
+        if (length != 4) {
+            throw new ConnectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE of %d bytes".formatted(length));
+        }
+        final int increment = readInt(payload, 0) & 0x7fffffff;
+        lock.lock();
+        try {
+            if (streamId == 0) {
+                if (increment == 0 || (long) connectionSendWindow + increment > Integer.MAX_VALUE) {
+                    throw new ConnectionError(increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR, "Invalid connection WINDOW_UPDATE");
+                }
+                connectionSendWindow += increment;
+            } else {
+                if (streamId > lastStreamId) {
+                    throw new ConnectionError(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+                }
+                final Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                if (increment == 0) {
+                    resetStream(stream, PROTOCOL_ERROR);
+                    return;
+                }
+                if ((long) stream.sendWindow + increment > Integer.MAX_VALUE) {
+                    resetStream(stream, FLOW_CONTROL_ERROR);
+                    return;
+                }
+                stream.sendWindow += increment;
+            }
+            writable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of padding bytes at the end of a DATA or HEADERS frame (its pad length field comes first)
+     */
+    private int padding(final int flags, final int length) throws ConnectionError {
+        if ((flags & FLAG_PADDED) == 0) {
+            return 0;
+        }
+        if (length < 1 || (payload[0] & 0xff) >= length) {
+            throw new ConnectionError(PROTOCOL_ERROR, "Padding exceeds payload");
+        }
+        return payload[0] & 0xff;
+    }
+
+    /**
+     * Builds the request from the decoded header fields.
+     *
+     * @return the request, or {@code null} if it is malformed (RFC 9113, section 8.1.1)
+     */
+    private static Request newRequest(final List<Hpack.Header> headers) {
+        String method = null;
+        String scheme = null;
+        String path = null;
+        String authority = null;
+        boolean regularHeaderSeen = false;
+        final Map<String, String> fields = new HashMap<>();
+        for (Hpack.Header header : headers) {
+            final String name = header.name();
+            final String value = header.value();
+            if (name.startsWith(":")) {
+                if (regularHeaderSeen) {
+                    return null;
+                }
+                switch (name) {
+                    case ":method" -> method = method == null ? value : "";
+                    case ":scheme" -> scheme = scheme == null ? value : "";
+                    case ":path" -> path = path == null ? value : "";
+                    case ":authority" -> authority = authority == null ? value : "";
+                    default -> {
+                        return null;
+                    }
+                }
+                continue;
+            }
+            regularHeaderSeen = true;
+            if (!name.equals(name.toLowerCase(Locale.ROOT)) || CONNECTION_SPECIFIC_HEADERS.contains(name)
+                    || (name.equals("te") && !value.equals("trailers"))) {
+                return null;
+            }
+            // Cookies may be split into several fields (RFC 9113, section 8.2.3).
+            fields.merge(name, value, (first, second) -> first + (name.equals("cookie") ? "; " : ", ") + second);
+        }
+        if (method == null || method.isEmpty() || scheme == null || scheme.isEmpty() || path == null || path.isEmpty()) {
+            return null;
+        }
+        if (authority != null && !authority.isEmpty()) {
+            fields.putIfAbsent("host", authority);
+        }
+        // The interned method names, as the HTTP/1.1 parser hands them out.
+        if (method.equals(Constants.HTTP_METHOD_GET)) {
+            method = Constants.HTTP_METHOD_GET;
+        } else if (method.equals(Constants.HTTP_METHOD_PUT)) {
+            method = Constants.HTTP_METHOD_PUT;
+        }
+        return new Request(method, path, fields);
+    }
+
+    /**
+     * Applies an RFC 9218 priority, e.g. {@code u=1, i}; unknown parameters are ignored.
+     */
+    private static void applyPriority(final Stream stream, final String priority) {
+        for (String parameter : priority.split(",")) {
+            final String trimmed = parameter.trim();
+            if (trimmed.length() == 3 && trimmed.startsWith("u=") && trimmed.charAt(2) >= '0' && trimmed.charAt(2) <= '7') {
+                stream.urgency = trimmed.charAt(2) - '0';
+            } else if (trimmed.equals("i") || trimmed.equals("i=?1")) {
+                stream.incremental = true;
+            } else if (trimmed.equals("i=?0")) {
+                stream.incremental = false;
+            }
+        }
+    }
+
+    /**
+     * The client has sent the whole request: processes it, unless it was answered already.
+     */
+    private void completeRequest(final Stream stream) {
+        final boolean answered;
+        lock.lock();
+        try {
+            stream.remoteClosed = true;
+            // A request the reaper has beaten to it is dropped: the connection is being closed.
+            answered = !activate(stream) || stream.response != null;
+        } finally {
+            lock.unlock();
+        }
+        if (answered) {
+            return;
+        }
+        final Request request = stream.request;
+        request.body = stream.bodyLength == stream.body.length ? stream.body : Arrays.copyOf(stream.body, stream.bodyLength);
+        final String contentLength = request.getHeader("content-length");
+        if (contentLength != null && !contentLength.equals(Integer.toString(stream.bodyLength))) {
+            respond(stream, requestProcessor.rejectedRequestResponse(HttpRequestParser.Result.BAD_REQUEST, client));
+            return;
+        }
+        respond(stream, requestProcessor.process(request, client));
+    }
+
+    /**
+     * Answers a request before the client has sent all of it, e.g. with 413; the rest of it is discarded.
+     */
+    private void respondEarly(final Stream stream, final HttpResponse response) {
+        stream.request = null;
+        respond(stream, response);
+    }
+
+    private void respond(final Stream stream, final HttpResponse response) {
+        lock.lock();
+        try {
+            stream.response = response;
+            activate(stream);
+            if (writerDone || stream.reset) {
+                stream.release();
+            } else {
+                pendingHeaders.add(stream);
+                writable.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Stream getStream(final int streamId) {
+        lock.lock();
+        try {
+            return streams.get(streamId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isRemoteClosed(final Stream stream) {
+        lock.lock();
+        try {
+            return stream.remoteClosed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Stream openStream(final int streamId) {
+        lock.lock();
+        try {
+            final Stream stream = new Stream(streamId, initialSendWindow);
+            streams.put(streamId, stream);
+            return stream;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends a stream with {@code RST_STREAM} (a stream error).
+     */
+    private void resetStream(final Stream stream, final int errorCode) {
+        lock.lock();
+        try {
+            queueControlFrame(rstStreamFrame(stream.id, errorCode));
+            closeStream(stream);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a stream whose response is complete or abandoned. Called with the lock held.
+     */
+    private void closeStream(final Stream stream) {
+        stream.reset = true;
+        streams.remove(stream.id);
+        pendingHeaders.remove(stream);
+        sendingStreams.remove(stream);
+        // Released by the writer, which may be reading its body.
+        releasedStreams.add(stream);
+        if (stream.active) {
+            stream.active = false;
+            activeStreams--;
+            updateRequestDeadline();
+        }
+        writable.signal();
+    }
+
+    /**
+     * Marks a stream as being processed or answered, which stops the request deadline. Called with the lock held.
+     *
+     * @return {@code false} if the deadline has expired already
+     */
+    private boolean activate(final Stream stream) {
+        if (!stream.active && !stream.reset) {
+            stream.active = true;
+            activeStreams++;
+        }
+        return updateRequestDeadline();
+    }
+
+    /**
+     * Runs the request deadline while no request is being processed or answered, i.e. while the connection is idle
+     * or only waiting for the rest of incomplete requests. The deadline is not extended by new streams, so a client
+     * cannot keep the connection by trickling header blocks. Called with the lock held.
+     *
+     * @return {@code false} if the deadline has expired already
+     */
+    private boolean updateRequestDeadline() {
+        if (activeStreams == 0) {
+            if (requestDeadline.compareAndSet(DEADLINE_DISARMED, DEADLINE_ARMED)) {
+                requestTimeout.arm(Constants.KEEP_ALIVE_TIMEOUT_MILLI_SECONDS);
+            }
+        } else if (requestDeadline.compareAndSet(DEADLINE_ARMED, DEADLINE_DISARMED)) {
+            requestTimeout.disarm();
+        }
+        return requestDeadline.get() != DEADLINE_EXPIRED;
+    }
+
+    private void goAway(final int errorCode) {
+        lock.lock();
+        try {
+            if (!goingAway || errorCode != NO_ERROR) {
+                // Not subject to the queue limit, so that an overflowing connection is still told why it ends.
+                controlFrames.add(frame(TYPE_GOAWAY, 0, 0, goAwayPayload(lastStreamId, errorCode)));
+                writable.signal();
+            }
+            goingAway = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a frame for the writer, or drops it and marks the connection for termination if the queue is full.
+     */
+    private void queueControlFrame(final byte[] frame) {
+        lock.lock();
+        try {
+            if (controlFrames.size() >= MAX_QUEUED_CONTROL_FRAMES) {
+                controlFramesOverflowed = true;
+                return;
+            }
+            controlFrames.add(frame);
+            writable.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The writer thread: sends frames as they become sendable, flushing whenever it runs out of work.
+     */
+    private void writeFrames() {
+        final List<Stream> toRelease = new ArrayList<>();
+        try {
+            boolean flushed = true;
+            while (true) {
+                Work work;
+                int headerTableSize;
+                boolean finished = false;
+                lock.lock();
+                try {
+                    while (true) {
+                        toRelease.addAll(releasedStreams);
+                        releasedStreams.clear();
+                        work = nextWork();
+                        if (work != null || !flushed || !toRelease.isEmpty()) {
+                            break;
+                        }
+                        if (readerDone || (goingAway && streams.isEmpty())) {
+                            finished = true;
+                            break;
+                        }
+                        writable.await();
+                    }
+                    headerTableSize = peerHeaderTableSize;
+                } finally {
+                    lock.unlock();
+                }
+                releaseAll(toRelease);
+
+                if (work != null) {
+                    if (work.controlFrame() != null) {
+                        out.write(work.controlFrame());
+                    } else if (work.headers() != null) {
+                        hpackEncoder.setMaxTableSize(headerTableSize);
+                        writeHeaders(work.headers());
+                    } else {
+                        writeData(work.data(), work.credit());
+                    }
+                    flushed = false;
+                } else if (!flushed) {
+                    out.flush();
+                    flushed = true;
+                } else if (finished) {
+                    break;
+                }
+            }
+            if (!isReaderDone()) {
+                // GOAWAY was sent and the last stream is done: let the client close the connection.
+                socket.shutdownOutput();
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error writing HTTP/2 frames", e);
+            // Unblocks the reading thread.
+            KeepAliveHttpClientHandlerImpl.closeQuietly(socket);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.lock();
+            try {
+                writerDone = true;
+                toRelease.addAll(streams.values());
+                toRelease.addAll(releasedStreams);
+                releasedStreams.clear();
+            } finally {
+                lock.unlock();
+            }
+            releaseAll(toRelease);
+        }
+    }
+
+    private boolean isReaderDone() {
+        lock.lock();
+        try {
+            return readerDone;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Picks what to send next. Called with the lock held.
+     *
+     * @return the work, or {@code null} if nothing can be sent now
+     */
+    private Work nextWork() {
+        final byte[] controlFrame = controlFrames.poll();
+        if (controlFrame != null) {
+            return new Work(controlFrame, null, null, 0);
+        }
+        if (readerDone) {
+            return null;
+        }
+        final Stream headers = pendingHeaders.poll();
+        if (headers != null) {
+            return new Work(null, headers, null, 0);
+        }
+
+        Stream selected = null;
+        int selectedIndex = -1;
+        final int count = sendingStreams.size();
+        for (int i = 0; i < count; i++) {
+            // Start after the incremental stream served last, so that incremental streams take turns.
+            final int index = (nextIncremental + i) % count;
+            final Stream stream = sendingStreams.get(index);
+            if (!isSendable(stream)) {
+                continue;
+            }
+            if (selected == null || stream.urgency < selected.urgency
+                    || (stream.urgency == selected.urgency && !stream.incremental && (selected.incremental || stream.id < selected.id))) {
+                selected = stream;
+                selectedIndex = index;
+            }
+        }
+        if (selected == null) {
+            return null;
+        }
+        if (selected.incremental) {
+            nextIncremental = selectedIndex + 1;
+        }
+        // Reserved now, the unused part is returned once the frame is written.
+        final int credit = Math.max(0, Math.min(MAX_FRAME_SIZE, Math.min(selected.sendWindow, connectionSendWindow)));
+        selected.sendWindow -= credit;
+        connectionSendWindow -= credit;
+        selected.eventsAvailable = false;
+        return new Work(null, null, selected, credit);
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private boolean isSendable(final Stream stream) {
+        final boolean windowOpen = stream.sendWindow > 0 && connectionSendWindow > 0;
+        if (stream.response.isEventStream()) {
+            // The end of an event stream is an empty frame, which needs no window.
+            return stream.eventsAvailable && (windowOpen || stream.response.getEventStream().isClosed());
+        }
+        return windowOpen;
+    }
+
+    private void writeHeaders(final Stream stream) throws IOException {
+        HttpResponse response = stream.response;
+        if (response.hasFileBody()) {
+            try {
+                stream.openFile();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Error opening file %s".formatted(response.getFile()), e);
+                response = HttpResponse.withoutData(HttpURLConnection.HTTP_INTERNAL_ERROR, Constants.HTTP_INTERNAL_ERROR_MESSAGE);
+                stream.release();
+                stream.fileChannel = null;
+                stream.response = response;
+            }
+        }
+        final int status = response.getStatusCode();
+        final Hpack.Encoder encoder = hpackEncoder.startBlock().header(":status", Integer.toString(status), true);
+        // A 304 has no body by definition, so neither content-type nor content-length is sent.
+        if (status != HttpURLConnection.HTTP_NOT_MODIFIED) {
+            encoder.header("content-type", response.getContentType(), true);
+            if (response.getContentLength() >= 0) {
+                encoder.header("content-length", Long.toString(response.getContentLength()), false);
+            }
+        }
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            final String name = header.getKey().toLowerCase(Locale.ROOT);
+            encoder.header(name, header.getValue(), !UNINDEXED_HEADERS.contains(name));
+        }
+
+        final boolean endStream = status == HttpURLConnection.HTTP_NOT_MODIFIED || response.getContentLength() == 0;
+        final byte[] block = encoder.getBuffer();
+        final int blockLength = encoder.getLength();
+        int position = 0;
+        do {
+            final int length = Math.min(MAX_FRAME_SIZE, blockLength - position);
+            final int type = position == 0 ? TYPE_HEADERS : TYPE_CONTINUATION;
+            final int flags = (position + length == blockLength ? FLAG_END_HEADERS : 0) | (position == 0 && endStream ? FLAG_END_STREAM : 0);
+            writeFrameHeader(dataFrame, length, type, flags, stream.id);
+            out.write(dataFrame, 0, FRAME_HEADER_BYTES);
+            out.write(block, position, length);
+            position += length;
+        } while (position < blockLength);
+
+        lock.lock();
+        try {
+            if (stream.reset) {
+                return;
+            }
+            if (endStream) {
+                endStream(stream);
+                return;
+            }
+            sendingStreams.add(stream);
+            stream.eventsAvailable = true;
+        } finally {
+            lock.unlock();
+        }
+        if (response.isEventStream()) {
+            response.getEventStream().setListener(() -> {
+                lock.lock();
+                try {
+                    stream.eventsAvailable = true;
+                    writable.signal();
+                } finally {
+                    lock.unlock();
+                }
+            });
+        }
+    }
+
+    private void writeData(final Stream stream, final int credit) throws IOException {
+        int length;
+        boolean complete;
+        try {
+            length = stream.readBody(dataFrame, FRAME_HEADER_BYTES, credit);
+            complete = stream.isBodyComplete();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error reading response body", e);
+            lock.lock();
+            try {
+                connectionSendWindow += credit;
+                if (!stream.reset) {
+                    resetStream(stream, INTERNAL_ERROR);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        if (length > 0 || complete) {
+            writeFrameHeader(dataFrame, length, TYPE_DATA, complete ? FLAG_END_STREAM : 0, stream.id);
+            out.write(dataFrame, 0, FRAME_HEADER_BYTES + length);
+        }
+
+        lock.lock();
+        try {
+            stream.sendWindow += credit - length;
+            connectionSendWindow += credit - length;
+            if (complete && !stream.reset) {
+                endStream(stream);
+            } else if (length == credit) {
+                // Events may be left over that no listener call will announce again.
+                stream.eventsAvailable = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The response was sent completely. Called with the lock held.
+     */
+    private void endStream(final Stream stream) {
+        if (!stream.remoteClosed) {
+            // The client is still sending a request that was answered early (RFC 9113, section 8.1).
+            queueControlFrame(rstStreamFrame(stream.id, NO_ERROR));
+        }
+        closeStream(stream);
+    }
+
+    private static void releaseAll(final List<Stream> streams) {
+        for (Stream stream : streams) {
+            stream.release();
+        }
+        streams.clear();
+    }
+
+    private static byte[] settingsPayload() {
+        final byte[] settings = new byte[12];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, Constants.HTTP2_MAX_CONCURRENT_STREAMS);
+        putSetting(settings, 6, SETTINGS_MAX_HEADER_LIST_SIZE, Constants.MAX_REQUEST_HEADER_BYTES);
+        return settings;
+    }
+
+    private static void putSetting(final byte[] settings, final int position, final int identifier, final int value) {
+        settings[position] = (byte) (identifier >>> 8);
+        settings[position + 1] = (byte) identifier;
+        writeInt(settings, position + 2, value);
+    }
+
+    private static byte[] windowUpdateFrame(final int streamId, final int increment) {
+        final byte[] increments = new byte[4];
+        writeInt(increments, 0, increment);
+        return frame(TYPE_WINDOW_UPDATE, 0, streamId, increments);
+    }
+
+    private static byte[] rstStreamFrame(final int streamId, final int errorCode) {
+        final byte[] error = new byte[4];
+        writeInt(error, 0, errorCode);
+        return frame(TYPE_RST_STREAM, 0, streamId, error);
+    }
+
+    private static byte[] goAwayPayload(final int lastStreamId, final int errorCode) {
+        final byte[] goAway = new byte[8];
+        writeInt(goAway, 0, lastStreamId);
+        writeInt(goAway, 4, errorCode);
+        return goAway;
+    }
+
+    private static byte[] frame(final int type, final int flags, final int streamId, final byte[] framePayload) {
+        final byte[] frame = new byte[FRAME_HEADER_BYTES + framePayload.length];
+        writeFrameHeader(frame, framePayload.length, type, flags, streamId);
+        System.arraycopy(framePayload, 0, frame, FRAME_HEADER_BYTES, framePayload.length);
+        return frame;
+    }
+
+    private static void writeFrameHeader(final byte[] frame, final int length, final int type, final int flags, final int streamId) {
+        frame[0] = (byte) (length >>> 16);
+        frame[1] = (byte) (length >>> 8);
+        frame[2] = (byte) length;
+        frame[3] = (byte) type;
+        frame[4] = (byte) flags;
+        writeInt(frame, 5, streamId);
+    }
+
+    private static int readInt(final byte[] bytes, final int position) {
+        return ((bytes[position] & 0xff) << 24) | ((bytes[position + 1] & 0xff) << 16) | ((bytes[position + 2] & 0xff) << 8) | (bytes[position + 3] & 0xff);
+    }
+
+    private static void writeInt(final byte[] bytes, final int position, final int value) {
+        bytes[position] = (byte) (value >>> 24);
+        bytes[position + 1] = (byte) (value >>> 16);
+        bytes[position + 2] = (byte) (value >>> 8);
+        bytes[position + 3] = (byte) value;
+    }
+
+    private static void join(final Thread thread, final long timeoutMillis) {
+        try {
+            thread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
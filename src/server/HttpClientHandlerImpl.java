@@ -1,89 +1,113 @@
 package server;
 
 import common.Constants;
+import common.HttpResponseEncoder;
 import common.Utility;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.channels.GatheringByteChannel;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Basic version of the HttpClientHandler supporting HTTP GET and PUT.
+ * A client that has not sent a complete request within {@link Constants#KEEP_ALIVE_TIMEOUT_MILLI_SECONDS}
+ * is disconnected by the {@link IdleConnectionReaper}.
  */
 public class HttpClientHandlerImpl implements HttpClientHandler {
     private static final Logger logger = Logger.getLogger(HttpClientHandlerImpl.class.getName());
 
+    private final HttpRequestProcessor requestProcessor;
+    private final IdleConnectionReaper idleConnectionReaper;
+
+    public HttpClientHandlerImpl(final HttpRequestProcessor requestProcessor, final IdleConnectionReaper idleConnectionReaper) {
+        Objects.requireNonNull(requestProcessor, "requestProcessor must not be null");
+        Objects.requireNonNull(idleConnectionReaper, "idleConnectionReaper must not be null");
+        this.requestProcessor = requestProcessor;
+        this.idleConnectionReaper = idleConnectionReaper;
+    }
+
     @Override
     public void handleClient(final Socket socket) throws IOException {
         Objects.requireNonNull(socket, "socket must not be null");
 
-        try (socket; BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             OutputStream out = socket.getOutputStream()) {
-            String httpRequestLine = "";
+        final ServerMetrics metrics = requestProcessor.getMetrics();
+        metrics.connectionOpened();
+        int requests = 0;
+        // Taken by either the reaper or the request that arrived in time, see KeepAliveHttpClientHandlerImpl.
+        final AtomicBoolean awaitingRequest = new AtomicBoolean(true);
+        final IdleConnectionReaper.Timeout idleTimeout = idleConnectionReaper.newTimeout(() -> {
+            if (awaitingRequest.compareAndSet(true, false)) {
+                KeepAliveHttpClientHandlerImpl.closeQuietly(socket);
+            }
+        });
+        try (socket; InputStream in = socket.getInputStream(); OutputStream out = socket.getOutputStream()) {
+            final HttpRequestReader requestReader = new HttpRequestReader(in);
+            final HttpResponseEncoder responseEncoder = new HttpResponseEncoder();
+            HttpRequestParser.Result result;
             try {
-                httpRequestLine = in.readLine();
+                idleTimeout.arm(Constants.KEEP_ALIVE_TIMEOUT_MILLI_SECONDS);
+                result = requestReader.next();
+                idleTimeout.disarm();
             } catch (IOException e) {
-                logger.log(Level.SEVERE, "Error reading request", e);
+                if (socket.isClosed()) {
+                    logger.log(Level.FINE, "Closed idle connection");
+                } else {
+                    logger.log(Level.SEVERE, "Error reading request", e);
+                }
+                return;
+            }
+            if (!awaitingRequest.compareAndSet(true, false)) {
+                logger.log(Level.FINE, "Closed idle connection");
                 return;
             }
 
-            logger.log(Level.INFO, "Request: %s".formatted(httpRequestLine));
-            processRequest(httpRequestLine, out);
+            // The connection ended before a complete request arrived.
+            if (result == null) result = HttpRequestParser.Result.BAD_REQUEST;
+            processRequest(requestReader, result, socket.getInetAddress(), out, responseEncoder, socket.getChannel());
+            requests++;
         } finally {
-            logger.log(Level.INFO, "Socket closed");
+            idleTimeout.cancel();
+            metrics.connectionClosed(requests);
+            logger.log(Level.FINE, "Socket closed");
         }
     }
 
-    private void processRequest(final String httpRequestLine, final OutputStream out) {
+    private void processRequest(final HttpRequestReader requestReader, final HttpRequestParser.Result result, final InetAddress client,
+                                final OutputStream out, final HttpResponseEncoder responseEncoder, final GatheringByteChannel channel) {
         Objects.requireNonNull(out, "out must not be null");
 
+        final HttpResponse response;
         try {
-            if (httpRequestLine == null || httpRequestLine.isEmpty() || !Utility.isHttpRequestLineValid(httpRequestLine)) {
-                logger.log(Level.WARNING, "Bad request line: %s".formatted(httpRequestLine));
-                Utility.sendResponseWithoutData(out, HttpURLConnection.HTTP_BAD_REQUEST, Constants.HTTP_BAD_REQUEST_MESSAGE);
-                return;
-            }
-
-            String[] httpRequestLineTokens = httpRequestLine.trim().split("\\s+");
-            final String httpMethod = httpRequestLineTokens[0];
-            String fileRequested = httpRequestLineTokens[1];
-
-            if (httpMethod.equals(Constants.HTTP_METHOD_PUT)) {
-                // We don't persist data, just return OK
-                Utility.sendResponseWithoutData(out, HttpURLConnection.HTTP_OK, Constants.HTTP_OK_MESSAGE);
-                return;
-            }
-
-            // We support only GET and PUT
-            if (!httpMethod.equals(Constants.HTTP_METHOD_GET)) {
-                logger.log(Level.WARNING, "Disallowed http method: %s".formatted(httpMethod));
-                Utility.sendResponseWithoutData(out, HttpURLConnection.HTTP_BAD_METHOD, Constants.HTTP_BAD_METHOD_MESSAGE);
-                return;
-            }
-
-            if (fileRequested.equals("/")) fileRequested = "/index.html";
-
-            final File file = new File(Constants.WEB_ROOT, fileRequested);
-            if (!file.exists() || file.isDirectory()) {
-                logger.log(Level.WARNING, "Requested file: %s not found".formatted(fileRequested));
-                Utility.sendResponseWithoutData(out, HttpURLConnection.HTTP_NOT_FOUND, Constants.HTTP_NOT_FOUND_MESSAGE);
-                return;
-            }
-
-            final byte[] fileData = Utility.readFileData(file);
-            final String contentType = Utility.getContentType(fileRequested);
-            Utility.sendResponseWithData(out, HttpURLConnection.HTTP_OK, Constants.HTTP_OK_MESSAGE, contentType, fileData, false);
-        } catch (Exception exception) {
+            response = result != HttpRequestParser.Result.COMPLETE ? requestProcessor.rejectedRequestResponse(result, client)
+                    : requestProcessor.process(requestReader.getRequest(), client);
+        } catch (RuntimeException exception) {
             logger.log(Level.SEVERE, "Error processing request", exception);
             // After handling all client errors, we get here means a server. So, we send 5xx.
-            try {
-                Utility.sendResponseWithoutData(out, HttpURLConnection.HTTP_INTERNAL_ERROR, Constants.HTTP_INTERNAL_ERROR_MESSAGE);
-            } catch (IOException ioException) {
-                logger.log(Level.SEVERE, "Error processing request", ioException);
-            }
+            sendInternalError(out);
+            return;
+        }
+        try {
+            response.writeTo(responseEncoder, out, channel, false);
+        } catch (HttpResponse.NotSentException exception) {
+            logger.log(Level.SEVERE, "Error processing request", exception);
+            sendInternalError(out);
+        } catch (IOException | RuntimeException exception) {
+            // Part of the response may have been written, so a 5xx would be spliced into it; the connection is closed instead.
+            logger.log(Level.SEVERE, "Error sending response", exception);
+        }
+    }
+
+    private static void sendInternalError(final OutputStream out) {
+        try {
+            Utility.sendResponseWithoutData(out, HttpURLConnection.HTTP_INTERNAL_ERROR, Constants.HTTP_INTERNAL_ERROR_MESSAGE);
+        } catch (IOException ioException) {
+            logger.log(Level.SEVERE, "Error processing request", ioException);
         }
     }
 }
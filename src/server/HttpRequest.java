@@ -0,0 +1,22 @@
+package server;
+
+/**
+ * An HTTP request as handed to the {@link HttpRequestProcessor}.
+ * <p>
+ * Implementations may be views on a connection's reusable read buffer (see
+ * {@link HttpRequestParser}); such a request is only valid until the connection
+ * reads its next request, so it must not be retained after processing.
+ */
+public interface HttpRequest {
+    String getMethod();
+
+    String getPath();
+
+    /**
+     * @param lowerCaseName the header name in lower case, e.g. {@code "accept-encoding"}
+     * @return the header value, or {@code null} if the header is absent
+     */
+    String getHeader(final String lowerCaseName);
+
+    byte[] getBody();
+}
@@ -0,0 +1,460 @@
+package server;
+
+import common.Constants;
+
+import java.util.Arrays;
+
+/**
+ * Incremental, allocation-free HTTP/1.1 request parser working directly on a
+ * connection's reusable read buffer.
+ * <p>
+ * {@link #parse(byte[], int, int)} may be called repeatedly as more bytes arrive; it
+ * resumes where the previous call stopped instead of rescanning. All positions are
+ * kept relative to the start of the request, so the caller may compact or grow its
+ * buffer between calls. Once a request is complete, {@link #getRequest()} returns a
+ * view on the buffer: the method is one of the interned {@link Constants} method names,
+ * and the path and any header value asked for come from the {@link AsciiStringCache},
+ * so a typical request allocates nothing.
+ * <p>
+ * A body is delimited by {@code Content-Length} or sent with {@code Transfer-Encoding: chunked}.
+ * Chunked bodies are decoded in place as the chunks arrive: the data of every chunk is moved
+ * behind the data of the previous ones, over the chunk framing, so the decoded body is a
+ * contiguous region of the buffer like any other body and no second buffer is needed.
+ * <p>
+ * Limits on the request line, the header section and the body (for chunked bodies also on
+ * the framing) protect the server from unbounded buffering. Instances are reusable
+ * ({@link #reset()}) but not thread-safe.
+ */
+final class HttpRequestParser {
+    enum Result {
+        INCOMPLETE, COMPLETE, BAD_REQUEST, URI_TOO_LONG, HEADERS_TOO_LARGE, BODY_TOO_LARGE
+    }
+
+    private static final int STATE_REQUEST_LINE = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_BODY = 2;
+    private static final int STATE_CHUNK_SIZE = 3;
+    private static final int STATE_CHUNK_DATA = 4;
+    private static final int STATE_CHUNK_DATA_END = 5;
+    private static final int STATE_TRAILERS = 6;
+    private static final int STATE_COMPLETE = 7;
+    private static final int MAX_HEADER_COUNT = 64;
+    // A chunk size with extensions; longer lines are rejected.
+    private static final int MAX_CHUNK_LINE_BYTES = 1024;
+
+    private final int maxRequestLineBytes;
+    private final int maxHeaderBytes;
+    private final int maxBodyBytes;
+    private final ParsedRequest request = new ParsedRequest();
+
+    private byte[] buffer;
+    private int base;
+    private int state;
+    private int scanOffset;
+    private int lineStartOffset;
+    private int methodStart;
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private final int[] headerOffsets = new int[MAX_HEADER_COUNT * 4];
+    private int headerCount;
+    private int bodyOffset;
+    // The (decoded) body length.
+    private int contentLength;
+    private int chunkRemaining;
+    // Offset just past the request, which for a chunked body lies beyond bodyOffset + contentLength.
+    private int requestEnd;
+
+    HttpRequestParser() {
+        this(Constants.MAX_REQUEST_LINE_BYTES, Constants.MAX_REQUEST_HEADER_BYTES, Constants.MAX_REQUEST_BODY_BYTES);
+    }
+
+    HttpRequestParser(final int maxRequestLineBytes, final int maxHeaderBytes, final int maxBodyBytes) {
+        this.maxRequestLineBytes = maxRequestLineBytes;
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Continues parsing the request that starts at {@code start}.
+     *
+     * @param end the end (exclusive) of the bytes read so far
+     */
+    Result parse(final byte[] buffer, final int start, final int end) {
+        this.buffer = buffer;
+        this.base = start;
+        final int available = end - start;
+
+        while (state == STATE_REQUEST_LINE || state == STATE_HEADERS) {
+            final int lineFeed = indexOfLineFeed(scanOffset, available);
+            if (lineFeed < 0) {
+                scanOffset = available;
+                if (state == STATE_REQUEST_LINE && available - lineStartOffset > maxRequestLineBytes) {
+                    return Result.URI_TOO_LONG;
+                }
+                return available > maxHeaderBytes ? Result.HEADERS_TOO_LARGE : Result.INCOMPLETE;
+            }
+            scanOffset = lineFeed + 1;
+            final int lineEnd = lineFeed > lineStartOffset && byteAt(lineFeed - 1) == '\r' ? lineFeed - 1 : lineFeed;
+            final Result lineResult = state == STATE_REQUEST_LINE
+                    ? parseRequestLine(lineStartOffset, lineEnd)
+                    : parseHeaderLine(lineStartOffset, lineEnd);
+            if (lineResult != null) {
+                return lineResult;
+            }
+            lineStartOffset = scanOffset;
+            if (scanOffset > maxHeaderBytes) {
+                return Result.HEADERS_TOO_LARGE;
+            }
+        }
+
+        if (state == STATE_BODY) {
+            if (available - bodyOffset < contentLength) {
+                return Result.INCOMPLETE;
+            }
+            requestEnd = bodyOffset + contentLength;
+            state = STATE_COMPLETE;
+        }
+        if (state != STATE_COMPLETE) {
+            return parseChunkedBody(available);
+        }
+        return Result.COMPLETE;
+    }
+
+    /**
+     * @return the view on the parsed request; valid after {@link Result#COMPLETE} until {@link #reset()}
+     */
+    HttpRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * @return the buffer index just past the parsed request (including its body)
+     */
+    int getRequestEnd() {
+        return base + requestEnd;
+    }
+
+    /**
+     * @return whether the client asked for a persistent connection ({@code Connection: keep-alive})
+     */
+    boolean isKeepAliveRequested() {
+        final int header = findHeader("connection");
+        if (header < 0) {
+            return false;
+        }
+        final int valueEnd = base + headerOffsets[header * 4 + 3];
+        int tokenStart = base + headerOffsets[header * 4 + 2];
+        while (tokenStart < valueEnd) {
+            int tokenEnd = tokenStart;
+            while (tokenEnd < valueEnd && buffer[tokenEnd] != ',') {
+                tokenEnd++;
+            }
+            int from = tokenStart;
+            int to = tokenEnd;
+            while (from < to && isWhitespace(buffer[from])) from++;
+            while (to > from && isWhitespace(buffer[to - 1])) to--;
+            if (AsciiStringCache.matchesIgnoreCase("keep-alive", buffer, from, to)) {
+                return true;
+            }
+            tokenStart = tokenEnd + 1;
+        }
+        return false;
+    }
+
+    void reset() {
+        state = STATE_REQUEST_LINE;
+        scanOffset = 0;
+        lineStartOffset = 0;
+        headerCount = 0;
+        bodyOffset = 0;
+        contentLength = 0;
+        chunkRemaining = 0;
+        requestEnd = 0;
+        request.body = null;
+    }
+
+    private Result parseRequestLine(final int lineStart, final int lineEnd) {
+        if (lineEnd - lineStart > maxRequestLineBytes) {
+            return Result.URI_TOO_LONG;
+        }
+        if (lineStart == lineEnd) {
+            // Robustness (RFC 9112, section 2.2): ignore empty lines before the request line.
+            return null;
+        }
+
+        int position = skipWhitespace(lineStart, lineEnd);
+        methodStart = position;
+        position = skipToken(position, lineEnd);
+        methodEnd = position;
+        position = skipWhitespace(position, lineEnd);
+        targetStart = position;
+        position = skipToken(position, lineEnd);
+        targetEnd = position;
+        if (methodStart == methodEnd || targetStart == targetEnd) {
+            return Result.BAD_REQUEST;
+        }
+        state = STATE_HEADERS;
+        return null;
+    }
+
+    private Result parseHeaderLine(final int lineStart, final int lineEnd) {
+        if (lineStart == lineEnd) {
+            return endOfHeaders();
+        }
+        if (headerCount == MAX_HEADER_COUNT) {
+            return Result.HEADERS_TOO_LARGE;
+        }
+
+        int colon = lineStart;
+        while (colon < lineEnd && byteAt(colon) != ':') {
+            colon++;
+        }
+        // Obsolete line folding and whitespace before the colon are rejected (RFC 9112, section 5).
+        if (colon == lineStart || colon == lineEnd || isWhitespace(byteAt(lineStart)) || isWhitespace(byteAt(colon - 1))) {
+            return Result.BAD_REQUEST;
+        }
+        final int valueStart = skipWhitespace(colon + 1, lineEnd);
+        int valueEnd = lineEnd;
+        while (valueEnd > valueStart && isWhitespace(byteAt(valueEnd - 1))) {
+            valueEnd--;
+        }
+
+        final int offset = headerCount * 4;
+        headerOffsets[offset] = lineStart;
+        headerOffsets[offset + 1] = colon;
+        headerOffsets[offset + 2] = valueStart;
+        headerOffsets[offset + 3] = valueEnd;
+        headerCount++;
+        return null;
+    }
+
+    private Result endOfHeaders() {
+        bodyOffset = scanOffset;
+        final int header = findHeader("content-length");
+        final int transferEncoding = findHeader("transfer-encoding");
+        if (transferEncoding >= 0) {
+            // Only chunked is supported. Content-Length in addition would make the framing ambiguous,
+            // which is how requests are smuggled past intermediaries (RFC 9112, section 6.3).
+            if (header >= 0 || !AsciiStringCache.matchesIgnoreCase("chunked", buffer, base + headerOffsets[transferEncoding * 4 + 2],
+                    base + headerOffsets[transferEncoding * 4 + 3])) {
+                return Result.BAD_REQUEST;
+            }
+            lineStartOffset = scanOffset;
+            state = STATE_CHUNK_SIZE;
+            return null;
+        }
+        if (header >= 0) {
+            final long length = parseContentLength(header);
+            if (length < 0) {
+                return Result.BAD_REQUEST;
+            }
+            // Repeated fields with differing values leave the body length ambiguous (RFC 9110, section 8.6).
+            for (int other = findHeader("content-length", header + 1); other >= 0; other = findHeader("content-length", other + 1)) {
+                if (parseContentLength(other) != length) {
+                    return Result.BAD_REQUEST;
+                }
+            }
+            if (length > maxBodyBytes) {
+                return Result.BODY_TOO_LARGE;
+            }
+            contentLength = (int) length;
+        }
+        state = STATE_BODY;
+        return null;
+    }
+
+    /**
+     * @return the value of the {@code Content-Length} field {@code header}, at most {@code maxBodyBytes + 1},
+     * or -1 if it is not a decimal number
+     */
+    private long parseContentLength(final int header) {
+        final int valueStart = base + headerOffsets[header * 4 + 2];
+        final int valueEnd = base + headerOffsets[header * 4 + 3];
+        if (valueStart == valueEnd) {
+            return -1;
+        }
+        long length = 0;
+        for (int i = valueStart; i < valueEnd; i++) {
+            final int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            length = Math.min(length * 10 + digit, maxBodyBytes + 1L);
+        }
+        return length;
+    }
+
+    /**
+     * Continues decoding a chunked body (RFC 9112, section 7.1). Chunk extensions and trailer
+     * fields are skipped.
+     */
+    private Result parseChunkedBody(final int available) {
+        while (true) {
+            if (state == STATE_CHUNK_DATA) {
+                final int count = Math.min(chunkRemaining, available - scanOffset);
+                // Move the data behind the data of the previous chunks; the ranges may overlap.
+                System.arraycopy(buffer, base + scanOffset, buffer, base + bodyOffset + contentLength, count);
+                scanOffset += count;
+                contentLength += count;
+                chunkRemaining -= count;
+                if (chunkRemaining > 0) {
+                    return Result.INCOMPLETE;
+                }
+                lineStartOffset = scanOffset;
+                state = STATE_CHUNK_DATA_END;
+                continue;
+            }
+
+            final int lineFeed = indexOfLineFeed(scanOffset, available);
+            if (lineFeed < 0) {
+                scanOffset = available;
+                return available - lineStartOffset > MAX_CHUNK_LINE_BYTES ? Result.BAD_REQUEST : Result.INCOMPLETE;
+            }
+            scanOffset = lineFeed + 1;
+            final int lineStart = lineStartOffset;
+            final int lineEnd = lineFeed > lineStart && byteAt(lineFeed - 1) == '\r' ? lineFeed - 1 : lineFeed;
+            lineStartOffset = scanOffset;
+            // Bounds what tiny chunks, extensions and trailers add to the buffered body.
+            if (scanOffset - bodyOffset - contentLength > maxHeaderBytes) {
+                return Result.BODY_TOO_LARGE;
+            }
+
+            if (state == STATE_CHUNK_SIZE) {
+                final Result sizeResult = parseChunkSize(lineStart, lineEnd);
+                if (sizeResult != null) {
+                    return sizeResult;
+                }
+            } else if (state == STATE_CHUNK_DATA_END) {
+                if (lineStart != lineEnd) {
+                    return Result.BAD_REQUEST;
+                }
+                state = STATE_CHUNK_SIZE;
+            } else if (lineStart == lineEnd) {
+                // The empty line ending the trailer section.
+                requestEnd = scanOffset;
+                state = STATE_COMPLETE;
+                return Result.COMPLETE;
+            }
+        }
+    }
+
+    private Result parseChunkSize(final int lineStart, final int lineEnd) {
+        int position = lineStart;
+        long size = 0;
+        while (position < lineEnd) {
+            final int digit = Character.digit(byteAt(position), 16);
+            if (digit < 0) {
+                break;
+            }
+            size = size * 16 + digit;
+            if (contentLength + size > maxBodyBytes) {
+                return Result.BODY_TOO_LARGE;
+            }
+            position++;
+        }
+        // At least one digit, then nothing or the chunk extensions.
+        if (position == lineStart || (position < lineEnd && byteAt(position) != ';' && !isWhitespace(byteAt(position)))) {
+            return Result.BAD_REQUEST;
+        }
+        if (size == 0) {
+            state = STATE_TRAILERS;
+        } else {
+            chunkRemaining = (int) size;
+            state = STATE_CHUNK_DATA;
+        }
+        return null;
+    }
+
+    private int findHeader(final String lowerCaseName) {
+        return findHeader(lowerCaseName, 0);
+    }
+
+    private int findHeader(final String lowerCaseName, final int fromHeader) {
+        for (int i = fromHeader; i < headerCount; i++) {
+            if (AsciiStringCache.matchesIgnoreCase(lowerCaseName, buffer, base + headerOffsets[i * 4], base + headerOffsets[i * 4 + 1])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOfLineFeed(final int fromOffset, final int toOffset) {
+        for (int i = base + fromOffset; i < base + toOffset; i++) {
+            if (buffer[i] == '\n') {
+                return i - base;
+            }
+        }
+        return -1;
+    }
+
+    private int skipWhitespace(int offset, final int endOffset) {
+        while (offset < endOffset && isWhitespace(byteAt(offset))) {
+            offset++;
+        }
+        return offset;
+    }
+
+    private int skipToken(int offset, final int endOffset) {
+        while (offset < endOffset && !isWhitespace(byteAt(offset))) {
+            offset++;
+        }
+        return offset;
+    }
+
+    private byte byteAt(final int offset) {
+        return buffer[base + offset];
+    }
+
+    private static boolean isWhitespace(final byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * View on the request currently held by the parser.
+     */
+    private final class ParsedRequest implements HttpRequest {
+        private byte[] body;
+
+        @Override
+        public String getMethod() {
+            final int from = base + methodStart;
+            final int to = base + methodEnd;
+            if (AsciiStringCache.matches(Constants.HTTP_METHOD_GET, buffer, from, to)) {
+                return Constants.HTTP_METHOD_GET;
+            }
+            if (AsciiStringCache.matches(Constants.HTTP_METHOD_PUT, buffer, from, to)) {
+                return Constants.HTTP_METHOD_PUT;
+            }
+            return AsciiStringCache.get(buffer, from, to);
+        }
+
+        @Override
+        public String getPath() {
+            return AsciiStringCache.get(buffer, base + targetStart, base + targetEnd);
+        }
+
+        @Override
+        public String getHeader(final String lowerCaseName) {
+            final int header = findHeader(lowerCaseName);
+            if (header < 0) {
+                return null;
+            }
+            return AsciiStringCache.get(buffer, base + headerOffsets[header * 4 + 2], base + headerOffsets[header * 4 + 3]);
+        }
+
+        @Override
+        public byte[] getBody() {
+            if (body == null) {
+                final int from = base + bodyOffset;
+                body = Arrays.copyOfRange(buffer, from, from + contentLength);
+            }
+            return body;
+        }
+
+        @Override
+        public String toString() {
+            return getMethod() + " " + getPath();
+        }
+    }
+}
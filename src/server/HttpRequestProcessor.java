@@ -0,0 +1,438 @@
+package server;
+
+import common.Constants;
+import common.Utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implements the GET and PUT semantics of the server, independent of how the
+ * request was read from or the response is written to the connection.
+ * <p>
+ * Shared by the blocking {@link HttpClientHandler} implementations and the
+ * non-blocking {@link NioHttpServer} engine so that every execution mode serves
+ * exactly the same responses. Static files are served from a shared {@link StaticFileCache};
+ * device component states below {@code /data/} are read and updated through the
+ * {@link DeviceStateStore}. Every accepted update is pushed as a {@code state} event
+ * to the clients subscribed to the event stream of the {@link EventBroadcaster}.
+ * <p>
+ * Static files support byte range requests ({@code Range}, {@code If-Range}): a single range
+ * is answered with {@code 206 Partial Content}, several with a {@code multipart/byteranges}
+ * body, see {@link ByteRanges}. Ranges apply to the selected representation, i.e. to the
+ * compressed bytes if a content coding was negotiated, in line with its entity tag.
+ * <p>
+ * Every request is recorded in the {@link ServerMetrics}, which are served on
+ * {@link Constants#METRICS_PATH}, and in the {@link AccessLog}.
+ */
+public class HttpRequestProcessor {
+    private static final Logger logger = Logger.getLogger(HttpRequestProcessor.class.getName());
+    private static final String CONTENT_ENCODING_GZIP = "gzip";
+    private static final String CONTENT_ENCODING_DEFLATE = "deflate";
+    private static final String STATE_EVENT = "state";
+    private static final String METRICS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final StaticFileCache staticFileCache;
+    private final DeviceStateStore deviceStateStore;
+    private final EventBroadcaster eventBroadcaster;
+    private final ServerMetrics metrics;
+    private final AccessLog accessLog;
+
+    public HttpRequestProcessor(final StaticFileCache staticFileCache, final DeviceStateStore deviceStateStore, final EventBroadcaster eventBroadcaster,
+                                final ServerMetrics metrics, final AccessLog accessLog) {
+        Objects.requireNonNull(staticFileCache, "staticFileCache must not be null");
+        Objects.requireNonNull(deviceStateStore, "deviceStateStore must not be null");
+        Objects.requireNonNull(eventBroadcaster, "eventBroadcaster must not be null");
+        Objects.requireNonNull(metrics, "metrics must not be null");
+        Objects.requireNonNull(accessLog, "accessLog must not be null");
+        this.staticFileCache = staticFileCache;
+        this.deviceStateStore = deviceStateStore;
+        this.eventBroadcaster = eventBroadcaster;
+        this.metrics = metrics;
+        this.accessLog = accessLog;
+        deviceStateStore.addListener((component, state) -> eventBroadcaster.publish(STATE_EVENT, stateChangedEventData(component, state)));
+    }
+
+    /**
+     * @param client the client's address, for the access log; may be {@code null}
+     */
+    public HttpResponse process(final HttpRequest request, final InetAddress client) {
+        Objects.requireNonNull(request, "request must not be null");
+
+        final long start = System.nanoTime();
+        final HttpResponse response = route(request);
+        final long durationNanos = System.nanoTime() - start;
+        final String method = request.getMethod();
+        final String path = request.getPath();
+        metrics.recordRequest(method, response.getStatusCode(), pathClassOf(path), durationNanos);
+        accessLog.record(client, method, path, response.getStatusCode(), response.getContentLength(), durationNanos);
+        return response;
+    }
+
+    /**
+     * The metrics the connection handlers record their connections in.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    private HttpResponse route(final HttpRequest request) {
+        try {
+            final String httpMethod = request.getMethod();
+            String fileRequested = request.getPath();
+
+            if (deviceStateStore.isStatePath(fileRequested)) {
+                return processDeviceStateRequest(request, httpMethod, fileRequested);
+            }
+            if (fileRequested.equals(Constants.EVENT_STREAM_PATH)) {
+                return processEventStreamRequest(request, httpMethod);
+            }
+            if (fileRequested.equals(Constants.METRICS_PATH)) {
+                return processMetricsRequest(httpMethod);
+            }
+
+            // Static files only support GET, PUT is reserved for device states. Client errors are logged at FINE with
+            // parameters, so that a scanner probing random URLs costs no formatting and no log output.
+            if (!httpMethod.equals(Constants.HTTP_METHOD_GET)) {
+                logger.log(Level.FINE, "Disallowed http method: {0}", httpMethod);
+                return HttpResponse.withoutData(HttpURLConnection.HTTP_BAD_METHOD, Constants.HTTP_BAD_METHOD_MESSAGE);
+            }
+
+            if (fileRequested.equals("/")) fileRequested = "/index.html";
+
+            final StaticFileCache.Entry file = staticFileCache.get(fileRequested);
+            if (file == null) {
+                logger.log(Level.FINE, "Requested file: {0} not found", fileRequested);
+                return HttpResponse.withoutData(HttpURLConnection.HTTP_NOT_FOUND, Constants.HTTP_NOT_FOUND_MESSAGE);
+            }
+
+            final String contentEncoding = file.isCompressible()
+                    ? negotiateContentEncoding(request.getHeader("accept-encoding"), file.getGzipData() != null, file.getDeflateData() != null)
+                    : null;
+            final String etag = file.getEtag(contentEncoding);
+            if (isNotModified(request, etag, file.getLastModifiedSeconds())) {
+                return withValidators(HttpResponse.notModified(), file, etag);
+            }
+
+            // The selected representation: the file, or the cached identity, gzip or deflate bytes.
+            final byte[] data;
+            if (!file.isInMemory()) {
+                data = null;
+            } else if (CONTENT_ENCODING_GZIP.equals(contentEncoding)) {
+                data = file.getGzipData();
+            } else if (CONTENT_ENCODING_DEFLATE.equals(contentEncoding)) {
+                data = file.getDeflateData();
+            } else {
+                data = file.getData();
+            }
+            final long length = data == null ? file.getContentLength() : data.length;
+
+            final List<ByteRanges.ByteRange> ranges = isRangeApplicable(request, etag, file.getLastModifiedSeconds())
+                    ? ByteRanges.parse(request.getHeader("range"), length)
+                    : null;
+            final HttpResponse response;
+            if (ranges == null) {
+                response = data == null
+                        ? HttpResponse.withFile(HttpURLConnection.HTTP_OK, Constants.HTTP_OK_MESSAGE, file.getContentType(), file.getFile(), length)
+                        : HttpResponse.withData(HttpURLConnection.HTTP_OK, Constants.HTTP_OK_MESSAGE, file.getContentType(), data);
+            } else if (ranges.isEmpty()) {
+                response = HttpResponse.withoutData(Constants.HTTP_RANGE_NOT_SATISFIABLE, Constants.HTTP_RANGE_NOT_SATISFIABLE_MESSAGE)
+                        .withHeader("Content-Range", "bytes */" + length);
+            } else {
+                response = partialContent(file, data, length, ranges);
+            }
+            if (contentEncoding != null) {
+                response.withHeader("Content-Encoding", contentEncoding);
+            }
+            return withValidators(response, file, etag).withHeader("Accept-Ranges", "bytes");
+        } catch (Exception exception) {
+            logger.log(Level.SEVERE, "Error processing request", exception);
+            // After handling all client errors, we get here means a server error. So, we send 5xx.
+            return HttpResponse.withoutData(HttpURLConnection.HTTP_INTERNAL_ERROR, Constants.HTTP_INTERNAL_ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * @param data the cached representation, or {@code null} to send the ranges straight from the file
+     * @return a {@code 206} response with a single part, or with a {@code multipart/byteranges} body for several ranges
+     */
+    private static HttpResponse partialContent(final StaticFileCache.Entry file, final byte[] data, final long length,
+                                               final List<ByteRanges.ByteRange> ranges) {
+        if (ranges.size() == 1) {
+            final ByteRanges.ByteRange range = ranges.get(0);
+            final HttpResponse response = data == null
+                    ? HttpResponse.withFileRegions(HttpURLConnection.HTTP_PARTIAL, Constants.HTTP_PARTIAL_CONTENT_MESSAGE, file.getContentType(), file.getFile(),
+                    List.of(new HttpResponse.FileRegion(new byte[0], range.first(), range.length())), new byte[0])
+                    // Cached representations are below ZERO_COPY_THRESHOLD_BYTES, so the copy is bounded.
+                    : HttpResponse.withData(HttpURLConnection.HTTP_PARTIAL, Constants.HTTP_PARTIAL_CONTENT_MESSAGE, file.getContentType(),
+                    Arrays.copyOfRange(data, (int) range.first(), (int) range.last() + 1));
+            return response.withHeader("Content-Range", range.contentRange(length));
+        }
+
+        final String boundary = ByteRanges.newBoundary();
+        final String contentType = "multipart/byteranges; boundary=" + boundary;
+        final byte[] tail = ByteRanges.multipartTail(boundary);
+        if (data == null) {
+            final List<HttpResponse.FileRegion> regions = new ArrayList<>(ranges.size());
+            for (ByteRanges.ByteRange range : ranges) {
+                regions.add(new HttpResponse.FileRegion(ByteRanges.partHead(boundary, file.getContentType(), range, length), range.first(), range.length()));
+            }
+            return HttpResponse.withFileRegions(HttpURLConnection.HTTP_PARTIAL, Constants.HTTP_PARTIAL_CONTENT_MESSAGE, contentType, file.getFile(), regions, tail);
+        }
+        // Coalesced ranges never add up to more than the representation, so the body stays bounded as well.
+        final ByteArrayOutputStream body = new ByteArrayOutputStream((int) Math.min(length + 128L * ranges.size(), Integer.MAX_VALUE));
+        for (ByteRanges.ByteRange range : ranges) {
+            body.writeBytes(ByteRanges.partHead(boundary, file.getContentType(), range, length));
+            body.write(data, (int) range.first(), (int) range.length());
+        }
+        body.writeBytes(tail);
+        return HttpResponse.withData(HttpURLConnection.HTTP_PARTIAL, Constants.HTTP_PARTIAL_CONTENT_MESSAGE, contentType, body.toByteArray());
+    }
+
+    private HttpResponse processDeviceStateRequest(final HttpRequest request, final String httpMethod, final String path) throws IOException {
+        if (httpMethod.equals(Constants.HTTP_METHOD_PUT)) {
+            final byte[] body = request.getBody();
+            if (body.length > Constants.DEVICE_STATE_MAX_BYTES) {
+                logger.log(Level.FINE, "Device state for {0} exceeds " + Constants.DEVICE_STATE_MAX_BYTES + " bytes", path);
+                return HttpResponse.withoutData(HttpURLConnection.HTTP_ENTITY_TOO_LARGE, Constants.HTTP_CONTENT_TOO_LARGE_MESSAGE);
+            }
+            if (!isJsonObject(body)) {
+                logger.log(Level.FINE, "Device state for {0} is not a JSON object", path);
+                return HttpResponse.withoutData(HttpURLConnection.HTTP_BAD_REQUEST, Constants.HTTP_BAD_REQUEST_MESSAGE);
+            }
+            final DeviceStateStore.State state = deviceStateStore.put(path, body);
+            if (state == null) {
+                logger.log(Level.FINE, "Unknown device component: {0}", path);
+                return HttpResponse.withoutData(HttpURLConnection.HTTP_NOT_FOUND, Constants.HTTP_NOT_FOUND_MESSAGE);
+            }
+            return HttpResponse.withoutData(HttpURLConnection.HTTP_OK, Constants.HTTP_OK_MESSAGE).withHeader("ETag", state.getEtag());
+        }
+
+        if (!httpMethod.equals(Constants.HTTP_METHOD_GET)) {
+            logger.log(Level.FINE, "Disallowed http method: {0}", httpMethod);
+            return HttpResponse.withoutData(HttpURLConnection.HTTP_BAD_METHOD, Constants.HTTP_BAD_METHOD_MESSAGE);
+        }
+        final DeviceStateStore.State state = deviceStateStore.get(path);
+        if (state == null) {
+            logger.log(Level.FINE, "Requested file: {0} not found", path);
+            return HttpResponse.withoutData(HttpURLConnection.HTTP_NOT_FOUND, Constants.HTTP_NOT_FOUND_MESSAGE);
+        }
+        final HttpResponse response = isNotModified(request, state.getEtag(), state.getLastModifiedSeconds())
+                ? HttpResponse.notModified()
+                : HttpResponse.withData(HttpURLConnection.HTTP_OK, Constants.HTTP_OK_MESSAGE, Utility.getContentType(path), state.getData());
+        return response.withHeader("ETag", state.getEtag())
+                .withHeader("Last-Modified", state.getLastModified())
+                .withHeader("Cache-Control", Constants.HTTP_CACHE_CONTROL);
+    }
+
+    private HttpResponse processEventStreamRequest(final HttpRequest request, final String httpMethod) {
+        if (!httpMethod.equals(Constants.HTTP_METHOD_GET)) {
+            logger.log(Level.FINE, "Disallowed http method: {0}", httpMethod);
+            return HttpResponse.withoutData(HttpURLConnection.HTTP_BAD_METHOD, Constants.HTTP_BAD_METHOD_MESSAGE);
+        }
+        // EventSource reconnects with the id of the last event it received, so missed events are replayed.
+        final EventBroadcaster.Subscription subscription = eventBroadcaster.subscribe(request.getHeader("last-event-id"));
+        if (subscription == null) {
+            logger.log(Level.WARNING, "Event stream subscriber limit reached");
+            return HttpResponse.withoutData(HttpURLConnection.HTTP_UNAVAILABLE, Constants.HTTP_UNAVAILABLE_MESSAGE)
+                    .withHeader("Retry-After", String.valueOf(Constants.EVENT_STREAM_RETRY_AFTER_SECONDS));
+        }
+        return HttpResponse.eventStream(subscription);
+    }
+
+    private HttpResponse processMetricsRequest(final String httpMethod) {
+        if (!httpMethod.equals(Constants.HTTP_METHOD_GET)) {
+            logger.log(Level.FINE, "Disallowed http method: {0}", httpMethod);
+            return HttpResponse.withoutData(HttpURLConnection.HTTP_BAD_METHOD, Constants.HTTP_BAD_METHOD_MESSAGE);
+        }
+        return HttpResponse.withData(HttpURLConnection.HTTP_OK, Constants.HTTP_OK_MESSAGE, METRICS_CONTENT_TYPE, metrics.scrape())
+                .withHeader("Cache-Control", "no-store");
+    }
+
+    private ServerMetrics.PathClass pathClassOf(final String path) {
+        if (deviceStateStore.isStatePath(path)) {
+            return ServerMetrics.PathClass.STATE;
+        }
+        if (path.equals(Constants.EVENT_STREAM_PATH)) {
+            return ServerMetrics.PathClass.EVENTS;
+        }
+        if (path.equals(Constants.METRICS_PATH)) {
+            return ServerMetrics.PathClass.METRICS;
+        }
+        return ServerMetrics.PathClass.STATIC;
+    }
+
+    /**
+     * @return the data of a state event, e.g. {@code {"component":"heating","state":{"temperature": 21}}}
+     */
+    private static String stateChangedEventData(final String component, final DeviceStateStore.State state) {
+        // Component names are restricted to [A-Za-z0-9_-] and need no escaping.
+        return "{\"component\":\"" + component + "\",\"state\":" + new String(state.getData(), StandardCharsets.UTF_8).trim() + "}";
+    }
+
+    /**
+     * A cheap plausibility check, not a full JSON parse: the state must be a single JSON object.
+     */
+    private static boolean isJsonObject(final byte[] body) {
+        int start = 0;
+        int end = body.length;
+        while (start < end && isJsonWhitespace(body[start])) start++;
+        while (end > start && isJsonWhitespace(body[end - 1])) end--;
+        return end - start >= 2 && body[start] == '{' && body[end - 1] == '}';
+    }
+
+    private static boolean isJsonWhitespace(final byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    /**
+     * @param client the client's address, for the access log; may be {@code null}
+     * @return the error response for a request the {@link HttpRequestParser} rejected
+     */
+    HttpResponse rejectedRequestResponse(final HttpRequestParser.Result result, final InetAddress client) {
+        metrics.recordRejectedRequest(result);
+        final HttpResponse response = switch (result) {
+            case URI_TOO_LONG -> HttpResponse.withoutData(HttpURLConnection.HTTP_REQ_TOO_LONG, Constants.HTTP_URI_TOO_LONG_MESSAGE);
+            case HEADERS_TOO_LARGE -> HttpResponse.withoutData(Constants.HTTP_HEADERS_TOO_LARGE, Constants.HTTP_HEADERS_TOO_LARGE_MESSAGE);
+            case BODY_TOO_LARGE -> HttpResponse.withoutData(HttpURLConnection.HTTP_ENTITY_TOO_LARGE, Constants.HTTP_CONTENT_TOO_LARGE_MESSAGE);
+            default -> HttpResponse.withoutData(HttpURLConnection.HTTP_BAD_REQUEST, Constants.HTTP_BAD_REQUEST_MESSAGE);
+        };
+        accessLog.record(client, null, null, response.getStatusCode(), response.getContentLength(), 0);
+        return response;
+    }
+
+    private static HttpResponse withValidators(final HttpResponse response, final StaticFileCache.Entry file, final String etag) {
+        response.withHeader("ETag", etag)
+                .withHeader("Last-Modified", file.getLastModified())
+                .withHeader("Cache-Control", Constants.HTTP_CACHE_CONTROL);
+        if (file.isCompressible()) {
+            response.withHeader("Vary", "Accept-Encoding");
+        }
+        return response;
+    }
+
+    /**
+     * Evaluates {@code If-None-Match} and, only if absent, {@code If-Modified-Since}
+     * (RFC 9110, section 13.2.2).
+     */
+    static boolean isNotModified(final HttpRequest request, final String etag, final long lastModifiedSeconds) {
+        final String ifNoneMatch = request.getHeader("if-none-match");
+        if (ifNoneMatch != null) {
+            return matchesEtag(ifNoneMatch, etag);
+        }
+        final String ifModifiedSince = request.getHeader("if-modified-since");
+        if (ifModifiedSince != null) {
+            final long since = Utility.parseHttpDate(ifModifiedSince);
+            return since >= 0 && lastModifiedSeconds <= since;
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates {@code If-Range} (RFC 9110, section 13.1.5): the range is only sent if the client's
+     * copy is current, judged by a strong comparison of entity tags or an exact {@code Last-Modified} date.
+     */
+    static boolean isRangeApplicable(final HttpRequest request, final String etag, final long lastModifiedSeconds) {
+        final String ifRange = request.getHeader("if-range");
+        if (ifRange == null) {
+            return true;
+        }
+        final String validator = ifRange.trim();
+        if (validator.startsWith("\"") || validator.startsWith("W/")) {
+            return validator.equals(etag) && !etag.startsWith("W/");
+        }
+        final long date = Utility.parseHttpDate(validator);
+        return date >= 0 && date == lastModifiedSeconds;
+    }
+
+    /**
+     * Weak comparison of an {@code If-None-Match} list against the current entity tag.
+     */
+    private static boolean matchesEtag(final String ifNoneMatch, final String etag) {
+        int start = 0;
+        while (start < ifNoneMatch.length()) {
+            int end = ifNoneMatch.indexOf(',', start);
+            if (end < 0) {
+                end = ifNoneMatch.length();
+            }
+            String candidate = ifNoneMatch.substring(start, end).trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(etag)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Picks the content coding for a response from the request's {@code Accept-Encoding}
+     * header (RFC 9110, section 12.5.3). Codings without an available variant are skipped,
+     * gzip wins a tie with deflate.
+     *
+     * @return {@code "gzip"}, {@code "deflate"}, or {@code null} for the identity coding
+     */
+    static String negotiateContentEncoding(final String acceptEncoding, final boolean gzipAvailable, final boolean deflateAvailable) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty() || !(gzipAvailable || deflateAvailable)) {
+            return null;
+        }
+
+        double gzipQuality = -1;
+        double deflateQuality = -1;
+        double wildcardQuality = -1;
+        int start = 0;
+        while (start < acceptEncoding.length()) {
+            int end = acceptEncoding.indexOf(',', start);
+            if (end < 0) {
+                end = acceptEncoding.length();
+            }
+            final int parametersStart = acceptEncoding.indexOf(';', start);
+            final int codingEnd = parametersStart >= 0 && parametersStart < end ? parametersStart : end;
+            final String coding = acceptEncoding.substring(start, codingEnd).trim();
+            final double quality = codingEnd < end ? parseQuality(acceptEncoding.substring(codingEnd + 1, end)) : 1;
+
+            if (coding.equalsIgnoreCase(CONTENT_ENCODING_GZIP) || coding.equalsIgnoreCase("x-gzip")) {
+                gzipQuality = quality;
+            } else if (coding.equalsIgnoreCase(CONTENT_ENCODING_DEFLATE)) {
+                deflateQuality = quality;
+            } else if (coding.equals("*")) {
+                wildcardQuality = quality;
+            }
+            start = end + 1;
+        }
+
+        // Codings not listed explicitly are acceptable only through "*".
+        gzipQuality = gzipAvailable ? (gzipQuality >= 0 ? gzipQuality : wildcardQuality) : 0;
+        deflateQuality = deflateAvailable ? (deflateQuality >= 0 ? deflateQuality : wildcardQuality) : 0;
+        if (gzipQuality <= 0 && deflateQuality <= 0) {
+            return null;
+        }
+        return gzipQuality >= deflateQuality ? CONTENT_ENCODING_GZIP : CONTENT_ENCODING_DEFLATE;
+    }
+
+    private static double parseQuality(final String parameters) {
+        final String parameter = parameters.trim();
+        if (parameter.length() < 2 || Character.toLowerCase(parameter.charAt(0)) != 'q' || parameter.charAt(1) != '=') {
+            return 1;
+        }
+        try {
+            return Double.parseDouble(parameter.substring(2).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Objects;
+
+/**
+ * Reads requests from a blocking socket {@link InputStream} into a reusable buffer and
+ * parses them with an {@link HttpRequestParser}.
+ * <p>
+ * Bytes following a request (e.g. a pipelined next request) stay buffered and are
+ * parsed by the next call to {@link #next()} or {@link #nextBuffered()}. A {@link java.net.SocketTimeoutException}
+ * thrown while waiting for bytes leaves the reader intact, so reading can be resumed.
+ */
+final class HttpRequestReader {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private final HttpRequestParser parser = new HttpRequestParser();
+    private byte[] buffer = new byte[READ_BUFFER_SIZE];
+    private int start;
+    private int end;
+    private boolean requestPending;
+
+    HttpRequestReader(final InputStream in) {
+        Objects.requireNonNull(in, "in must not be null");
+        this.in = in;
+    }
+
+    /**
+     * Blocks until the next request is complete or found to be invalid.
+     *
+     * @return {@link HttpRequestParser.Result#COMPLETE}, an error result, or {@code null} at the end of the stream
+     */
+    HttpRequestParser.Result next() throws IOException {
+        skipPendingRequest();
+        while (true) {
+            final HttpRequestParser.Result result = parser.parse(buffer, start, end);
+            if (result == HttpRequestParser.Result.COMPLETE) {
+                requestPending = true;
+                return result;
+            }
+            if (result != HttpRequestParser.Result.INCOMPLETE) {
+                return result;
+            }
+
+            makeRoom();
+            final int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                return null;
+            }
+            end += read;
+        }
+    }
+
+    /**
+     * Parses the next request from the bytes already buffered, without blocking. Used to
+     * answer requests a client has pipelined.
+     *
+     * @return {@link HttpRequestParser.Result#COMPLETE}, an error result, or
+     * {@link HttpRequestParser.Result#INCOMPLETE} if more bytes must be read by {@link #next()}
+     */
+    HttpRequestParser.Result nextBuffered() {
+        skipPendingRequest();
+        final HttpRequestParser.Result result = parser.parse(buffer, start, end);
+        requestPending = result == HttpRequestParser.Result.COMPLETE;
+        return result;
+    }
+
+    /**
+     * @return the request returned by the last successful {@link #next()} or {@link #nextBuffered()}; valid until the following call
+     */
+    HttpRequest getRequest() {
+        return parser.getRequest();
+    }
+
+    boolean isKeepAliveRequested() {
+        return parser.isKeepAliveRequested();
+    }
+
+    /**
+     * Hands the rest of the connection over to another protocol, e.g. HTTP/2. The reader
+     * must not be used afterwards.
+     *
+     * @param skipRequest whether the bytes of the last request are consumed, or are read again from the returned stream
+     * @return the bytes buffered but not parsed yet, followed by the rest of the socket stream
+     */
+    InputStream detach(final boolean skipRequest) {
+        if (skipRequest) {
+            skipPendingRequest();
+        }
+        final InputStream buffered = new ByteArrayInputStream(buffer, start, end - start);
+        start = end;
+        requestPending = false;
+        return new SequenceInputStream(buffered, in);
+    }
+
+    private void skipPendingRequest() {
+        if (requestPending) {
+            start = parser.getRequestEnd();
+            parser.reset();
+            requestPending = false;
+        }
+    }
+
+    private void makeRoom() {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == buffer.length) {
+            // Bounded: the parser fails requests exceeding its head and body limits.
+            final byte[] grown = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, 0, end);
+            buffer = grown;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package server;
+
+import common.Constants;
+import common.HttpResponseEncoder;
+import common.Utility;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serial;
+import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * An HTTP response produced by the {@link HttpRequestProcessor}.
+ * <p>
+ * The response is independent of the transport: blocking handlers write it to the
+ * socket via {@link #writeTo(HttpResponseEncoder, OutputStream, GatheringByteChannel, boolean)},
+ * while the non-blocking engine encodes its head with {@link #encodeHead(HttpResponseEncoder, boolean)}
+ * and drains head and body as the socket becomes writable.
+ * <p>
+ * The body is either held in memory or, for large files, referenced by its
+ * {@link Path} so that it can be sent with zero-copy {@code transferTo}. A file body
+ * consists of {@link FileRegion}s, so that single ranges and {@code multipart/byteranges}
+ * of a large file are sent straight from the file as well.
+ */
+public class HttpResponse {
+    private static final String DEFAULT_CONTENT_TYPE = "text/html";
+    private static final String EVENT_STREAM_CONTENT_TYPE = "text/event-stream";
+    private static final byte[] NO_BYTES = new byte[0];
+
+    /**
+     * A part of a file body: {@code head} (e.g. the delimiter and headers of a multipart part),
+     * followed by {@code length} bytes of the file starting at {@code offset}.
+     */
+    public record FileRegion(byte[] head, long offset, long length) {
+        public FileRegion {
+            Objects.requireNonNull(head, "head must not be null");
+        }
+    }
+
+    /**
+     * The response could not be sent, but nothing of it has been written either, so the
+     * connection can still be answered with a 5xx (e.g. its file was deleted or truncated).
+     */
+    public static final class NotSentException extends IOException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        NotSentException(final String message, final Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private final int statusCode;
+    private final String message;
+    private final String contentType;
+    private final byte[] body;
+    private final Path file;
+    private final List<FileRegion> fileRegions;
+    private final byte[] fileTail;
+    private final long contentLength;
+    private final EventBroadcaster.Subscription eventStream;
+    private Map<String, String> headers = Map.of();
+
+    private HttpResponse(final int statusCode, final String message, final String contentType, final byte[] body, final Path file,
+                         final List<FileRegion> fileRegions, final byte[] fileTail, final long contentLength, final EventBroadcaster.Subscription eventStream) {
+        Objects.requireNonNull(message, "message must not be null");
+
+        this.statusCode = statusCode;
+        this.message = message;
+        this.contentType = contentType;
+        this.body = body;
+        this.file = file;
+        this.fileRegions = fileRegions;
+        this.fileTail = fileTail;
+        this.contentLength = contentLength;
+        this.eventStream = eventStream;
+    }
+
+    public static HttpResponse withoutData(final int statusCode, final String message) {
+        return new HttpResponse(statusCode, message, null, null, null, null, null, 0, null);
+    }
+
+    public static HttpResponse notModified() {
+        return new HttpResponse(HttpURLConnection.HTTP_NOT_MODIFIED, Constants.HTTP_NOT_MODIFIED_MESSAGE, null, null, null, null, null, 0, null);
+    }
+
+    public static HttpResponse withData(final int statusCode, final String message, final String contentType, final byte[] body) {
+        Objects.requireNonNull(contentType, "contentType must not be null");
+        Objects.requireNonNull(body, "body must not be null");
+        return new HttpResponse(statusCode, message, contentType, body, null, null, null, body.length, null);
+    }
+
+    public static HttpResponse withFile(final int statusCode, final String message, final String contentType, final Path file, final long contentLength) {
+        return withFileRegions(statusCode, message, contentType, file, List.of(new FileRegion(NO_BYTES, 0, contentLength)), NO_BYTES);
+    }
+
+    /**
+     * A response whose body is taken from regions of a file, e.g. the parts of a {@code multipart/byteranges} body.
+     *
+     * @param tail sent after the last region, e.g. the multipart close delimiter
+     */
+    public static HttpResponse withFileRegions(final int statusCode, final String message, final String contentType, final Path file,
+                                               final List<FileRegion> regions, final byte[] tail) {
+        Objects.requireNonNull(contentType, "contentType must not be null");
+        Objects.requireNonNull(file, "file must not be null");
+        Objects.requireNonNull(regions, "regions must not be null");
+        Objects.requireNonNull(tail, "tail must not be null");
+        long contentLength = tail.length;
+        for (FileRegion region : regions) {
+            contentLength += region.head().length + region.length();
+        }
+        return new HttpResponse(statusCode, message, contentType, null, file, List.copyOf(regions), tail, contentLength, null);
+    }
+
+    /**
+     * A {@code text/event-stream} response: after the head, the events of the subscription are
+     * streamed until it is closed. The body has no length; it ends when the connection is closed.
+     */
+    public static HttpResponse eventStream(final EventBroadcaster.Subscription subscription) {
+        Objects.requireNonNull(subscription, "subscription must not be null");
+        return new HttpResponse(HttpURLConnection.HTTP_OK, Constants.HTTP_OK_MESSAGE, EVENT_STREAM_CONTENT_TYPE, null, null, null, null, -1, subscription)
+                .withHeader("Cache-Control", "no-cache");
+    }
+
+    /**
+     * Adds a response header, e.g. {@code Content-Encoding}. The framing headers
+     * ({@code Content-Type}, {@code Content-Length}, {@code Connection}) are always written.
+     */
+    public HttpResponse withHeader(final String name, final String value) {
+        Objects.requireNonNull(name, "name must not be null");
+        Objects.requireNonNull(value, "value must not be null");
+        if (headers.isEmpty()) {
+            headers = new LinkedHashMap<>();
+        }
+        headers.put(name, value);
+        return this;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the {@code Content-Type} sent with the response (a 304 sends none)
+     */
+    public String getContentType() {
+        return contentType == null ? DEFAULT_CONTENT_TYPE : contentType;
+    }
+
+    /**
+     * @return the headers added with {@link #withHeader(String, String)}, in order
+     */
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    public boolean hasFileBody() {
+        return file != null;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return the regions making up the file body, in order
+     */
+    public List<FileRegion> getFileRegions() {
+        return fileRegions;
+    }
+
+    /**
+     * @return the bytes following the last file region, possibly empty
+     */
+    public byte[] getFileTail() {
+        return fileTail;
+    }
+
+    /**
+     * @return the number of bytes of the file the regions extend to; a shorter file was truncated
+     */
+    public long getFileRegionsEnd() {
+        long end = 0;
+        for (FileRegion region : fileRegions) {
+            end = Math.max(end, region.offset() + region.length());
+        }
+        return end;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public boolean isEventStream() {
+        return eventStream != null;
+    }
+
+    public EventBroadcaster.Subscription getEventStream() {
+        return eventStream;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Writes the response with as few socket writes as possible, see {@link HttpResponseEncoder}.
+     *
+     * @param encoder the connection's encoder; its previous content is discarded
+     * @param channel the socket's channel used for gathering writes and zero-copy file transmission,
+     *                or {@code null} to write through {@code out} only
+     * @throws NotSentException if the response failed before any of it was written
+     */
+    public void writeTo(final HttpResponseEncoder encoder, final OutputStream out, final GatheringByteChannel channel, final boolean keepAlive) throws IOException {
+        Objects.requireNonNull(out, "out must not be null");
+
+        encodeHead(encoder.reset(), keepAlive);
+        if (eventStream != null) {
+            encoder.writeTo(out);
+            out.flush();
+            streamEvents(encoder, out);
+            return;
+        }
+        if (file != null) {
+            writeFileBody(encoder, out, channel);
+            return;
+        }
+        if (body == null) {
+            encoder.writeTo(out);
+        } else {
+            encoder.writeTo(out, channel, body);
+        }
+        out.flush();
+    }
+
+    /**
+     * Appends the complete response to {@code encoder} if it can be sent from the encoder's
+     * buffer, i.e. it has no file body and a body (if any) small enough to be coalesced. This
+     * lets a connection batch the responses to pipelined requests into one write.
+     *
+     * @return {@code false}, with nothing appended, if the response must be written by other means
+     */
+    public boolean appendTo(final HttpResponseEncoder encoder, final boolean keepAlive) {
+        if (file != null || eventStream != null || (body != null && body.length > HttpResponseEncoder.COALESCE_BODY_MAX_BYTES)) {
+            return false;
+        }
+        encodeHead(encoder, keepAlive);
+        if (body != null) {
+            encoder.body(body);
+        }
+        return true;
+    }
+
+    /**
+     * Appends the response head to {@code encoder}. The body (in memory or in a file) is
+     * left to the caller.
+     */
+    public HttpResponseEncoder encodeHead(final HttpResponseEncoder encoder, final boolean keepAlive) {
+        Objects.requireNonNull(encoder, "encoder must not be null");
+
+        encoder.startHead(statusCode, message);
+        // A 304 has no body by definition, so neither Content-Type nor Content-Length is sent.
+        if (statusCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+            encoder.contentType(getContentType());
+            if (contentLength >= 0) {
+                encoder.contentLength(contentLength);
+            }
+        }
+        // An event stream is delimited by closing the connection.
+        return encoder.headers(headers).connection(keepAlive && eventStream == null).endHead();
+    }
+
+    private void writeFileBody(final HttpResponseEncoder head, final OutputStream out, final GatheringByteChannel channel) throws IOException {
+        final FileChannel fileChannel;
+        try {
+            fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new NotSentException("File %s could not be opened".formatted(file), e);
+        }
+        try (fileChannel) {
+            // Fail before anything is sent, so that the caller can still answer with 5xx.
+            if (fileChannel.size() < getFileRegionsEnd()) {
+                throw new NotSentException("File %s was truncated before being sent".formatted(file), null);
+            }
+            head.writeTo(out);
+            for (FileRegion region : fileRegions) {
+                out.write(region.head());
+                out.flush();
+                Utility.sendFileRegion(out, channel, fileChannel, region.offset(), region.length());
+            }
+            out.write(fileTail);
+            out.flush();
+        }
+    }
+
+    /**
+     * Blocks, writing the events of the stream in batches, until the subscription is closed
+     * or the client is gone.
+     */
+    private void streamEvents(final HttpResponseEncoder encoder, final OutputStream out) throws IOException {
+        // A write blocked on a slow client is aborted by closing the socket's stream once the subscriber is evicted.
+        eventStream.setListener(() -> {
+            if (eventStream.isClosed()) {
+                closeQuietly(out);
+            }
+        });
+        try {
+            while (true) {
+                encoder.reset();
+                byte[] frame;
+                while (encoder.length() < Constants.EVENT_STREAM_WRITE_BATCH_BYTES && (frame = eventStream.poll()) != null) {
+                    encoder.body(frame);
+                }
+                if (encoder.length() > 0) {
+                    encoder.writeTo(out);
+                    out.flush();
+                } else if (eventStream.isClosed()) {
+                    return;
+                } else {
+                    eventStream.await();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            eventStream.close();
+        }
+    }
+
+    private static void closeQuietly(final OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // The stream is being abandoned anyway.
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package server;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Closes connections that stay idle (no complete request) longer than their timeout.
+ * <p>
+ * The timeouts are kept in a hashed timer wheel: a ring of slots, each covering one tick,
+ * advanced by a single daemon thread. A {@link Timeout} is armed by writing its deadline
+ * and, if it is not in the wheel yet, handing it over through a lock-free queue; re-arming
+ * or disarming an idle timeout once per request is therefore a volatile write, without
+ * allocation, locking or touching the wheel. When the wheel reaches a timeout's slot, the
+ * deadline is checked: expired timeouts run their action, disarmed ones leave the wheel and
+ * re-armed ones move to the slot of their new deadline.
+ * <p>
+ * Unlike a socket read timeout, which restarts with every byte received, the deadline is
+ * absolute, so a client trickling in a request byte by byte is reaped as well. Deadlines
+ * are honoured with the granularity of one tick.
+ */
+public final class IdleConnectionReaper implements Closeable {
+    private static final Logger logger = Logger.getLogger(IdleConnectionReaper.class.getName());
+    private static final long DISARMED = 0;
+
+    private final long tickNanos;
+    private final Queue<Timeout>[] wheel;
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService ticker;
+    private final LongAdder reaped = new LongAdder();
+    // Only accessed by the ticker thread.
+    private long currentTick;
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * The idle timeout of one connection.
+     */
+    public final class Timeout {
+        private final Runnable onExpiry;
+        private volatile long deadlineNanos = DISARMED;
+        private volatile boolean cancelled;
+        // Whether the timeout is in the wheel (or on its way into it).
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private Timeout(final Runnable onExpiry) {
+            this.onExpiry = onExpiry;
+        }
+
+        /**
+         * (Re-)starts the timeout, replacing a deadline set before.
+         */
+        public void arm(final long timeoutMillis) {
+            if (cancelled) {
+                return;
+            }
+            // Never DISARMED, even if nanoTime happens to wrap to it.
+            deadlineNanos = (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) | 1;
+            if (scheduled.compareAndSet(false, true)) {
+                pendingTimeouts.add(this);
+            }
+        }
+
+        /**
+         * Stops the timeout while the connection is busy; it can be armed again.
+         */
+        public void disarm() {
+            deadlineNanos = DISARMED;
+        }
+
+        public boolean isArmed() {
+            return deadlineNanos != DISARMED;
+        }
+
+        /**
+         * @return whether the timeout is armed and its deadline has passed
+         */
+        public boolean isExpired() {
+            final long deadline = deadlineNanos;
+            return deadline != DISARMED && System.nanoTime() - deadline >= 0;
+        }
+
+        /**
+         * Removes the timeout for good, e.g. when the connection was closed.
+         */
+        public void cancel() {
+            cancelled = true;
+            deadlineNanos = DISARMED;
+        }
+    }
+
+    /**
+     * @param tickMillis the granularity of the deadlines
+     * @param wheelSize  the number of slots; timeouts beyond one revolution are re-checked once per revolution
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public IdleConnectionReaper(final long tickMillis, final int wheelSize) {
+        if (tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickMillis and wheelSize must be positive");
+        }
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Queue[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "idle-connection-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param onExpiry run on the reaper's thread when the timeout expires; it must not block.
+     *                 An action handed over to another thread should check {@link Timeout#isExpired()}
+     *                 there, as the connection may have become busy meanwhile
+     * @return a timeout that is not armed yet
+     */
+    public Timeout newTimeout(final Runnable onExpiry) {
+        Objects.requireNonNull(onExpiry, "onExpiry must not be null");
+        return new Timeout(onExpiry);
+    }
+
+    public long getReapedCount() {
+        return reaped.sum();
+    }
+
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "IdleConnectionReaper[tick=%dms, slots=%d, reaped=%d]".formatted(TimeUnit.NANOSECONDS.toMillis(tickNanos), wheel.length, getReapedCount());
+    }
+
+    private void tick() {
+        try {
+            final long now = System.nanoTime();
+            final long nowTick = (now - startNanos) / tickNanos;
+            Timeout timeout;
+            while ((timeout = pendingTimeouts.poll()) != null) {
+                schedule(timeout, nowTick);
+            }
+            // Catch up on ticks missed by a delayed run, but never more than one revolution.
+            for (long tick = Math.max(currentTick, nowTick - wheel.length + 1); tick <= nowTick; tick++) {
+                expire(wheel[slotOf(tick)], now, nowTick);
+            }
+            currentTick = nowTick + 1;
+        } catch (RuntimeException e) {
+            // An exception would cancel the periodic task, and with it all reaping.
+            logger.log(Level.SEVERE, "Idle connection reaper tick failed", e);
+        }
+    }
+
+    private void expire(final Queue<Timeout> slot, final long now, final long nowTick) {
+        for (int remaining = slot.size(); remaining > 0; remaining--) {
+            final Timeout timeout = slot.poll();
+            final long deadline = timeout.deadlineNanos;
+            if (deadline != DISARMED && now - deadline < 0) {
+                schedule(timeout, nowTick);
+                continue;
+            }
+            // Leaves the wheel; arm() hands it over again from now on.
+            timeout.scheduled.set(false);
+            if (timeout.isExpired()) {
+                reaped.increment();
+                try {
+                    timeout.onExpiry.run();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Error reaping idle connection", e);
+                }
+            } else if (timeout.isArmed() && timeout.scheduled.compareAndSet(false, true)) {
+                // Armed again while it was in the wheel, so arm() did not hand it over.
+                schedule(timeout, nowTick);
+            }
+        }
+    }
+
+    private void schedule(final Timeout timeout, final long nowTick) {
+        final long deadline = timeout.deadlineNanos;
+        // Disarmed timeouts stay until their slot comes up, where they leave the wheel.
+        final long deadlineTick = deadline == DISARMED ? nowTick + 1 : (deadline - startNanos + tickNanos - 1) / tickNanos;
+        // Not before the next tick: the current slot is being (or has been) expired.
+        wheel[slotOf(Math.max(deadlineTick, nowTick + 1))].add(timeout);
+    }
+
+    private int slotOf(final long tick) {
+        return (int) Math.floorMod(tick, (long) wheel.length);
+    }
+}
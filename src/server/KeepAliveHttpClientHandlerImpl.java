@@ -1,156 +1,244 @@
 package server;
 
 import common.Constants;
-import common.Utility;
+import common.HttpResponseEncoder;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-
-import static common.Constants.HTTP_OK_MESSAGE;
-import static common.Constants.SOCKET_TIMEOUT_MILLI_SECONDS;
+import static common.Constants.KEEP_ALIVE_TIMEOUT_MILLI_SECONDS;
+import static common.Constants.MAX_PIPELINED_REQUESTS;
+import static common.Constants.MAX_REQUESTS_PER_CONNECTION;
 
 /**
  * KeepAlive version of the HttpClientHandler supporting HTTP GET and PUT.
- * This implementation uses blocking I/O. It can be improved using non-blocking I/O to scale better
- * with many concurrent connections.
+ * This implementation uses blocking I/O; {@link NioHttpServer} scales better with many concurrent connections.
+ * Requests are parsed from a reusable byte buffer by {@link HttpRequestReader}, so consecutive requests on a
+ * connection cause (almost) no allocation. Requests a client pipelines are answered as a batch: every
+ * complete request already buffered (up to {@link Constants#MAX_PIPELINED_REQUESTS}) is processed and
+ * the responses are sent, in order, with one write.
+ * <p>
+ * A connection is closed by the {@link IdleConnectionReaper} when no complete request arrived within
+ * {@link Constants#KEEP_ALIVE_TIMEOUT_MILLI_SECONDS}, and after {@link Constants#MAX_REQUESTS_PER_CONNECTION}
+ * requests, so that an idle or very long-lived client does not hold a pool thread forever.
+ * <p>
+ * With an {@link Http2ClientHandlerImpl}, a connection switches to HTTP/2 when it starts with the HTTP/2
+ * connection preface ("prior knowledge"), or when a request without a body asks for it with
+ * {@code Upgrade: h2c} and {@code HTTP2-Settings} (RFC 7540, section 3.2): the request is answered with
+ * {@code 101 Switching Protocols}, and its response is sent as the first HTTP/2 stream.
  * <p>
  * Parts of the KeepAlive implementation of this code were generated with the help of OpenAI's ChatGPT.
  */
 public class KeepAliveHttpClientHandlerImpl implements HttpClientHandler {
     private static final Logger logger = Logger.getLogger(KeepAliveHttpClientHandlerImpl.class.getName());
 
+    private static final byte[] SWITCHING_PROTOCOLS_TO_H2C = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private final HttpRequestProcessor requestProcessor;
+    private final IdleConnectionReaper idleConnectionReaper;
+    // null if connections stay with HTTP/1.1.
+    private final Http2ClientHandlerImpl http2ClientHandler;
+
+    public KeepAliveHttpClientHandlerImpl(final HttpRequestProcessor requestProcessor, final IdleConnectionReaper idleConnectionReaper) {
+        Objects.requireNonNull(requestProcessor, "requestProcessor must not be null");
+        Objects.requireNonNull(idleConnectionReaper, "idleConnectionReaper must not be null");
+        this.requestProcessor = requestProcessor;
+        this.idleConnectionReaper = idleConnectionReaper;
+        this.http2ClientHandler = null;
+    }
+
+    /**
+     * @param http2ClientHandler serves the connections that switch to HTTP/2
+     */
+    public KeepAliveHttpClientHandlerImpl(final HttpRequestProcessor requestProcessor, final IdleConnectionReaper idleConnectionReaper,
+                                          final Http2ClientHandlerImpl http2ClientHandler) {
+        Objects.requireNonNull(requestProcessor, "requestProcessor must not be null");
+        Objects.requireNonNull(idleConnectionReaper, "idleConnectionReaper must not be null");
+        Objects.requireNonNull(http2ClientHandler, "http2ClientHandler must not be null");
+        this.requestProcessor = requestProcessor;
+        this.idleConnectionReaper = idleConnectionReaper;
+        this.http2ClientHandler = http2ClientHandler;
+    }
+
     @Override
     public void handleClient(final Socket socket) throws IOException {
         Objects.requireNonNull(socket, "socket must not be null");
 
-        try (socket; BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream())); OutputStream out = socket.getOutputStream()) {
+        final ServerMetrics metrics = requestProcessor.getMetrics();
+        metrics.connectionOpened();
+        final InetAddress client = socket.getInetAddress();
+        int requests = 0;
+        // Taken by either the reaper or the request that arrived in time, so that a request is never processed on a reaped connection.
+        final AtomicBoolean awaitingRequest = new AtomicBoolean();
+        // Closing the socket makes the blocked read fail, which ends the loop below.
+        final IdleConnectionReaper.Timeout idleTimeout = idleConnectionReaper.newTimeout(() -> {
+            if (awaitingRequest.compareAndSet(true, false)) {
+                closeQuietly(socket);
+            }
+        });
+        try (socket; InputStream in = socket.getInputStream(); OutputStream out = socket.getOutputStream()) {
 
-            socket.setSoTimeout(SOCKET_TIMEOUT_MILLI_SECONDS);
+            final HttpRequestReader requestReader = new HttpRequestReader(in);
+            final HttpResponseEncoder responseEncoder = new HttpResponseEncoder();
             boolean keepAlive = true;
 
             while (keepAlive) {
-                String httpRequestLine;
+                HttpRequestParser.Result result;
                 try {
-                    httpRequestLine = in.readLine();
-                } catch (java.net.SocketTimeoutException e) {
-                    // No request within timeout, we can consider it as idle.
-                    continue;
+                    awaitingRequest.set(true);
+                    idleTimeout.arm(KEEP_ALIVE_TIMEOUT_MILLI_SECONDS);
+                    result = requestReader.next();
+                    idleTimeout.disarm();
                 } catch (IOException e) {
-                    System.out.println("Error reading request: " + e.getMessage());
+                    if (socket.isClosed()) {
+                        logger.log(Level.FINE, "Closed idle connection");
+                    } else {
+                        logger.log(Level.FINE, "Error reading request", e);
+                    }
+                    break;
+                }
+                if (!awaitingRequest.compareAndSet(true, false)) {
+                    logger.log(Level.FINE, "Closed idle connection");
                     break;
                 }
 
-                logger.log(Level.INFO, "Request: %s".formatted(httpRequestLine));
+                if (result == null) {
+                    // The client closed the connection.
+                    break;
+                }
 
-                final Map<String, String> headers = getHeaders(in);
-                final String connectionHeaderValue = headers.getOrDefault("connection", "close");
-                keepAlive = connectionHeaderValue.equalsIgnoreCase("keep-alive");
+                if (http2ClientHandler != null && result == HttpRequestParser.Result.COMPLETE) {
+                    final HttpRequest request = requestReader.getRequest();
+                    if (requests == 0 && isHttp2Preface(request)) {
+                        idleTimeout.cancel();
+                        requests = http2ClientHandler.serve(socket, requestReader.detach(false), null, null);
+                        break;
+                    }
+                    final byte[] http2Settings = h2cUpgradeSettings(request);
+                    if (http2Settings != null) {
+                        final HttpResponse response = processRequest(requestReader, result, client);
+                        out.write(SWITCHING_PROTOCOLS_TO_H2C);
+                        out.flush();
+                        idleTimeout.cancel();
+                        requests += http2ClientHandler.serve(socket, requestReader.detach(true), response, http2Settings);
+                        break;
+                    }
+                }
 
-                final int contentLength = getContentLength(headers);
-                processRequest(httpRequestLine, in, contentLength, out, keepAlive);
+                // Answer all requests the client has pipelined so far (up to a limit) and send the responses in one write.
+                responseEncoder.reset();
+                int batchedRequests = 0;
+                do {
+                    // After a malformed request we cannot tell where the next one starts, so we close.
+                    final HttpResponse response = processRequest(requestReader, result, client);
+                    // An event stream holds the connection until it ends and is delimited by closing it.
+                    keepAlive = result == HttpRequestParser.Result.COMPLETE && requestReader.isKeepAliveRequested() && !response.isEventStream()
+                            && requests + 1 < MAX_REQUESTS_PER_CONNECTION;
+                    keepAlive = queueResponse(response, out, responseEncoder, socket.getChannel(), keepAlive);
+                    batchedRequests++;
+                    requests++;
+                } while (keepAlive && batchedRequests < MAX_PIPELINED_REQUESTS
+                        && (result = requestReader.nextBuffered()) != HttpRequestParser.Result.INCOMPLETE);
+                responseEncoder.writeTo(out);
+                out.flush();
             }
 
         } finally {
-            logger.log(Level.INFO, "Socket closed");
+            idleTimeout.cancel();
+            metrics.connectionClosed(requests);
+            logger.log(Level.FINE, "Socket closed");
         }
     }
 
 
-    private void processRequest(final String httpRequestLine, final BufferedReader in, final int contentLength, final OutputStream out, final boolean keepAlive) {
-        Objects.requireNonNull(in, "in must not be null");
-        Objects.requireNonNull(out, "out must not be null");
-
-        try {
-            if (httpRequestLine == null || httpRequestLine.isEmpty() || !Utility.isHttpRequestLineValid(httpRequestLine)) {
-                logger.log(Level.WARNING, "Bad request line: %s".formatted(httpRequestLine));
-                Utility.sendResponseWithoutData(out, HttpURLConnection.HTTP_BAD_REQUEST, Constants.HTTP_BAD_REQUEST_MESSAGE);
-                return;
-            }
-
-            if (contentLength < 0) {
-                logger.log(Level.WARNING, "Bad http content length: %s".formatted(httpRequestLine));
-                Utility.sendResponseWithoutData(out, HttpURLConnection.HTTP_BAD_REQUEST, Constants.HTTP_BAD_REQUEST_MESSAGE);
-                return;
-            }
-
-            String[] httpRequestLineTokens = httpRequestLine.trim().split("\\s+");
-            final String httpMethod = httpRequestLineTokens[0];
-            String fileRequested = httpRequestLineTokens[1];
+    private HttpResponse processRequest(final HttpRequestReader requestReader, final HttpRequestParser.Result result, final InetAddress client) {
+        Objects.requireNonNull(requestReader, "requestReader must not be null");
 
-            // We need to clear the buffer, otherwise we may process the next request with old data.
-            if (httpMethod.equals(Constants.HTTP_METHOD_PUT)) {
-                clearBuffer(in, contentLength);
-                Utility.sendResponseWithoutData(out, HttpURLConnection.HTTP_OK, Constants.HTTP_OK_MESSAGE);
-                logger.log(Level.INFO, "HTTP PUT response");
-                return;
-            }
-
-            // We support only GET and PUT
-            if (!httpMethod.equals(Constants.HTTP_METHOD_GET)) {
-                logger.log(Level.WARNING, "Disallowed http method: %s".formatted(httpMethod));
-                Utility.sendResponseWithoutData(out, HttpURLConnection.HTTP_BAD_METHOD, Constants.HTTP_BAD_METHOD_MESSAGE);
-                return;
-            }
+        if (result != HttpRequestParser.Result.COMPLETE) {
+            return requestProcessor.rejectedRequestResponse(result, client);
+        }
 
-            if (fileRequested.equals("/")) fileRequested = "/index.html";
+        return requestProcessor.process(requestReader.getRequest(), client);
+    }
 
-            final File file = new File(Constants.WEB_ROOT, fileRequested);
-            if (!file.exists() || file.isDirectory()) {
-                logger.log(Level.WARNING, "Requested file: %s not found".formatted(fileRequested));
-                Utility.sendResponseWithoutData(out, HttpURLConnection.HTTP_NOT_FOUND, Constants.HTTP_NOT_FOUND_MESSAGE);
-                return;
-            }
+    /**
+     * The HTTP/2 connection preface starts like an HTTP/1.1 request without headers: {@code PRI * HTTP/2.0}.
+     */
+    private static boolean isHttp2Preface(final HttpRequest request) {
+        return request.getMethod().equals("PRI") && request.getPath().equals("*");
+    }
 
-            final byte[] fileData = Utility.readFileData(file);
-            final String contentType = Utility.getContentType(fileRequested);
-            Utility.sendResponseWithData(out, HttpURLConnection.HTTP_OK, HTTP_OK_MESSAGE, contentType, fileData, keepAlive);
-        } catch (Exception exception) {
-            logger.log(Level.SEVERE, "Error processing request", exception);
-            // After handling all client errors, we are getting here means a server error. So, we send 5xx.
-            try {
-                Utility.sendResponseWithoutData(out, HttpURLConnection.HTTP_INTERNAL_ERROR, Constants.HTTP_INTERNAL_ERROR_MESSAGE);
-            } catch (IOException ioException) {
-                logger.log(Level.SEVERE, "Error processing request", ioException);
-            }
+    /**
+     * @return the decoded {@code HTTP2-Settings} if the request asks to switch to HTTP/2 and has no body
+     * (which would have to be read before switching), otherwise {@code null}
+     */
+    private static byte[] h2cUpgradeSettings(final HttpRequest request) {
+        final String settings = request.getHeader("http2-settings");
+        if (settings == null || !hasToken(request.getHeader("upgrade"), "h2c") || !hasToken(request.getHeader("connection"), "upgrade")
+                || request.getHeader("content-length") != null || request.getHeader("transfer-encoding") != null) {
+            return null;
+        }
+        try {
+            return Base64.getUrlDecoder().decode(settings.trim());
+        } catch (IllegalArgumentException e) {
+            // Not an upgrade then; the request is served with HTTP/1.1.
+            return null;
         }
     }
 
-    private Map<String, String> getHeaders(BufferedReader in) throws IOException {
-        Map<String, String> headers = new HashMap<>();
-        String line;
-        while (!(line = in.readLine()).isEmpty()) {
-            String[] parts = line.split(":", 2);
-            headers.put(parts[0].trim().toLowerCase(), parts[1].trim());
+    private static boolean hasToken(final String headerValue, final String token) {
+        if (headerValue == null) {
+            return false;
         }
-        return headers;
+        for (String element : headerValue.split(",")) {
+            if (element.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private int getContentLength(Map<String, String> headers) {
-        int contentLength = 0;
-        if (headers.containsKey("content-length")) {
-            try {
-                contentLength = Integer.parseInt(headers.get("content-length"));
-            } catch (NumberFormatException e) {
-                logger.log(Level.WARNING, "Invalid content length", e);
-            }
+    /**
+     * Appends the response to the pending batch in {@code responseEncoder}. A response with a file
+     * or large body is written right away, behind the responses batched before it. If it fails
+     * before any of it was sent (e.g. its file is gone), a 500 is sent instead and the connection closed.
+     *
+     * @return whether the connection stays open
+     */
+    private static boolean queueResponse(final HttpResponse response, final OutputStream out, final HttpResponseEncoder responseEncoder,
+                                         final GatheringByteChannel channel, final boolean keepAlive) throws IOException {
+        if (response.appendTo(responseEncoder, keepAlive)) {
+            return keepAlive;
+        }
+        responseEncoder.writeTo(out);
+        try {
+            response.writeTo(responseEncoder, out, channel, keepAlive);
+            return keepAlive;
+        } catch (HttpResponse.NotSentException e) {
+            logger.log(Level.SEVERE, "Error processing request", e);
+            HttpResponse.withoutData(HttpURLConnection.HTTP_INTERNAL_ERROR, Constants.HTTP_INTERNAL_ERROR_MESSAGE)
+                    .writeTo(responseEncoder, out, channel, false);
+            return false;
+        } finally {
+            responseEncoder.reset();
         }
-        return contentLength;
     }
 
-    private void clearBuffer(final BufferedReader in, final int contentLength) throws IOException {
-        char[] body = new char[contentLength];
-        int read = 0;
-        while (read < contentLength) {
-            int r = in.read(body, read, contentLength - read);
-            if (r == -1) break;
-            read += r;
+    static void closeQuietly(final Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing idle connection", e);
         }
     }
 }
@@ -1,7 +1,13 @@
 package server;
 
+import common.Constants;
+
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -10,8 +16,9 @@ import java.util.logging.Logger;
  * Entry point for the multithreaded HTTP server.
  * <p>
  * This class initializes a {@link ServerSocket} bound to a configurable port
- * and uses a fixed-size {@link ExecutorService} thread pool to handle incoming
- * client connections. Each connection is delegated to a {@link ClientHandler},
+ * and uses a fixed-size {@link ExecutorService} thread pool (or, alternatively,
+ * a virtual thread per connection) to handle incoming client connections. Connections are accepted by one or more
+ * {@link ConnectionAcceptor}s, each feeding its own partition of the pool. Each connection is delegated to a {@link ClientHandler},
  * which processes the request using either a basic {@link HttpClientHandlerImpl}
  * or a {@link KeepAliveHttpClientHandlerImpl}, depending on the server
  * configuration (keep-alive enabled or disabled).
@@ -19,7 +26,8 @@ import java.util.logging.Logger;
  *
  * <p>
  * A JVM shutdown hook ensures that the thread pool is properly shut down when
- * the server is stopped. If threads do not terminate gracefully within a
+ * the server is stopped. The server socket is closed first so that no new
+ * connections are accepted while in-flight clients are drained. If threads do not terminate gracefully within a
  * configured timeout, the thread pool is forcefully shut down.
  * </p>
  *
@@ -27,9 +35,22 @@ import java.util.logging.Logger;
  * Features:
  * <ul>
  *   <li>Configurable server port</li>
- *   <li>Configurable fixed-size thread pool</li>
- *   <li>Graceful and forced shutdown of the thread pool</li>
+ *   <li>Configurable number of {@link ConnectionAcceptor}s ({@code ACCEPTOR_COUNT}), each with its own listener and
+ *   worker partition</li>
+ *   <li>Configurable fixed-size thread pool, or one virtual thread per connection (toggle via {@code VIRTUAL_THREADS})</li>
+ *   <li>Configurable limit of concurrently served clients ({@code MAX_CONCURRENT_CLIENTS}) and of connections waiting
+ *   for a pool thread ({@code ACCEPT_QUEUE_CAPACITY}); connections beyond are shed with {@code 503} and {@code Retry-After}</li>
+ *   <li>Idle and slow connections closed by an {@link IdleConnectionReaper}, keep-alive connections after
+ *   {@link Constants#MAX_REQUESTS_PER_CONNECTION} requests</li>
+ *   <li>Graceful and forced shutdown of the thread pool, draining in-flight clients first</li>
  *   <li>HTTP/1.1 keep-alive support (toggle via {@code HTTP_KEEP_ALIVE})</li>
+ *   <li>HTTP/2 over cleartext connections, multiplexing all requests of a client on one connection
+ *   (toggle via {@code HTTP2_CLEARTEXT})</li>
+ *   <li>Non-blocking {@link NioHttpServer} engine with one event loop per core (toggle via {@code NIO_ENGINE})</li>
+ *   <li>In-memory {@link DeviceStateStore} for PUT updates, persisted in the background and on shutdown</li>
+ *   <li>Server-sent event stream pushing state changes to clients via the {@link EventBroadcaster}</li>
+ *   <li>{@link ServerMetrics} (latency histograms, connection and thread pool gauges) in Prometheus format on {@code /metrics}</li>
+ *   <li>{@link AccessLog} of all requests, written and rotated by a background thread</li>
  *   <li>Error handling and logging for client connections</li>
  * </ul>
  * </p>
@@ -41,48 +62,272 @@ public class Main {
     private static final int THREAD_POOL_SIZE = 10;
     private static final int THREAD_POOL_TERMINATION_TIMEOUT_SECONDS = 10;
     private static final boolean HTTP_KEEP_ALIVE = false;
+    // HTTP/2 over cleartext TCP (prior knowledge and Upgrade: h2c) on top of HTTP/1.1 keep-alive; blocking engine only.
+    private static final boolean HTTP2_CLEARTEXT = false;
+    private static final boolean NIO_ENGINE = false;
+    private static final int NIO_EVENT_LOOP_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final boolean VIRTUAL_THREADS = false;
+    private static final int MAX_CONCURRENT_CLIENTS = 10_000;
+    // Connections waiting for a thread of the fixed pool; a client waiting longer than a few requests take is better told to retry.
+    private static final int ACCEPT_QUEUE_CAPACITY = 100;
+    // Accepting threads, each with its own listener (SO_REUSEPORT) and worker partition; e.g. availableProcessors() under high connection churn.
+    private static final int ACCEPTOR_COUNT = 1;
+    // On the fixed pool every event stream holds a worker thread for as long as its client stays: at most one stream per
+    // this many threads of a partition, so that the other requests still get threads. Further streams are refused with 503.
+    private static final int FIXED_POOL_THREADS_PER_EVENT_STREAM = 4;
 
     public static void main(String[] args) {
-        ExecutorService threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+        final StaticFileCache staticFileCache;
+        try {
+            staticFileCache = new StaticFileCache(Paths.get(Constants.WEB_ROOT), Constants.STATIC_CACHE_MAX_BYTES,
+                    Constants.ZERO_COPY_THRESHOLD_BYTES, Constants.COMPRESSION_MIN_BYTES);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error while initializing static file cache", e);
+            return;
+        }
+        final AccessLog accessLog;
+        try {
+            accessLog = new AccessLog(Paths.get(Constants.ACCESS_LOG_FILE), Constants.ACCESS_LOG_CAPACITY,
+                    Constants.ACCESS_LOG_FLUSH_INTERVAL_MILLI_SECONDS, Constants.ACCESS_LOG_MAX_FILE_BYTES, Constants.ACCESS_LOG_MAX_FILES);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error while opening access log", e);
+            return;
+        }
+        final DeviceStateStore deviceStateStore = new DeviceStateStore(Paths.get(Constants.WEB_ROOT, Constants.DEVICE_STATE_DIRECTORY),
+                Constants.DEVICE_STATE_PATH_PREFIX, Constants.DEVICE_STATE_MAX_BYTES, Constants.DEVICE_STATE_PERSIST_INTERVAL_MILLI_SECONDS);
+        final int maxEventStreams = NIO_ENGINE || VIRTUAL_THREADS ? Constants.MAX_EVENT_STREAM_SUBSCRIBERS
+                : Math.max(1, THREAD_POOL_SIZE / ACCEPTOR_COUNT / FIXED_POOL_THREADS_PER_EVENT_STREAM);
+        final EventBroadcaster eventBroadcaster = new EventBroadcaster(Constants.EVENT_STREAM_CAPACITY, maxEventStreams,
+                Constants.EVENT_STREAM_HEARTBEAT_SECONDS);
+        final ServerMetrics metrics = new ServerMetrics();
+        registerComponentMetrics(metrics, staticFileCache, deviceStateStore, eventBroadcaster, accessLog);
+        final HttpRequestProcessor requestProcessor = new HttpRequestProcessor(staticFileCache, deviceStateStore, eventBroadcaster, metrics, accessLog);
+        final IdleConnectionReaper idleConnectionReaper = new IdleConnectionReaper(Constants.IDLE_REAPER_TICK_MILLI_SECONDS,
+                Constants.IDLE_REAPER_WHEEL_SIZE);
+        metrics.registerCounter("http_server_idle_connections_reaped_total", "Connections closed for not sending a complete request in time.",
+                idleConnectionReaper::getReapedCount);
+
+        if (NIO_ENGINE) {
+            runNioEngine(requestProcessor, idleConnectionReaper, staticFileCache, deviceStateStore, eventBroadcaster, accessLog);
+            return;
+        }
+
+        // One worker partition per acceptor. Virtual threads are scheduled by a work-stealing pool without a shared queue,
+        // so all acceptors can use the same executor.
+        final List<ExecutorService> workerPartitions = new ArrayList<>(ACCEPTOR_COUNT);
+        if (VIRTUAL_THREADS) {
+            workerPartitions.add(Executors.newVirtualThreadPerTaskExecutor());
+        } else {
+            final int partitionThreads = Math.ceilDiv(THREAD_POOL_SIZE, ACCEPTOR_COUNT);
+            final int partitionQueueCapacity = Math.ceilDiv(ACCEPT_QUEUE_CAPACITY, ACCEPTOR_COUNT);
+            final List<ThreadPoolExecutor> fixedThreadPools = new ArrayList<>(ACCEPTOR_COUNT);
+            for (int i = 0; i < ACCEPTOR_COUNT; i++) {
+                // A fixed pool with a bounded queue: once it is full, submitting is rejected and the connection is shed.
+                fixedThreadPools.add(new ThreadPoolExecutor(partitionThreads, partitionThreads, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(partitionQueueCapacity)));
+            }
+            registerThreadPoolMetrics(metrics, fixedThreadPools);
+            workerPartitions.addAll(fixedThreadPools);
+        }
+        final Semaphore clientPermits = new Semaphore(MAX_CONCURRENT_CLIENTS);
+        metrics.registerGauge("http_server_clients_in_flight", "Accepted connections being served or waiting to be served.",
+                () -> MAX_CONCURRENT_CLIENTS - clientPermits.availablePermits());
+
+        final List<ServerSocket> serverSockets;
+        try {
+            serverSockets = openServerSockets();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error while opening server socket", e);
+            workerPartitions.forEach(ExecutorService::shutdown);
+            idleConnectionReaper.close();
+            closeStaticFileCache(staticFileCache);
+            accessLog.close();
+            return;
+        }
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            logger.log(Level.INFO, "Shutdown detected, triggered thread pool closure ...");
-            threadPool.shutdown();
+            logger.log(Level.INFO, "Shutdown detected, stop accepting new connections ...");
+            for (ServerSocket serverSocket : serverSockets) {
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Error closing server socket", e);
+                }
+            }
+            // Ends the event streams, which would otherwise keep their clients in flight.
+            eventBroadcaster.close();
+
+            logger.log(Level.INFO, "Triggered thread pool closure, draining %d in-flight client(s) ..."
+                    .formatted(MAX_CONCURRENT_CLIENTS - clientPermits.availablePermits()));
+            workerPartitions.forEach(ExecutorService::shutdown);
             try {
                 logger.log(Level.INFO, "Waiting for closing thread pool...");
-                if (!threadPool.awaitTermination(THREAD_POOL_TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
-                    logger.log(Level.INFO, "Forcefully closing thread pool...");
-                    threadPool.shutdownNow();
+                // All partitions drain at the same time, so they share the timeout.
+                final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(THREAD_POOL_TERMINATION_TIMEOUT_SECONDS);
+                for (ExecutorService workerPartition : workerPartitions) {
+                    if (!workerPartition.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                        logger.log(Level.INFO, "Forcefully closing thread pool...");
+                        workerPartition.shutdownNow();
+                    }
                 }
             } catch (InterruptedException e) {
-                threadPool.shutdownNow();
+                workerPartitions.forEach(ExecutorService::shutdownNow);
             }
             logger.log(Level.INFO, "Thread pool closed.");
+            idleConnectionReaper.close();
+            closeStaticFileCache(staticFileCache);
+            // Only after the clients are drained, so that no accepted update is lost.
+            deviceStateStore.close();
+            accessLog.close();
             logger.log(Level.INFO, "Server stopped.");
         }));
 
-        try (ServerSocket serverSocket = new ServerSocket(SERVER_PORT)) {
-            logger.log(Level.INFO, "Server started. Visit: http://localhost:%s".formatted(SERVER_PORT));
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
+        // The handlers keep no per-connection state, so each acceptor shares one.
+        final HttpClientHandler httpClientHandler;
+        if (HTTP2_CLEARTEXT) {
+            httpClientHandler = new KeepAliveHttpClientHandlerImpl(requestProcessor, idleConnectionReaper,
+                    new Http2ClientHandlerImpl(requestProcessor, idleConnectionReaper));
+        } else if (HTTP_KEEP_ALIVE) {
+            httpClientHandler = new KeepAliveHttpClientHandlerImpl(requestProcessor, idleConnectionReaper);
+        } else {
+            httpClientHandler = new HttpClientHandlerImpl(requestProcessor, idleConnectionReaper);
+        }
+        final Thread[] acceptorThreads = new Thread[ACCEPTOR_COUNT];
+        for (int i = 0; i < ACCEPTOR_COUNT; i++) {
+            final ConnectionAcceptor acceptor = new ConnectionAcceptor(serverSockets.get(i % serverSockets.size()),
+                    workerPartitions.get(i % workerPartitions.size()), clientPermits, httpClientHandler, metrics);
+            acceptorThreads[i] = new Thread(acceptor, "acceptor-" + i);
+            acceptorThreads[i].start();
+        }
+
+        logger.log(Level.INFO, "Server started (%s, %d acceptor(s) on %d listener(s)). Visit: http://localhost:%s"
+                .formatted(VIRTUAL_THREADS ? "virtual threads" : THREAD_POOL_SIZE + " platform threads", ACCEPTOR_COUNT,
+                        serverSockets.size(), SERVER_PORT));
+        try {
+            for (Thread acceptorThread : acceptorThreads) {
+                acceptorThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Binds one listener per acceptor with {@code SO_REUSEPORT}, which lets the kernel balance new connections
+     * across them; with a single acceptor, or where the option is not supported, one listener is shared.
+     */
+    private static List<ServerSocket> openServerSockets() throws IOException {
+        final boolean reusePort;
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            reusePort = ACCEPTOR_COUNT > 1 && probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+        if (ACCEPTOR_COUNT > 1 && !reusePort) {
+            logger.log(Level.INFO, "SO_REUSEPORT is not supported, all acceptors share one listener");
+        }
+
+        final List<ServerSocket> serverSockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < (reusePort ? ACCEPTOR_COUNT : 1); i++) {
+                // Accepting through a channel gives every client Socket a SocketChannel for zero-copy file transmission.
+                final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverSockets.add(serverChannel.socket());
+                if (reusePort) {
+                    serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                serverChannel.bind(new InetSocketAddress(SERVER_PORT));
+            }
+        } catch (IOException e) {
+            for (ServerSocket serverSocket : serverSockets) {
                 try {
-                    if (HTTP_KEEP_ALIVE) {
-                        threadPool.submit(new ClientHandler(clientSocket, new KeepAliveHttpClientHandlerImpl()));
-                    } else {
-                        threadPool.submit(new ClientHandler(clientSocket, new HttpClientHandlerImpl()));
-                    }
-                } catch (RejectedExecutionException rejectedExecutionException) {
-                    logger.log(Level.SEVERE, "Failed to submit client handler to thread pool", rejectedExecutionException);
-                    // In case socket is not closed, we try to close it here.
-                    try {
-                        clientSocket.close();
-                    } catch (IOException ioException) {
-                        logger.log(Level.WARNING, "Error closing client socket after rejection", ioException);
-                    }
+                    serverSocket.close();
+                } catch (IOException closeException) {
+                    e.addSuppressed(closeException);
                 }
             }
+            throw e;
+        }
+        return serverSockets;
+    }
+
+    /**
+     * Registers the thread pool metrics, summed over the worker partitions.
+     */
+    private static void registerThreadPoolMetrics(final ServerMetrics metrics, final List<ThreadPoolExecutor> threadPools) {
+        metrics.registerGauge("thread_pool_queue_depth", "Connections waiting for a pool thread.",
+                () -> threadPools.stream().mapToLong(threadPool -> threadPool.getQueue().size()).sum());
+        metrics.registerGauge("thread_pool_active_threads", "Pool threads serving a connection.",
+                () -> threadPools.stream().mapToLong(ThreadPoolExecutor::getActiveCount).sum());
+        metrics.registerGauge("thread_pool_size", "Threads in the pool.",
+                () -> threadPools.stream().mapToLong(ThreadPoolExecutor::getPoolSize).sum());
+        metrics.registerCounter("thread_pool_completed_tasks_total", "Connections served by the pool.",
+                () -> threadPools.stream().mapToLong(ThreadPoolExecutor::getCompletedTaskCount).sum());
+    }
+
+    private static void registerComponentMetrics(final ServerMetrics metrics, final StaticFileCache staticFileCache,
+                                                 final DeviceStateStore deviceStateStore, final EventBroadcaster eventBroadcaster,
+                                                 final AccessLog accessLog) {
+        metrics.registerCounter("static_file_cache_hits_total", "Static file requests answered from the cache.", staticFileCache::getHitCount);
+        metrics.registerCounter("static_file_cache_misses_total", "Static file requests that had to read the file.", staticFileCache::getMissCount);
+        metrics.registerCounter("static_file_cache_evictions_total", "Entries evicted to stay within the cache size.",
+                staticFileCache::getEvictionCount);
+        metrics.registerGauge("static_file_cache_bytes", "Bytes held by the cached entries.", staticFileCache::getCachedBytes);
+        metrics.registerCounter("device_state_updates_total", "Accepted device state updates.", deviceStateStore::getUpdateCount);
+        metrics.registerCounter("device_state_writes_total", "Device state files written to disk.", deviceStateStore::getWriteCount);
+        metrics.registerGauge("event_stream_subscribers", "Open event streams.", eventBroadcaster::getSubscriberCount);
+        metrics.registerCounter("event_stream_events_total", "Published events.", eventBroadcaster::getEventCount);
+        metrics.registerCounter("event_stream_evictions_total", "Subscribers disconnected for falling behind.", eventBroadcaster::getEvictionCount);
+        metrics.registerCounter("access_log_records_total", "Requests written to the access log.", accessLog::getWrittenCount);
+        metrics.registerCounter("access_log_dropped_records_total", "Access log records dropped because the writer fell behind.",
+                accessLog::getDroppedCount);
+    }
+
+    private static void runNioEngine(final HttpRequestProcessor requestProcessor, final IdleConnectionReaper idleConnectionReaper,
+                                     final StaticFileCache staticFileCache, final DeviceStateStore deviceStateStore,
+                                     final EventBroadcaster eventBroadcaster, final AccessLog accessLog) {
+        final NioHttpServer nioHttpServer;
+        try {
+            nioHttpServer = new NioHttpServer(SERVER_PORT, NIO_EVENT_LOOP_COUNT, HTTP_KEEP_ALIVE, MAX_CONCURRENT_CLIENTS, requestProcessor,
+                    idleConnectionReaper);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error while creating NIO engine", e);
+            idleConnectionReaper.close();
+            closeStaticFileCache(staticFileCache);
+            accessLog.close();
+            return;
+        }
+        requestProcessor.getMetrics().registerGauge("http_server_clients_in_flight", "Open connections, including those not yet registered.",
+                nioHttpServer::getOpenConnectionCount);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            logger.log(Level.INFO, "Shutdown detected, closing NIO engine ...");
+            eventBroadcaster.close();
+            try {
+                nioHttpServer.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Error while closing NIO engine", e);
+            }
+            idleConnectionReaper.close();
+            closeStaticFileCache(staticFileCache);
+            deviceStateStore.close();
+            accessLog.close();
+            logger.log(Level.INFO, "Server stopped.");
+        }));
+
+        try {
+            nioHttpServer.serve();
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Error while accepting socket", e);
         }
     }
+
+    /**
+     * Stops the cache's file watcher.
+     */
+    private static void closeStaticFileCache(final StaticFileCache staticFileCache) {
+        try {
+            staticFileCache.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error closing static file cache", e);
+        }
+    }
 }
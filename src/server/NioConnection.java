@@ -0,0 +1,399 @@
+package server;
+
+import common.Constants;
+import common.HttpResponseEncoder;
+import common.Utility;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-connection state machine of the {@link NioHttpServer}.
+ * <p>
+ * A connection alternates between two states:
+ * <ul>
+ *   <li><b>reading</b>: bytes are accumulated and incrementally parsed by an
+ *   {@link HttpRequestParser} until a complete request (including its
+ *   {@code Content-Length} body) is buffered; the request is then processed</li>
+ *   <li><b>writing</b>: the response head, encoded by an {@link HttpResponseEncoder}, and
+ *   its in-memory body are drained with gathering writes as far as the socket accepts
+ *   them, followed by the regions of the file body (if any) via zero-copy
+ *   {@link FileChannel#transferTo}, each preceded by its head (e.g. multipart headers);
+ *   on a partial write the connection waits for {@link SelectionKey#OP_WRITE}
+ *   and stops reading, which gives natural back-pressure</li>
+ * </ul>
+ * Requests that arrive while a response is still being written stay in the read
+ * buffer and are processed once the response has been fully written. Pipelined
+ * requests are answered as a batch: the responses to all complete requests in the
+ * read buffer (up to {@link Constants#MAX_PIPELINED_REQUESTS}) are encoded back to
+ * back and sent with one write, which also bounds the work done for one connection
+ * before the event loop serves the others.
+ * <p>
+ * A response that is an event stream turns the connection into a push channel: the
+ * {@link EventBroadcaster.Subscription} wakes the connection through its event loop
+ * whenever events are available, and they are written in batches of up to
+ * {@link Constants#EVENT_STREAM_WRITE_BATCH_BYTES}. While a write is pending no more
+ * events are taken, so a slow client merely falls behind in the broadcaster's ring
+ * (and is eventually evicted) instead of buffering events in the server.
+ * <p>
+ * While the connection waits for a request, its {@link IdleConnectionReaper.Timeout} is armed;
+ * a connection that has not received a complete request within
+ * {@link Constants#KEEP_ALIVE_TIMEOUT_MILLI_SECONDS} is closed. After
+ * {@link Constants#MAX_REQUESTS_PER_CONNECTION} requests the connection is closed as well.
+ * <p>
+ * Instances are confined to the thread of their {@link NioEventLoop}.
+ */
+class NioConnection {
+    private static final Logger logger = Logger.getLogger(NioConnection.class.getName());
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+
+    private final NioEventLoop eventLoop;
+    private final SocketChannel channel;
+    private final InetAddress client;
+    private final SelectionKey key;
+    private final boolean keepAliveEnabled;
+    private final HttpRequestProcessor requestProcessor;
+    private final HttpRequestParser requestParser = new HttpRequestParser();
+
+    // Always kept in write mode: position marks the end of the buffered bytes.
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // Start of the first request in the read buffer not answered yet.
+    private int readStart;
+    private final HttpResponseEncoder responseEncoder = new HttpResponseEncoder();
+    // Encoded responses (small bodies coalesced behind their heads) and, for a larger in-memory body, the body itself.
+    private final ByteBuffer[] writeBuffers = {EMPTY_BUFFER, EMPTY_BUFFER};
+    private boolean writing;
+    // Body of a large file response, transmitted region by region with zero-copy transferTo after the head in writeBuffers.
+    private FileChannel fileBody;
+    private List<HttpResponse.FileRegion> fileRegions;
+    private int nextFileRegion;
+    private byte[] fileTail;
+    private long filePosition;
+    private long fileEnd;
+    private boolean closeAfterWrite;
+    // Set once the connection streams events; no further requests are answered then.
+    private EventBroadcaster.Subscription eventStream;
+    // Coalesces the wake-ups of the subscription into one pending event loop task.
+    private final AtomicBoolean eventsScheduled = new AtomicBoolean();
+    // Armed while waiting for a request, disarmed while it is processed, written or streaming events.
+    private final IdleConnectionReaper.Timeout idleTimeout;
+    private int requests;
+
+    NioConnection(final NioEventLoop eventLoop, final SocketChannel channel, final SelectionKey key, final boolean keepAliveEnabled,
+                  final HttpRequestProcessor requestProcessor, final IdleConnectionReaper idleConnectionReaper) {
+        Objects.requireNonNull(eventLoop, "eventLoop must not be null");
+        Objects.requireNonNull(channel, "channel must not be null");
+        Objects.requireNonNull(key, "key must not be null");
+        Objects.requireNonNull(requestProcessor, "requestProcessor must not be null");
+        Objects.requireNonNull(idleConnectionReaper, "idleConnectionReaper must not be null");
+
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.client = channel.socket().getInetAddress();
+        this.key = key;
+        this.keepAliveEnabled = keepAliveEnabled;
+        this.requestProcessor = requestProcessor;
+        // Runs on the reaper's thread: only hand over to the event loop.
+        this.idleTimeout = idleConnectionReaper.newTimeout(() -> eventLoop.execute(this::closeIfIdle));
+        this.idleTimeout.arm(Constants.KEEP_ALIVE_TIMEOUT_MILLI_SECONDS);
+        requestProcessor.getMetrics().connectionOpened();
+    }
+
+    void onReadable() throws IOException {
+        if (eventStream != null) {
+            // Requests sent on an event stream connection are not answered; only its end is of interest.
+            readBuffer.clear();
+        }
+        if (channel.read(readBuffer) < 0) {
+            close();
+            return;
+        }
+        if (eventStream == null) {
+            handleBufferedRequests();
+        }
+    }
+
+    void onWritable() throws IOException {
+        if (!flush()) {
+            return;
+        }
+        if (eventStream != null) {
+            key.interestOps(SelectionKey.OP_READ);
+            writeEvents();
+        } else {
+            handleBufferedRequests();
+        }
+    }
+
+    void close() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        requestProcessor.getMetrics().connectionClosed(requests);
+        eventLoop.connectionClosed();
+        idleTimeout.cancel();
+        key.cancel();
+        closeFileBody();
+        if (eventStream != null) {
+            eventStream.close();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing channel", e);
+        }
+    }
+
+    private void handleBufferedRequests() throws IOException {
+        while (channel.isOpen() && !writing && eventStream == null) {
+            // Encode the responses to all requests already buffered (up to a limit) for a single write.
+            responseEncoder.reset();
+            int batchedRequests = 0;
+            HttpResponse response;
+            while (batchedRequests < Constants.MAX_PIPELINED_REQUESTS && (response = nextResponse()) != null) {
+                batchedRequests++;
+                if (!queueResponse(response)) {
+                    break;
+                }
+            }
+            if (batchedRequests == 0) {
+                break;
+            }
+            idleTimeout.disarm();
+            writeBuffers[0] = responseEncoder.getBuffer();
+            if (!flush()) {
+                return;
+            }
+        }
+        if (channel.isOpen()) {
+            key.interestOps(SelectionKey.OP_READ);
+            // Waiting for the next request; a deadline set for a partially received one stays.
+            if (eventStream == null && !idleTimeout.isArmed()) {
+                idleTimeout.arm(Constants.KEEP_ALIVE_TIMEOUT_MILLI_SECONDS);
+            }
+        }
+    }
+
+    private void closeIfIdle() {
+        // The connection may have received a request since the reaper fired.
+        if (idleTimeout.isExpired()) {
+            logger.log(Level.FINE, "Closing idle connection");
+            close();
+        }
+    }
+
+    /**
+     * Appends the response to the pending write.
+     *
+     * @return whether a further response may be batched behind it
+     */
+    private boolean queueResponse(HttpResponse response) {
+        writing = true;
+        if (response.hasFileBody()) {
+            try {
+                fileBody = FileChannel.open(response.getFile(), StandardOpenOption.READ);
+                if (fileBody.size() < response.getFileRegionsEnd()) {
+                    throw new IOException("File %s was truncated before being sent".formatted(response.getFile()));
+                }
+                fileRegions = response.getFileRegions();
+                nextFileRegion = 0;
+                fileTail = response.getFileTail();
+                filePosition = 0;
+                fileEnd = 0;
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Error processing request", e);
+                closeFileBody();
+                response = HttpResponse.withoutData(HttpURLConnection.HTTP_INTERNAL_ERROR, Constants.HTTP_INTERNAL_ERROR_MESSAGE);
+            }
+        }
+        if (response.isEventStream()) {
+            // The stream is delimited by closing the connection, which its head announces.
+            response.encodeHead(responseEncoder, false);
+            closeAfterWrite = false;
+            startEventStream(response.getEventStream());
+            return false;
+        }
+        if (response.appendTo(responseEncoder, !closeAfterWrite)) {
+            return !closeAfterWrite;
+        }
+        // A file body follows the head via transferTo, a large in-memory body via a gathering write.
+        response.encodeHead(responseEncoder, !closeAfterWrite);
+        if (response.getBody() != null) {
+            writeBuffers[1] = ByteBuffer.wrap(response.getBody());
+        }
+        return false;
+    }
+
+    private void startEventStream(final EventBroadcaster.Subscription subscription) {
+        eventStream = subscription;
+        // Called on publishing threads: only hand over to the event loop.
+        subscription.setListener(() -> {
+            if (eventsScheduled.compareAndSet(false, true)) {
+                eventLoop.execute(this::onEvents);
+            }
+        });
+    }
+
+    private void onEvents() {
+        try {
+            writeEvents();
+        } catch (IOException | CancelledKeyException e) {
+            logger.log(Level.FINE, "Closing event stream after I/O error", e);
+            close();
+        }
+    }
+
+    /**
+     * Writes the pending events until the subscription is drained or the socket is full.
+     */
+    private void writeEvents() throws IOException {
+        // Cleared before polling, so that events published from now on schedule another run.
+        eventsScheduled.set(false);
+        while (channel.isOpen() && !writing) {
+            responseEncoder.reset();
+            byte[] frame;
+            while (responseEncoder.length() < Constants.EVENT_STREAM_WRITE_BATCH_BYTES && (frame = eventStream.poll()) != null) {
+                responseEncoder.body(frame);
+            }
+            if (responseEncoder.length() == 0) {
+                if (eventStream.isClosed()) {
+                    // Evicted or shut down.
+                    close();
+                }
+                return;
+            }
+            writeBuffers[0] = responseEncoder.getBuffer();
+            writing = true;
+            if (!flush()) {
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Writes as much of the pending response as the socket accepts.
+     *
+     * @return {@code true} if the response was fully written and the connection stays open
+     */
+    private boolean flush() throws IOException {
+        while (true) {
+            if (writeBuffers[0].hasRemaining() || writeBuffers[1].hasRemaining()) {
+                // A single gathering write for head and body.
+                channel.write(writeBuffers);
+                if (writeBuffers[0].hasRemaining() || writeBuffers[1].hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return false;
+                }
+            }
+            if (fileBody == null) {
+                break;
+            }
+            if (filePosition < fileEnd) {
+                final long transferred = Utility.transferFileData(fileBody, filePosition, fileEnd - filePosition, channel);
+                if (transferred == 0) {
+                    if (filePosition >= fileBody.size()) {
+                        throw new IOException("File was truncated while being sent");
+                    }
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return false;
+                }
+                filePosition += transferred;
+            } else if (nextFileRegion < fileRegions.size()) {
+                // The region's head goes out through writeBuffers, then its bytes from the file.
+                final HttpResponse.FileRegion region = fileRegions.get(nextFileRegion++);
+                writeBuffers[0] = ByteBuffer.wrap(region.head());
+                writeBuffers[1] = EMPTY_BUFFER;
+                filePosition = region.offset();
+                fileEnd = region.offset() + region.length();
+            } else if (fileTail != null) {
+                writeBuffers[0] = ByteBuffer.wrap(fileTail);
+                fileTail = null;
+            } else {
+                break;
+            }
+        }
+        closeFileBody();
+        writeBuffers[1] = EMPTY_BUFFER;
+        writing = false;
+        if (closeAfterWrite) {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the next complete request from the read buffer and processes it.
+     *
+     * @return the response, or {@code null} if more bytes are needed
+     */
+    private HttpResponse nextResponse() {
+        final int buffered = readBuffer.position();
+        final HttpRequestParser.Result result = requestParser.parse(readBuffer.array(), readStart, buffered);
+        if (result == HttpRequestParser.Result.INCOMPLETE) {
+            // Discard the requests already answered, then make sure there is room to read more.
+            System.arraycopy(readBuffer.array(), readStart, readBuffer.array(), 0, buffered - readStart);
+            readBuffer.position(buffered - readStart);
+            readStart = 0;
+            // Bounded: the parser fails requests exceeding its head and body limits.
+            ensureCapacity(readBuffer.position() + 1);
+            return null;
+        }
+        if (result != HttpRequestParser.Result.COMPLETE) {
+            closeAfterWrite = true;
+            readBuffer.clear();
+            readStart = 0;
+            requestParser.reset();
+            requests++;
+            return requestProcessor.rejectedRequestResponse(result, client);
+        }
+
+        final HttpRequest request = requestParser.getRequest();
+        closeAfterWrite = !(keepAliveEnabled && requestParser.isKeepAliveRequested()) || requests + 1 >= Constants.MAX_REQUESTS_PER_CONNECTION;
+        final HttpResponse response = requestProcessor.process(request, client);
+        requests++;
+
+        // The request is a view on the read buffer, so it is only skipped after processing.
+        readStart = requestParser.getRequestEnd();
+        requestParser.reset();
+        return response;
+    }
+
+    private void closeFileBody() {
+        if (fileBody == null) {
+            return;
+        }
+        try {
+            fileBody.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error closing file", e);
+        }
+        fileBody = null;
+        fileRegions = null;
+        fileTail = null;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity <= readBuffer.capacity()) {
+            return;
+        }
+        final ByteBuffer grown = ByteBuffer.allocate(Math.max(capacity, readBuffer.capacity() * 2));
+        readBuffer.flip();
+        grown.put(readBuffer);
+        readBuffer = grown;
+    }
+}
@@ -0,0 +1,164 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single-threaded selector loop multiplexing many {@link NioConnection}s.
+ * <p>
+ * Channels are handed over from the accepting thread through a lock-free queue and
+ * registered on the loop's own thread, as a {@link Selector} must not be registered
+ * with while another thread is blocked in {@link Selector#select()}. Other threads hand
+ * work to a connection the same way, via {@link #execute(Runnable)}.
+ */
+class NioEventLoop implements Runnable {
+    private static final Logger logger = Logger.getLogger(NioEventLoop.class.getName());
+
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final boolean keepAliveEnabled;
+    private final HttpRequestProcessor requestProcessor;
+    private final IdleConnectionReaper idleConnectionReaper;
+    // Shared by all loops of a server; counts the connections handed over and not closed yet.
+    private final AtomicInteger openConnections;
+    private volatile boolean running = true;
+
+    NioEventLoop(final boolean keepAliveEnabled, final HttpRequestProcessor requestProcessor, final IdleConnectionReaper idleConnectionReaper,
+                 final AtomicInteger openConnections) throws IOException {
+        Objects.requireNonNull(requestProcessor, "requestProcessor must not be null");
+        Objects.requireNonNull(idleConnectionReaper, "idleConnectionReaper must not be null");
+        Objects.requireNonNull(openConnections, "openConnections must not be null");
+
+        this.selector = Selector.open();
+        this.keepAliveEnabled = keepAliveEnabled;
+        this.requestProcessor = requestProcessor;
+        this.idleConnectionReaper = idleConnectionReaper;
+        this.openConnections = openConnections;
+    }
+
+    void register(final SocketChannel channel) {
+        Objects.requireNonNull(channel, "channel must not be null");
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs {@code task} on the loop's thread; the task must not block.
+     */
+    void execute(final Runnable task) {
+        Objects.requireNonNull(task, "task must not be null");
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Called once for every registered channel when it is closed.
+     */
+    void connectionClosed() {
+        openConnections.decrementAndGet();
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                registerPendingChannels();
+                runPendingTasks();
+
+                final Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    final SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    handleKey(key);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Event loop failed", e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(this, channel, key, keepAliveEnabled, requestProcessor, idleConnectionReaper));
+            } catch (ClosedChannelException e) {
+                connectionClosed();
+                logger.log(Level.FINE, "Channel closed before registration", e);
+            }
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Event loop task failed", e);
+            }
+        }
+    }
+
+    private void handleKey(final SelectionKey key) {
+        final NioConnection connection = (NioConnection) key.attachment();
+        try {
+            if (key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            logger.log(Level.FINE, "Closing connection after I/O error", e);
+            connection.close();
+        } catch (RuntimeException e) {
+            // Only this connection is lost; the loop keeps serving the others.
+            logger.log(Level.SEVERE, "Connection handling failed", e);
+            connection.close();
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection connection) {
+                connection.close();
+            }
+        }
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            connectionClosed();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Error closing pending channel", e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error closing selector", e);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package server;
+
+import common.Constants;
+import common.Utility;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking alternative to the thread-per-connection model of {@link Main}.
+ * <p>
+ * The accepting thread hands every accepted {@link SocketChannel} to one of a fixed
+ * number of {@link NioEventLoop}s in round-robin order. Each event loop owns a
+ * {@link java.nio.channels.Selector} and drives the read/write state machine of all
+ * its connections, so the number of open (idle) keep-alive connections is no longer
+ * bound to the number of threads.
+ * <p>
+ * Requests are served by the same {@link HttpRequestProcessor} as the blocking
+ * handlers, so GET/PUT semantics are identical in both modes.
+ * <p>
+ * At most {@code maxConnections} connections are open at a time; beyond that, new
+ * connections are answered with {@code 503} and a {@code Retry-After} hint on the
+ * accepting thread and closed, so that overload is shed early and cheaply.
+ */
+public class NioHttpServer implements Closeable {
+    private static final Logger logger = Logger.getLogger(NioHttpServer.class.getName());
+    private static final int EVENT_LOOP_TERMINATION_TIMEOUT_MILLI_SECONDS = 5000;
+
+    private final int port;
+    private final NioEventLoop[] eventLoops;
+    private final Thread[] eventLoopThreads;
+    private final ServerSocketChannel serverChannel;
+    private final int maxConnections;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final ServerMetrics metrics;
+    private volatile boolean running = true;
+
+    public NioHttpServer(final int port, final int eventLoopCount, final boolean keepAliveEnabled, final int maxConnections,
+                         final HttpRequestProcessor requestProcessor, final IdleConnectionReaper idleConnectionReaper) throws IOException {
+        Objects.requireNonNull(requestProcessor, "requestProcessor must not be null");
+        Objects.requireNonNull(idleConnectionReaper, "idleConnectionReaper must not be null");
+        if (eventLoopCount <= 0) {
+            throw new IllegalArgumentException("eventLoopCount must be positive: " + eventLoopCount);
+        }
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections must be positive: " + maxConnections);
+        }
+
+        this.port = port;
+        this.maxConnections = maxConnections;
+        this.metrics = requestProcessor.getMetrics();
+        this.eventLoops = new NioEventLoop[eventLoopCount];
+        this.eventLoopThreads = new Thread[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new NioEventLoop(keepAliveEnabled, requestProcessor, idleConnectionReaper, openConnections);
+            eventLoopThreads[i] = new Thread(eventLoops[i], "nio-event-loop-" + i);
+        }
+        this.serverChannel = ServerSocketChannel.open();
+    }
+
+    /**
+     * Binds the listening socket, starts the event loops and accepts connections until
+     * {@link #close()} is called. Blocks the calling thread.
+     */
+    public void serve() throws IOException {
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port));
+        for (Thread eventLoopThread : eventLoopThreads) {
+            eventLoopThread.start();
+        }
+        logger.log(Level.INFO, "NIO engine started with %d event loops. Visit: http://localhost:%s".formatted(eventLoops.length, port));
+
+        int next = 0;
+        while (running) {
+            final SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException closedChannelException) {
+                // close() was called, leave the accept loop.
+                break;
+            }
+
+            if (openConnections.incrementAndGet() > maxConnections) {
+                openConnections.decrementAndGet();
+                reject(channel);
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            } catch (IOException ioException) {
+                logger.log(Level.WARNING, "Error configuring accepted channel", ioException);
+                openConnections.decrementAndGet();
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * @return the number of open connections, including those not yet registered with their event loop
+     */
+    public int getOpenConnectionCount() {
+        return openConnections.get();
+    }
+
+    private void reject(final SocketChannel channel) {
+        metrics.connectionRejected();
+        try {
+            Utility.rejectConnection(channel, Constants.OVERLOAD_RETRY_AFTER_SECONDS);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Error rejecting connection", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (NioEventLoop eventLoop : eventLoops) {
+            eventLoop.close();
+        }
+        for (Thread eventLoopThread : eventLoopThreads) {
+            try {
+                eventLoopThread.join(EVENT_LOOP_TERMINATION_TIMEOUT_MILLI_SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package server;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Request, connection and resource metrics of the server, exposed in the Prometheus text
+ * exposition format (version 0.0.4).
+ * <p>
+ * Recording is lock-free and allocation-free: counters are {@link LongAdder}s, which stripe
+ * their cells under contention instead of making all threads fight over one cache line, and
+ * every latency histogram is allocated up front, one per combination of
+ * <ul>
+ *   <li>method: {@code GET}, {@code PUT} or {@code other}</li>
+ *   <li>status class: {@code 1xx} to {@code 5xx}</li>
+ *   <li>path class: see {@link PathClass}</li>
+ * </ul>
+ * with fixed bucket bounds, so recording a request is a few array lookups and adds.
+ * Gauges and counters owned by other components (thread pool, event stream, device
+ * states) are registered as suppliers and only read when the metrics are scraped.
+ * <p>
+ * A scrape reads the adders without stopping the recording threads, so the values of one
+ * scrape are not an atomic snapshot; each value on its own is exact.
+ */
+public final class ServerMetrics {
+    /**
+     * Upper bounds of the latency buckets in nanoseconds, from 50µs to 10s.
+     */
+    private static final long[] LATENCY_BOUNDS_NANOS = {
+            50_000L, 100_000L, 250_000L, 500_000L,
+            1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L, 100_000_000L, 250_000_000L, 500_000_000L,
+            1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L};
+    private static final long[] REQUESTS_PER_CONNECTION_BOUNDS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+    // Nanoseconds are exported as seconds, i.e. with the decimal point moved by nine digits.
+    private static final int NANOS_SCALE = 9;
+
+    private static final String[] METHODS = {"GET", "PUT", "other"};
+    private static final int METHOD_OTHER = 2;
+    private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+
+    /**
+     * Coarse classification of request paths, which keeps the number of label combinations
+     * fixed no matter which paths clients request.
+     */
+    public enum PathClass {
+        STATIC("static"), STATE("state"), EVENTS("events"), METRICS("metrics");
+
+        private final String label;
+
+        PathClass(final String label) {
+            this.label = label;
+        }
+    }
+
+    private static final class Histogram {
+        private final long[] bounds;
+        // The exported value of a recorded value v is v * 10^-scale.
+        private final int scale;
+        // The "le" labels of the buckets, the last being +Inf.
+        private final String[] bucketLabels;
+        // One more bucket than bounds: the last one counts the values above the largest bound (+Inf).
+        private final LongAdder[] buckets;
+        private final LongAdder sum = new LongAdder();
+
+        private Histogram(final long[] bounds, final int scale) {
+            this.bounds = bounds;
+            this.scale = scale;
+            this.bucketLabels = new String[bounds.length + 1];
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                bucketLabels[i] = i < bounds.length ? format(bounds[i], scale) : "+Inf";
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(final long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sum.add(value);
+        }
+    }
+
+    // values() copies the array on every call, so the count is kept for the recording path.
+    private static final int PATH_CLASS_COUNT = PathClass.values().length;
+
+    private record Gauge(String name, String help, String type, LongSupplier value) {
+    }
+
+    private final Histogram[] latencies = new Histogram[METHODS.length * STATUS_CLASSES.length * PATH_CLASS_COUNT];
+    private final LongAdder[] rejectedRequests = new LongAdder[HttpRequestParser.Result.values().length];
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder connectionsRejected = new LongAdder();
+    private final Histogram requestsPerConnection = new Histogram(REQUESTS_PER_CONNECTION_BOUNDS, 0);
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    public ServerMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram(LATENCY_BOUNDS_NANOS, NANOS_SCALE);
+        }
+        for (int i = 0; i < rejectedRequests.length; i++) {
+            rejectedRequests[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a processed request.
+     *
+     * @param durationNanos the time from the parsed request to its response
+     */
+    public void recordRequest(final String method, final int statusCode, final PathClass pathClass, final long durationNanos) {
+        final int statusClass = Math.min(Math.max(statusCode / 100, 1), STATUS_CLASSES.length) - 1;
+        final int index = (methodIndex(method) * STATUS_CLASSES.length + statusClass) * PATH_CLASS_COUNT + pathClass.ordinal();
+        latencies[index].record(Math.max(durationNanos, 0));
+    }
+
+    /**
+     * Records a request the {@link HttpRequestParser} rejected before it could be processed.
+     */
+    public void recordRejectedRequest(final HttpRequestParser.Result result) {
+        rejectedRequests[result.ordinal()].increment();
+    }
+
+    public void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    /**
+     * @param requests the number of requests answered on the connection
+     */
+    public void connectionClosed(final int requests) {
+        connectionsClosed.increment();
+        requestsPerConnection.record(requests);
+    }
+
+    /**
+     * Records a connection turned away with {@code 503} because the server was at its limit.
+     */
+    public void connectionRejected() {
+        connectionsRejected.increment();
+    }
+
+    /**
+     * Registers a value that is read on every scrape, e.g. the queue depth of a thread pool.
+     */
+    public void registerGauge(final String name, final String help, final LongSupplier value) {
+        register(name, help, "gauge", value);
+    }
+
+    /**
+     * Registers a monotonically increasing value owned by another component.
+     */
+    public void registerCounter(final String name, final String help, final LongSupplier value) {
+        register(name, help, "counter", value);
+    }
+
+    /**
+     * @return the metrics in the Prometheus text exposition format
+     */
+    public byte[] scrape() {
+        final StringBuilder out = new StringBuilder(8 * 1024);
+
+        out.append("# HELP http_server_request_duration_seconds Time from a parsed request to its response, excluding the socket write.\n")
+                .append("# TYPE http_server_request_duration_seconds histogram\n");
+        final PathClass[] pathClasses = PathClass.values();
+        for (int method = 0; method < METHODS.length; method++) {
+            for (int statusClass = 0; statusClass < STATUS_CLASSES.length; statusClass++) {
+                for (PathClass pathClass : pathClasses) {
+                    final Histogram histogram = latencies[(method * STATUS_CLASSES.length + statusClass) * pathClasses.length + pathClass.ordinal()];
+                    final String labels = "method=\"%s\",status=\"%s\",path=\"%s\"".formatted(METHODS[method], STATUS_CLASSES[statusClass], pathClass.label);
+                    appendHistogram(out, "http_server_request_duration_seconds", labels, histogram);
+                }
+            }
+        }
+
+        out.append("# HELP http_server_rejected_requests_total Requests rejected by the parser, by reason.\n")
+                .append("# TYPE http_server_rejected_requests_total counter\n");
+        for (HttpRequestParser.Result result : HttpRequestParser.Result.values()) {
+            if (result != HttpRequestParser.Result.COMPLETE && result != HttpRequestParser.Result.INCOMPLETE) {
+                out.append("http_server_rejected_requests_total{reason=\"").append(result.name().toLowerCase()).append("\"} ")
+                        .append(rejectedRequests[result.ordinal()].sum()).append('\n');
+            }
+        }
+
+        final long closed = connectionsClosed.sum();
+        appendValue(out, "http_server_connections_total", "Accepted connections.", "counter", connectionsOpened.sum());
+        appendValue(out, "http_server_connections_active", "Open connections.", "gauge", connectionsOpened.sum() - closed);
+        appendValue(out, "http_server_connections_rejected_total", "Connections rejected with 503 because the server was overloaded.", "counter",
+                connectionsRejected.sum());
+        out.append("# HELP http_server_requests_per_connection Requests answered per closed connection.\n")
+                .append("# TYPE http_server_requests_per_connection histogram\n");
+        appendHistogram(out, "http_server_requests_per_connection", "", requestsPerConnection);
+
+        for (Gauge gauge : gauges) {
+            appendValue(out, gauge.name(), gauge.help(), gauge.type(), gauge.value().getAsLong());
+        }
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void register(final String name, final String help, final String type, final LongSupplier value) {
+        Objects.requireNonNull(name, "name must not be null");
+        Objects.requireNonNull(help, "help must not be null");
+        Objects.requireNonNull(value, "value must not be null");
+        gauges.add(new Gauge(name, help, type, value));
+    }
+
+    private static int methodIndex(final String method) {
+        for (int i = 0; i < METHOD_OTHER; i++) {
+            if (METHODS[i].equals(method)) {
+                return i;
+            }
+        }
+        return METHOD_OTHER;
+    }
+
+    /**
+     * Appends the cumulative buckets, sum and count of a histogram; histograms without any
+     * observation are left out to keep scrapes small.
+     */
+    private static void appendHistogram(final StringBuilder out, final String name, final String labels, final Histogram histogram) {
+        final long[] counts = new long[histogram.buckets.length];
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.buckets[i].sum();
+            count += counts[i];
+        }
+        if (count == 0) {
+            return;
+        }
+        final String separator = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            out.append(name).append("_bucket{").append(labels).append(separator).append("le=\"").append(histogram.bucketLabels[i]).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        final String braced = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braced).append(' ').append(format(histogram.sum.sum(), histogram.scale)).append('\n');
+        out.append(name).append("_count").append(braced).append(' ').append(count).append('\n');
+    }
+
+    private static String format(final long value, final int scale) {
+        return BigDecimal.valueOf(value, scale).stripTrailingZeros().toPlainString();
+    }
+
+    private static void appendValue(final StringBuilder out, final String name, final String help, final String type, final long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n')
+                .append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,404 @@
+package server;
+
+import common.Utility;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared in-memory cache of the static files below the web root.
+ * <p>
+ * A request path is resolved against the file system only once; afterwards the file
+ * bytes, content type and length are served from memory without any system call or
+ * allocation. The cache is bounded by a memory budget: when an insertion exceeds it,
+ * the least recently used entries are evicted until the new entry fits. Files at or
+ * above the zero-copy threshold are never read into memory; only their metadata is
+ * cached and the body is transmitted from disk.
+ * <p>
+ * Entries are invalidated through a {@link WatchService} on the web root and all of its
+ * sub-directories, so a modified or deleted file is re-read on its next request.
+ * <p>
+ * Compressed variants and validators ({@code ETag}, {@code Last-Modified}) are computed
+ * once when a file version is loaded, never per request.
+ * <p>
+ * Lookups are lock-free; only insertion, eviction and invalidation take a
+ * {@link ReentrantLock} (not a monitor, so virtual threads are never pinned).
+ */
+public class StaticFileCache implements Closeable {
+    private static final Logger logger = Logger.getLogger(StaticFileCache.class.getName());
+
+    private final Path webRoot;
+    private final long maxBytes;
+    private final long zeroCopyThresholdBytes;
+    private final int compressionMinBytes;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final WatchService watchService;
+    private final Thread watchThread;
+    private long currentBytes;
+    // Incremented on every invalidation, so that a file read concurrently with a change is not cached.
+    private volatile long generation;
+    private volatile boolean watching = true;
+
+    /**
+     * A cached static file. Files below the zero-copy threshold are held in memory,
+     * together with their gzip and deflate variants if the type is compressible and
+     * compression actually saves bytes. For larger files only the metadata is cached
+     * and the body is sent from disk.
+     */
+    public static final class Entry {
+        private final Path file;
+        private final byte[] data;
+        private final byte[] gzipData;
+        private final byte[] deflateData;
+        private final boolean compressible;
+        private final long contentLength;
+        private final String contentType;
+        private final String etag;
+        private final String gzipEtag;
+        private final String deflateEtag;
+        private final long lastModifiedSeconds;
+        private final String lastModified;
+        private volatile long lastAccessNanos;
+
+        private Entry(final Path file, final byte[] data, final byte[] gzipData, final byte[] deflateData, final boolean compressible,
+                      final long contentLength, final String contentType, final String etag, final long lastModifiedSeconds) {
+            this.file = file;
+            this.data = data;
+            this.gzipData = gzipData;
+            this.deflateData = deflateData;
+            this.compressible = compressible;
+            this.contentLength = contentLength;
+            this.contentType = contentType;
+            // Each content coding is a different representation and needs its own strong validator.
+            this.etag = etag;
+            this.gzipEtag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+            this.deflateEtag = etag.substring(0, etag.length() - 1) + "-deflate\"";
+            this.lastModifiedSeconds = lastModifiedSeconds;
+            this.lastModified = Utility.formatHttpDate(lastModifiedSeconds);
+            this.lastAccessNanos = System.nanoTime();
+        }
+
+        public boolean isInMemory() {
+            return data != null;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return whether encoded variants may exist, i.e. whether responses must carry {@code Vary: Accept-Encoding}
+         */
+        public boolean isCompressible() {
+            return compressible;
+        }
+
+        /**
+         * @return the gzip-encoded body, or {@code null} if there is no such variant
+         */
+        public byte[] getGzipData() {
+            return gzipData;
+        }
+
+        /**
+         * @return the deflate-encoded body, or {@code null} if there is no such variant
+         */
+        public byte[] getDeflateData() {
+            return deflateData;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        /**
+         * @param contentEncoding {@code "gzip"}, {@code "deflate"} or {@code null} for the identity coding
+         * @return the strong entity tag of the representation with the given coding
+         */
+        public String getEtag(final String contentEncoding) {
+            if (contentEncoding == null) {
+                return etag;
+            }
+            return switch (contentEncoding) {
+                case "gzip" -> gzipEtag;
+                case "deflate" -> deflateEtag;
+                default -> throw new IllegalArgumentException("Unsupported content encoding: " + contentEncoding);
+            };
+        }
+
+        public long getLastModifiedSeconds() {
+            return lastModifiedSeconds;
+        }
+
+        /**
+         * @return the modification time formatted as an HTTP-date
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        private long getCachedBytes() {
+            return lengthOf(data) + lengthOf(gzipData) + lengthOf(deflateData);
+        }
+
+        private static long lengthOf(final byte[] bytes) {
+            return bytes == null ? 0 : bytes.length;
+        }
+    }
+
+    /**
+     * @param zeroCopyThresholdBytes files of at least this size are never read into memory
+     * @param compressionMinBytes    compressible files smaller than this are not worth compressing
+     */
+    public StaticFileCache(final Path webRoot, final long maxBytes, final long zeroCopyThresholdBytes, final int compressionMinBytes) throws IOException {
+        Objects.requireNonNull(webRoot, "webRoot must not be null");
+        if (maxBytes < 0 || zeroCopyThresholdBytes < 0) {
+            throw new IllegalArgumentException("cache limits must not be negative");
+        }
+
+        this.webRoot = webRoot.toAbsolutePath().normalize();
+        this.maxBytes = maxBytes;
+        this.zeroCopyThresholdBytes = zeroCopyThresholdBytes;
+        this.compressionMinBytes = compressionMinBytes;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        registerRecursively(this.webRoot);
+        this.watchThread = new Thread(this::watchForChanges, "static-file-cache-watcher");
+        this.watchThread.setDaemon(true);
+        this.watchThread.start();
+    }
+
+    /**
+     * Returns the file for the given request path, e.g. {@code /js/app.js}.
+     *
+     * @return the file, or {@code null} if it does not exist, is a directory or lies outside the web root
+     * @throws IllegalArgumentException if the file type is not supported
+     */
+    public Entry get(final String requestPath) throws IOException {
+        Objects.requireNonNull(requestPath, "requestPath must not be null");
+
+        final Entry cached = entries.get(requestPath);
+        if (cached != null) {
+            cached.lastAccessNanos = System.nanoTime();
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+
+        final long readGeneration = generation;
+        final Path file = resolve(requestPath);
+        if (file == null) {
+            return null;
+        }
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+
+        final String contentType = Utility.getContentType(requestPath);
+        final boolean compressible = Utility.isCompressible(requestPath);
+        final long lastModifiedSeconds = attributes.lastModifiedTime().to(TimeUnit.SECONDS);
+        final Entry entry;
+        if (attributes.size() >= zeroCopyThresholdBytes) {
+            // Hashing would mean reading the whole file, so size and modification time identify its version.
+            final String etag = "\"%x-%x\"".formatted(attributes.size(), attributes.lastModifiedTime().toMillis());
+            entry = new Entry(file, null, null, null, false, attributes.size(), contentType, etag, lastModifiedSeconds);
+        } else {
+            final byte[] data = Utility.readFileData(file.toFile());
+            final boolean compress = compressible && data.length >= compressionMinBytes;
+            final byte[] gzipData = compress ? smallerOrNull(Utility.gzip(data), data) : null;
+            final byte[] deflateData = compress ? smallerOrNull(Utility.deflate(data), data) : null;
+            entry = new Entry(file, data, gzipData, deflateData, compress, data.length, contentType, Utility.computeEtag(data), lastModifiedSeconds);
+        }
+        if (entry.getCachedBytes() <= maxBytes) {
+            put(requestPath, entry, readGeneration);
+        }
+        return entry;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getCachedBytes() {
+        lock.lock();
+        try {
+            return currentBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    @Override
+    public String toString() {
+        return "StaticFileCache[entries=%d, bytes=%d, hits=%d, misses=%d, evictions=%d]"
+                .formatted(entries.size(), getCachedBytes(), getHitCount(), getMissCount(), getEvictionCount());
+    }
+
+    private static byte[] smallerOrNull(final byte[] compressed, final byte[] data) {
+        return compressed.length < data.length ? compressed : null;
+    }
+
+    private Path resolve(final String requestPath) {
+        final String relativePath = requestPath.startsWith("/") ? requestPath.substring(1) : requestPath;
+        final Path file;
+        try {
+            file = webRoot.resolve(relativePath).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        // Reject path traversal such as "/../src/server/Main.java".
+        return file.startsWith(webRoot) ? file : null;
+    }
+
+    private void put(final String requestPath, final Entry entry, final long readGeneration) {
+        lock.lock();
+        try {
+            if (!watching || readGeneration != generation) {
+                return;
+            }
+            final Entry previous = entries.put(requestPath, entry);
+            if (previous != null) {
+                currentBytes -= previous.getCachedBytes();
+            }
+            currentBytes += entry.getCachedBytes();
+            while (currentBytes > maxBytes) {
+                evictLeastRecentlyUsed();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evictLeastRecentlyUsed() {
+        Map.Entry<String, Entry> victim = null;
+        for (Map.Entry<String, Entry> candidate : entries.entrySet()) {
+            if (victim == null || candidate.getValue().lastAccessNanos - victim.getValue().lastAccessNanos < 0) {
+                victim = candidate;
+            }
+        }
+        if (victim != null && entries.remove(victim.getKey(), victim.getValue())) {
+            currentBytes -= victim.getValue().getCachedBytes();
+            evictions.increment();
+        }
+    }
+
+    private void invalidate(final Path file) {
+        lock.lock();
+        try {
+            generation++;
+            entries.entrySet().removeIf(candidate -> {
+                final boolean stale = candidate.getValue().file.startsWith(file);
+                if (stale) {
+                    currentBytes -= candidate.getValue().getCachedBytes();
+                }
+                return stale;
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void invalidateAll() {
+        lock.lock();
+        try {
+            generation++;
+            entries.clear();
+            currentBytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void registerRecursively(final Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+                dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watchForChanges() {
+        try {
+            while (true) {
+                final WatchKey key = watchService.take();
+                final Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        invalidateAll();
+                        continue;
+                    }
+                    final Path changed = directory.resolve((Path) event.context());
+                    invalidate(changed);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed, LinkOption.NOFOLLOW_LINKS)) {
+                        registerRecursively(changed);
+                    }
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            logger.log(Level.FINE, "Static file cache watcher stopped");
+        } catch (IOException e) {
+            // Without change notifications the cache could serve stale files, so stop caching.
+            logger.log(Level.SEVERE, "Static file cache watcher failed, disabling cache", e);
+            watching = false;
+            invalidateAll();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ByteRangesTest {
+    private static final long LENGTH = 1000;
+
+    @Test
+    void parsesRangeForms() {
+        assertEquals(List.of(range(0, 99)), ByteRanges.parse("bytes=0-99", LENGTH));
+        // Open-ended and suffix ranges.
+        assertEquals(List.of(range(900, 999)), ByteRanges.parse("bytes=900-", LENGTH));
+        assertEquals(List.of(range(900, 999)), ByteRanges.parse("bytes=-100", LENGTH));
+        // The last position is clamped to the representation, as is a suffix longer than it.
+        assertEquals(List.of(range(500, 999)), ByteRanges.parse("bytes=500-5000", LENGTH));
+        assertEquals(List.of(range(0, 999)), ByteRanges.parse("bytes=-5000", LENGTH));
+        assertEquals(List.of(range(0, 9), range(20, 29)), ByteRanges.parse("BYTES=20-29, ,0-9", LENGTH));
+    }
+
+    @Test
+    void coalescesOverlappingAndAdjacentRanges() {
+        assertEquals(List.of(range(0, 199)), ByteRanges.parse("bytes=100-199,0-99", LENGTH));
+        assertEquals(List.of(range(0, 150)), ByteRanges.parse("bytes=0-100,50-150,10-20", LENGTH));
+        // However often the ranges repeat, the parts never add up to more than the representation.
+        assertEquals(List.of(range(0, 999)), ByteRanges.parse("bytes=" + "0-,".repeat(ByteRanges.MAX_RANGES - 1) + "-1", LENGTH));
+    }
+
+    @Test
+    void returnsEmptyListIfNoRangeIsSatisfiable() {
+        assertTrue(ByteRanges.parse("bytes=1000-1999", LENGTH).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=-0", LENGTH).isEmpty());
+        assertTrue(ByteRanges.parse("bytes=0-", 0).isEmpty());
+        // Unsatisfiable ranges are dropped from a list with satisfiable ones.
+        assertEquals(List.of(range(0, 9)), ByteRanges.parse("bytes=2000-,0-9", LENGTH));
+    }
+
+    @Test
+    void ignoresMalformedOrExcessiveRanges() {
+        assertNull(ByteRanges.parse(null, LENGTH));
+        assertNull(ByteRanges.parse("items=0-9", LENGTH));
+        assertNull(ByteRanges.parse("bytes=", LENGTH));
+        assertNull(ByteRanges.parse("bytes=9-0", LENGTH));
+        assertNull(ByteRanges.parse("bytes=a-b", LENGTH));
+        assertNull(ByteRanges.parse("bytes=5", LENGTH));
+        assertNull(ByteRanges.parse("bytes=-", LENGTH));
+        assertNull(ByteRanges.parse("bytes=0-99999999999999999999", LENGTH));
+        assertNull(ByteRanges.parse("bytes=" + "0-0,".repeat(ByteRanges.MAX_RANGES + 1), LENGTH));
+    }
+
+    private static ByteRanges.ByteRange range(final long first, final long last) {
+        return new ByteRanges.ByteRange(first, last);
+    }
+}
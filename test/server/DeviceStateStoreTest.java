@@ -0,0 +1,124 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DeviceStateStoreTest {
+    private static final String INITIAL_STATE = "{\"on\":false}";
+    private static final int MAX_STATE_BYTES = 1024;
+    // Long enough that the background writer never runs during a test; flush() writes instead.
+    private static final long PERSIST_INTERVAL_MILLIS = 3_600_000;
+
+    @TempDir
+    Path dataDirectory;
+
+    private Path stateFile;
+    private DeviceStateStore store;
+
+    @BeforeEach
+    void createStore() throws IOException {
+        stateFile = dataDirectory.resolve("lighting.json");
+        Files.writeString(stateFile, INITIAL_STATE, StandardCharsets.UTF_8);
+        store = new DeviceStateStore(dataDirectory, "/data/", MAX_STATE_BYTES, PERSIST_INTERVAL_MILLIS);
+    }
+
+    @AfterEach
+    void closeStore() {
+        store.close();
+    }
+
+    @Test
+    void servesUpdatesFromMemoryBeforeTheyArePersisted() throws IOException {
+        assertEquals(INITIAL_STATE, string(store.get("/data/lighting.json").getData()));
+        store.put("/data/lighting.json", bytes("{\"on\":true}"));
+
+        assertEquals("{\"on\":true}", string(store.get("/data/lighting.json").getData()));
+        assertEquals(INITIAL_STATE, Files.readString(stateFile));
+        assertEquals(0, store.getWriteCount());
+    }
+
+    @Test
+    void coalescesBurstOfUpdatesIntoOneWrite() throws IOException {
+        for (int level = 0; level < 10; level++) {
+            store.put("/data/lighting.json", bytes("{\"level\":%d}".formatted(level)));
+        }
+        store.flush();
+
+        assertEquals(10, store.getUpdateCount());
+        assertEquals(1, store.getWriteCount());
+        assertEquals("{\"level\":9}", Files.readString(stateFile));
+        // Nothing is dirty any more.
+        store.flush();
+        assertEquals(1, store.getWriteCount());
+    }
+
+    @Test
+    void replacesFileByRenaming() throws IOException {
+        // A hard link keeps the old file: writing in place would change it as well.
+        final Path previous = dataDirectory.resolve("previous");
+        Files.createLink(previous, stateFile);
+        store.put("/data/lighting.json", bytes("{\"on\":true}"));
+        store.flush();
+
+        assertEquals("{\"on\":true}", Files.readString(stateFile));
+        assertEquals(INITIAL_STATE, Files.readString(previous));
+        try (Stream<Path> files = Files.list(dataDirectory)) {
+            assertEquals(List.of("lighting.json", "previous"), files.map(file -> file.getFileName().toString()).sorted().toList());
+        }
+    }
+
+    @Test
+    void persistsPendingUpdatesOnClose() throws IOException {
+        store.put("/data/lighting.json", bytes("{\"on\":true}"));
+        store.close();
+        assertEquals("{\"on\":true}", Files.readString(stateFile));
+    }
+
+    @Test
+    void neverCreatesStateFiles() throws IOException {
+        assertNull(store.put("/data/heating.json", bytes("{}")));
+        assertNull(store.get("/data/heating.json"));
+        assertNull(store.get("/data/../lighting.json"));
+        assertNull(store.get("/data/.lighting.json"));
+        assertNull(store.get("/data/lighting.txt"));
+        store.flush();
+        assertFalse(Files.exists(dataDirectory.resolve("heating.json")));
+        assertThrows(IllegalArgumentException.class, () -> store.put("/data/lighting.json", new byte[MAX_STATE_BYTES + 1]));
+    }
+
+    @Test
+    void notifiesListenersInUpdateOrder() throws IOException {
+        final List<String> notified = new ArrayList<>();
+        store.addListener((component, state) -> notified.add(component + "=" + string(state.getData())));
+        final String before = store.get("/data/lighting.json").getEtag();
+        store.put("/data/lighting.json", bytes("{\"level\":1}"));
+        store.put("/data/lighting.json", bytes("{\"level\":2}"));
+
+        assertEquals(List.of("lighting={\"level\":1}", "lighting={\"level\":2}"), notified);
+        assertNotEquals(before, store.get("/data/lighting.json").getEtag());
+    }
+
+    private static byte[] bytes(final String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(final byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
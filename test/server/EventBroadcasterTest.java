@@ -0,0 +1,133 @@
+package server;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EventBroadcasterTest {
+    private static final int CAPACITY = 4;
+    private static final int MAX_SUBSCRIBERS = 2;
+    // Long enough that no heartbeat is published during a test.
+    private static final long HEARTBEAT_SECONDS = 3600;
+
+    private final EventBroadcaster broadcaster = new EventBroadcaster(CAPACITY, MAX_SUBSCRIBERS, HEARTBEAT_SECONDS);
+
+    @AfterEach
+    void closeBroadcaster() {
+        broadcaster.close();
+    }
+
+    @Test
+    void encodesEventsAsFrames() {
+        final EventBroadcaster.Subscription subscription = broadcaster.subscribe(null);
+        broadcaster.publish("state", "{\"on\":true}");
+        broadcaster.publish("state", "first\r\nsecond\nthird");
+
+        assertEquals("id: 1\nevent: state\ndata: {\"on\":true}\n\n", frame(subscription.poll()));
+        assertEquals("id: 2\nevent: state\ndata: first\ndata: second\ndata: third\n\n", frame(subscription.poll()));
+        assertNull(subscription.poll());
+    }
+
+    @Test
+    void keepsCursorPerSubscriber() {
+        final EventBroadcaster.Subscription early = broadcaster.subscribe(null);
+        broadcaster.publish("state", "1");
+        final EventBroadcaster.Subscription late = broadcaster.subscribe(null);
+        broadcaster.publish("state", "2");
+
+        assertTrue(frame(early.poll()).startsWith("id: 1\n"));
+        // Subscribers only receive the events published after they subscribed.
+        assertTrue(frame(late.poll()).startsWith("id: 2\n"));
+        assertNull(late.poll());
+        assertTrue(frame(early.poll()).startsWith("id: 2\n"));
+    }
+
+    @Test
+    void resumesAfterLastEventId() {
+        for (int i = 1; i <= 3; i++) {
+            broadcaster.publish("state", String.valueOf(i));
+        }
+        final EventBroadcaster.Subscription resumed = broadcaster.subscribe("1");
+        assertTrue(frame(resumed.poll()).startsWith("id: 2\n"));
+        assertTrue(frame(resumed.poll()).startsWith("id: 3\n"));
+        assertNull(resumed.poll());
+        resumed.close();
+
+        // Events no longer in the ring cannot be replayed; the subscription starts with the next event.
+        for (int i = 4; i <= 10; i++) {
+            broadcaster.publish("state", String.valueOf(i));
+        }
+        final EventBroadcaster.Subscription tooOld = broadcaster.subscribe("1");
+        assertNull(tooOld.poll());
+        broadcaster.publish("state", "11");
+        assertTrue(frame(tooOld.poll()).startsWith("id: 11\n"));
+    }
+
+    @Test
+    void evictsSubscriberFallingBehindByMoreThanCapacity() {
+        final EventBroadcaster.Subscription slow = broadcaster.subscribe(null);
+        final EventBroadcaster.Subscription fast = broadcaster.subscribe(null);
+        final AtomicInteger slowNotifications = new AtomicInteger();
+        slow.setListener(slowNotifications::incrementAndGet);
+
+        for (int i = 1; i <= CAPACITY + 1; i++) {
+            broadcaster.publish("state", String.valueOf(i));
+            assertNotNull(fast.poll());
+        }
+        assertTrue(slow.isClosed());
+        assertNull(slow.poll());
+        assertFalse(fast.isClosed());
+        assertEquals(1, broadcaster.getEvictionCount());
+        assertEquals(1, broadcaster.getSubscriberCount());
+        // Told about every event and, last, about being closed.
+        assertEquals(CAPACITY + 1, slowNotifications.get());
+    }
+
+    @Test
+    void limitsSubscribers() {
+        final EventBroadcaster.Subscription first = broadcaster.subscribe(null);
+        assertNotNull(broadcaster.subscribe(null));
+        assertNull(broadcaster.subscribe(null));
+        first.close();
+        assertNotNull(broadcaster.subscribe(null));
+    }
+
+    @Test
+    void wakesWaitingSubscriber() throws InterruptedException {
+        final EventBroadcaster.Subscription subscription = broadcaster.subscribe(null);
+        final CountDownLatch woken = new CountDownLatch(1);
+        final Thread waiter = Thread.ofVirtual().start(() -> {
+            try {
+                subscription.await();
+                woken.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        broadcaster.publish("state", "1");
+        assertTrue(woken.await(10, TimeUnit.SECONDS));
+        waiter.join();
+
+        // Closing the broadcaster ends the streams.
+        assertNotNull(subscription.poll());
+        broadcaster.close();
+        subscription.await();
+        assertTrue(subscription.isClosed());
+        assertNull(broadcaster.subscribe(null));
+    }
+
+    private static String frame(final byte[] frame) {
+        assertNotNull(frame);
+        return new String(frame, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,83 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HpackHuffmanTest {
+    // Examples of RFC 7541, Appendix C.4 and C.6.
+    private static final String[][] EXAMPLES = {
+            {"www.example.com", "f1e3c2e5f23a6ba0ab90f4ff"},
+            {"no-cache", "a8eb10649cbf"},
+            {"custom-key", "25a849e95ba97d7f"},
+            {"custom-value", "25a849e95bb8e8b4bf"},
+            {"private", "aec3771a4b"},
+            {"Mon, 21 Oct 2013 20:13:21 GMT", "d07abe941054d444a8200595040b8166e082a62d1bff"},
+            {"https://www.example.com", "9d29ad171863c78f0b97c8e9ae82ae43d3"},
+    };
+
+    @Test
+    void encodesTheRfcExamples() {
+        for (final String[] example : EXAMPLES) {
+            final byte[] value = example[0].getBytes(StandardCharsets.ISO_8859_1);
+            final byte[] expected = HexFormat.of().parseHex(example[1]);
+            assertEquals(expected.length, HpackHuffman.encodedLength(value, 0, value.length), example[0]);
+
+            final byte[] out = new byte[expected.length + 2];
+            assertEquals(1 + expected.length, HpackHuffman.encode(value, 0, value.length, out, 1), example[0]);
+            final byte[] code = new byte[expected.length];
+            System.arraycopy(out, 1, code, 0, code.length);
+            assertArrayEquals(expected, code, example[0]);
+        }
+    }
+
+    @Test
+    void decodesTheRfcExamples() throws Hpack.DecodingException {
+        for (final String[] example : EXAMPLES) {
+            final byte[] code = HexFormat.of().parseHex("00" + example[1] + "00");
+            assertEquals(example[0], HpackHuffman.decode(code, 1, code.length - 1));
+        }
+    }
+
+    @Test
+    void roundTripsEveryOctet() throws Hpack.DecodingException {
+        final byte[] value = new byte[256];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        final byte[] code = new byte[HpackHuffman.encodedLength(value, 0, value.length)];
+        assertEquals(code.length, HpackHuffman.encode(value, 0, value.length, code, 0));
+        assertEquals(new String(value, StandardCharsets.ISO_8859_1), HpackHuffman.decode(code, 0, code.length));
+    }
+
+    @Test
+    void decodesEmptyString() throws Hpack.DecodingException {
+        assertEquals("", HpackHuffman.decode(new byte[0], 0, 0));
+    }
+
+    @Test
+    void rejectsEos() {
+        // 30 one bits are EOS.
+        final byte[] code = HexFormat.of().parseHex("ffffffff");
+        assertThrows(Hpack.DecodingException.class, () -> HpackHuffman.decode(code, 0, code.length));
+    }
+
+    @Test
+    void rejectsPaddingLongerThanSevenBits() {
+        // 'a' (00011) followed by 11 bits of padding.
+        final byte[] code = HexFormat.of().parseHex("1fff");
+        assertThrows(Hpack.DecodingException.class, () -> HpackHuffman.decode(code, 0, code.length));
+    }
+
+    @Test
+    void rejectsPaddingThatIsNotPrefixOfEos() {
+        // 'a' (00011) followed by 000.
+        final byte[] code = HexFormat.of().parseHex("18");
+        assertThrows(Hpack.DecodingException.class, () -> HpackHuffman.decode(code, 0, code.length));
+    }
+}
@@ -0,0 +1,143 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HpackTest {
+    private static final int MAX_HEADER_LIST_SIZE = 8192;
+
+    private static final List<Hpack.Header> FIRST_REQUEST = List.of(
+            new Hpack.Header(":method", "GET"), new Hpack.Header(":scheme", "http"),
+            new Hpack.Header(":path", "/"), new Hpack.Header(":authority", "www.example.com"));
+    private static final List<Hpack.Header> SECOND_REQUEST = List.of(
+            new Hpack.Header(":method", "GET"), new Hpack.Header(":scheme", "http"),
+            new Hpack.Header(":path", "/"), new Hpack.Header(":authority", "www.example.com"),
+            new Hpack.Header("cache-control", "no-cache"));
+    private static final List<Hpack.Header> THIRD_REQUEST = List.of(
+            new Hpack.Header(":method", "GET"), new Hpack.Header(":scheme", "https"),
+            new Hpack.Header(":path", "/index.html"), new Hpack.Header(":authority", "www.example.com"),
+            new Hpack.Header("custom-key", "custom-value"));
+
+    @Test
+    void decodesRequestsWithoutHuffmanCoding() throws Hpack.DecodingException {
+        // RFC 7541, Appendix C.3: the later requests refer to the entries the earlier ones added.
+        final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertEquals(FIRST_REQUEST, decode(decoder, "828684410f7777772e6578616d706c652e636f6d"));
+        assertEquals(SECOND_REQUEST, decode(decoder, "828684be58086e6f2d6361636865"));
+        assertEquals(THIRD_REQUEST, decode(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565"));
+    }
+
+    @Test
+    void decodesRequestsWithHuffmanCoding() throws Hpack.DecodingException {
+        // RFC 7541, Appendix C.4.
+        final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertEquals(FIRST_REQUEST, decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff"));
+        assertEquals(SECOND_REQUEST, decode(decoder, "828684be5886a8eb10649cbf"));
+        assertEquals(THIRD_REQUEST, decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"));
+    }
+
+    @Test
+    void decodesIntegerWithContinuationOctets() throws Hpack.DecodingException {
+        // A literal with a 1337 byte value: the length takes three octets (RFC 7541, Appendix C.1.2).
+        final byte[] value = new byte[1337];
+        Arrays.fill(value, (byte) 'x');
+        final String block = "0001" + "61" + "7fba09" + HexFormat.of().formatHex(value);
+        final List<Hpack.Header> headers = decode(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), block);
+        assertEquals(1, headers.size());
+        assertEquals(1337, headers.get(0).value().length());
+    }
+
+    @Test
+    void roundTripsEncodedBlocks() throws Hpack.DecodingException {
+        final Hpack.Encoder encoder = new Hpack.Encoder();
+        final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        final List<Hpack.Header> response = List.of(
+                new Hpack.Header(":status", "200"), new Hpack.Header("content-type", "text/html; charset=utf-8"),
+                new Hpack.Header("cache-control", "no-cache"), new Hpack.Header("content-length", "1234"));
+
+        final byte[] first = encode(encoder, response);
+        assertEquals(response, decoder.decode(first, 0, first.length, MAX_HEADER_LIST_SIZE));
+        final byte[] second = encode(encoder, response);
+        assertEquals(response, decoder.decode(second, 0, second.length, MAX_HEADER_LIST_SIZE));
+        // The indexed fields take one octet from the second block on.
+        assertTrue(second.length < first.length, "second block is not shorter");
+    }
+
+    @Test
+    void signalsTableSizeChanges() throws Hpack.DecodingException {
+        final Hpack.Encoder encoder = new Hpack.Encoder();
+        final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        final List<Hpack.Header> headers = List.of(new Hpack.Header("content-type", "application/json"));
+        final byte[] indexed = encode(encoder, headers);
+        assertEquals(headers, decoder.decode(indexed, 0, indexed.length, MAX_HEADER_LIST_SIZE));
+
+        // The peer evicts everything; the next block must start with a size update to 0.
+        encoder.setMaxTableSize(0);
+        final byte[] block = encode(encoder, headers);
+        assertEquals(0x20, block[0] & 0xff);
+        assertEquals(headers, decoder.decode(block, 0, block.length, MAX_HEADER_LIST_SIZE));
+    }
+
+    @Test
+    void returnsNullForTooLargeHeaderListButKeepsTable() throws Hpack.DecodingException {
+        final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        // :authority www.example.com is added to the dynamic table even though the list is refused.
+        assertNull(decode(decoder, "828684410f7777772e6578616d706c652e636f6d", 64));
+        // ... so a later block can refer to it (index 62).
+        assertEquals(List.of(new Hpack.Header(":authority", "www.example.com")), decode(decoder, "be"));
+    }
+
+    @Test
+    void rejectsInvalidIndex() {
+        final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertThrows(Hpack.DecodingException.class, () -> decode(decoder, "80"));
+        assertThrows(Hpack.DecodingException.class, () -> decode(decoder, "be"));
+    }
+
+    @Test
+    void rejectsTableSizeUpdateAfterField() {
+        final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertThrows(Hpack.DecodingException.class, () -> decode(decoder, "8220"));
+    }
+
+    @Test
+    void rejectsTableSizeUpdateBeyondAdvertisedMaximum() {
+        final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        // 4097 = 31 + 4066 (0xe2 0x1f).
+        assertThrows(Hpack.DecodingException.class, () -> decode(decoder, "3fe21f"));
+    }
+
+    @Test
+    void rejectsTruncatedBlocks() {
+        final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertThrows(Hpack.DecodingException.class, () -> decode(decoder, "ff"));
+        assertThrows(Hpack.DecodingException.class, () -> decode(decoder, "4003666f"));
+        assertThrows(Hpack.DecodingException.class, () -> decode(decoder, "400161"));
+    }
+
+    private static List<Hpack.Header> decode(final Hpack.Decoder decoder, final String block) throws Hpack.DecodingException {
+        return decode(decoder, block, MAX_HEADER_LIST_SIZE);
+    }
+
+    private static List<Hpack.Header> decode(final Hpack.Decoder decoder, final String block, final int maxHeaderListSize)
+            throws Hpack.DecodingException {
+        final byte[] bytes = HexFormat.of().parseHex(block);
+        return decoder.decode(bytes, 0, bytes.length, maxHeaderListSize);
+    }
+
+    private static byte[] encode(final Hpack.Encoder encoder, final List<Hpack.Header> headers) {
+        encoder.startBlock();
+        for (final Hpack.Header header : headers) {
+            encoder.header(header.name(), header.value(), !header.name().equals("content-length"));
+        }
+        return Arrays.copyOf(encoder.getBuffer(), encoder.getLength());
+    }
+}
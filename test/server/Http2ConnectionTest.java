@@ -0,0 +1,385 @@
+package server;
+
+import common.Constants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Drives an {@link Http2Connection} frame by frame from a raw client on a loopback socket.
+ */
+class Http2ConnectionTest {
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+
+    private static final int PROTOCOL_ERROR = 0x1;
+    private static final int REFUSED_STREAM = 0x7;
+
+    private static final int READ_TIMEOUT_MILLIS = 10_000;
+
+    @TempDir
+    Path directory;
+
+    private ServerFixture fixture;
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+    private final Hpack.Decoder hpackDecoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+    /**
+     * @param headers the decoded header block of a HEADERS frame, otherwise {@code null}
+     */
+    private record Frame(int type, int flags, int streamId, byte[] payload, List<Hpack.Header> headers) {
+    }
+
+    @BeforeEach
+    void startServer() throws IOException {
+        fixture = new ServerFixture(directory);
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        serverThread = Thread.ofVirtual().start(() -> {
+            try (Socket accepted = serverSocket.accept()) {
+                new Http2Connection(accepted, accepted.getInputStream(), fixture.requestProcessor, fixture.idleConnectionReaper).serve(null, null);
+            } catch (IOException e) {
+                // The test ended before it connected.
+            }
+        });
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        if (socket != null) {
+            socket.close();
+        }
+        serverSocket.close();
+        serverThread.join(READ_TIMEOUT_MILLIS);
+        fixture.close();
+    }
+
+    @Test
+    void answersGetRequest() throws IOException {
+        connect();
+        send(TYPE_HEADERS, FLAG_END_HEADERS | FLAG_END_STREAM, 1, request("GET", "/index.html"));
+
+        assertEquals("200", readStatus(1));
+        assertEquals(ServerFixture.INDEX_HTML, readBody(1));
+    }
+
+    @Test
+    void answersRequestsOnTheirOwnStreams() throws IOException {
+        connect();
+        send(TYPE_HEADERS, FLAG_END_HEADERS | FLAG_END_STREAM, 1, request("GET", "/index.html"));
+        send(TYPE_HEADERS, FLAG_END_HEADERS | FLAG_END_STREAM, 3, request("GET", "/missing.html"));
+
+        final List<Frame> frames = readUntilStreamsEnd(1, 3);
+        assertEquals("200", statusOf(frames, 1));
+        assertEquals("404", statusOf(frames, 3));
+    }
+
+    @Test
+    void joinsHeaderBlockFromContinuationFrames() throws IOException {
+        connect();
+        final byte[] block = request("GET", "/index.html");
+        send(TYPE_HEADERS, FLAG_END_STREAM, 1, Arrays.copyOfRange(block, 0, 10));
+        send(TYPE_CONTINUATION, 0, 1, Arrays.copyOfRange(block, 10, 20));
+        send(TYPE_CONTINUATION, FLAG_END_HEADERS, 1, Arrays.copyOfRange(block, 20, block.length));
+
+        assertEquals("200", readStatus(1));
+    }
+
+    @Test
+    void collectsRequestBodyFromDataFrames() throws IOException {
+        connect();
+        send(TYPE_HEADERS, FLAG_END_HEADERS, 1, request("PUT", "/data/lighting.json"));
+        send(TYPE_DATA, 0, 1, "{\"on\":true,".getBytes(StandardCharsets.US_ASCII));
+        send(TYPE_DATA, FLAG_END_STREAM, 1, "\"level\":3}".getBytes(StandardCharsets.US_ASCII));
+        assertEquals("200", readStatus(1));
+
+        send(TYPE_HEADERS, FLAG_END_HEADERS | FLAG_END_STREAM, 3, request("GET", "/data/lighting.json"));
+        assertEquals("200", readStatus(3));
+        assertEquals("{\"on\":true,\"level\":3}", readBody(3));
+    }
+
+    @Test
+    void rejectsContentLengthMismatch() throws IOException {
+        connect();
+        send(TYPE_HEADERS, FLAG_END_HEADERS, 1, request("PUT", "/data/lighting.json", "content-length", "5"));
+        send(TYPE_DATA, FLAG_END_STREAM, 1, "{}".getBytes(StandardCharsets.US_ASCII));
+
+        assertEquals("400", readStatus(1));
+    }
+
+    @Test
+    void acknowledgesPing() throws IOException {
+        connect();
+        final byte[] data = "12345678".getBytes(StandardCharsets.US_ASCII);
+        send(TYPE_PING, 0, 0, data);
+
+        final Frame ping = readFrame(TYPE_PING);
+        assertEquals(FLAG_ACK, ping.flags());
+        assertArrayEquals(data, ping.payload());
+    }
+
+    @Test
+    void endsConnectionOnDataForStreamZero() throws IOException {
+        connect();
+        send(TYPE_DATA, 0, 0, new byte[4]);
+
+        final Frame goAway = readFrame(TYPE_GOAWAY);
+        assertEquals(PROTOCOL_ERROR, readInt(goAway.payload(), 4));
+        assertEndOfStream();
+    }
+
+    @Test
+    void refusesStreamsBeyondConcurrencyLimit() throws IOException {
+        connect();
+        int streamId = 1;
+        for (int i = 0; i < Constants.HTTP2_MAX_CONCURRENT_STREAMS; i++, streamId += 2) {
+            send(TYPE_HEADERS, FLAG_END_HEADERS, streamId, request("PUT", "/data/lighting.json"));
+        }
+        send(TYPE_HEADERS, FLAG_END_HEADERS, streamId, request("PUT", "/data/lighting.json"));
+
+        final Frame reset = readFrame(TYPE_RST_STREAM);
+        assertEquals(streamId, reset.streamId());
+        assertEquals(REFUSED_STREAM, readInt(reset.payload(), 0));
+    }
+
+    @Test
+    void reapsConnectionWithIncompleteRequest() throws IOException {
+        connect();
+        final long start = System.nanoTime();
+        send(TYPE_HEADERS, FLAG_END_HEADERS, 1, request("PUT", "/data/lighting.json"));
+        // Further streams do not extend the deadline.
+        for (int streamId = 3; streamId < 9; streamId += 2) {
+            sleep(Constants.KEEP_ALIVE_TIMEOUT_MILLI_SECONDS / 4);
+            send(TYPE_HEADERS, FLAG_END_HEADERS, streamId, request("PUT", "/data/lighting.json"));
+        }
+
+        assertEndOfStream();
+        final long elapsedMillis = Duration.ofNanos(System.nanoTime() - start).toMillis();
+        assertTrue(elapsedMillis < Constants.KEEP_ALIVE_TIMEOUT_MILLI_SECONDS + 2 * Constants.IDLE_REAPER_TICK_MILLI_SECONDS + 1000,
+                "reaped after " + elapsedMillis + " ms");
+    }
+
+    @Test
+    void answersRequestCompletedBeforeDeadline() throws IOException {
+        connect();
+        send(TYPE_HEADERS, FLAG_END_HEADERS, 1, request("PUT", "/data/lighting.json"));
+        sleep(Constants.KEEP_ALIVE_TIMEOUT_MILLI_SECONDS / 2);
+        send(TYPE_DATA, FLAG_END_STREAM, 1, "{\"on\":true}".getBytes(StandardCharsets.US_ASCII));
+
+        assertEquals("200", readStatus(1));
+    }
+
+    @Test
+    void disconnectsClientThatDoesNotReadControlFrames() throws IOException {
+        socket = new Socket();
+        // Little room for the acknowledgements, so that they back up into the server's queue.
+        socket.setReceiveBufferSize(4096);
+        connect();
+        // A response held up by flow control keeps the connection busy, so the request deadline does not end it.
+        send(TYPE_HEADERS, FLAG_END_HEADERS | FLAG_END_STREAM, 1, request("GET", "/large.js"));
+        assertEquals("200", readStatus(1));
+        final byte[] pings = new byte[1000 * 17];
+        for (int i = 0; i < pings.length; i += 17) {
+            pings[i + 2] = 8;
+            pings[i + 3] = TYPE_PING;
+        }
+
+        // The server stops reading and closes the connection, so that the writes fail.
+        assertTimeoutPreemptively(Duration.ofMillis(Constants.KEEP_ALIVE_TIMEOUT_MILLI_SECONDS), () -> assertThrows(IOException.class, () -> {
+            while (true) {
+                out.write(pings);
+                out.flush();
+            }
+        }));
+    }
+
+    private void connect() throws IOException {
+        if (socket == null) {
+            socket = new Socket();
+        }
+        socket.connect(serverSocket.getLocalSocketAddress());
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+        out.write(Http2Connection.CLIENT_PREFACE);
+        send(TYPE_SETTINGS, 0, 0, new byte[0]);
+    }
+
+    private void send(final int type, final int flags, final int streamId, final byte[] payload) throws IOException {
+        final byte[] frame = new byte[9 + payload.length];
+        frame[0] = (byte) (payload.length >>> 16);
+        frame[1] = (byte) (payload.length >>> 8);
+        frame[2] = (byte) payload.length;
+        frame[3] = (byte) type;
+        frame[4] = (byte) flags;
+        frame[5] = (byte) (streamId >>> 24);
+        frame[6] = (byte) (streamId >>> 16);
+        frame[7] = (byte) (streamId >>> 8);
+        frame[8] = (byte) streamId;
+        System.arraycopy(payload, 0, frame, 9, payload.length);
+        out.write(frame);
+        out.flush();
+    }
+
+    /**
+     * @return the next frame, or {@code null} at the end of the stream
+     */
+    private Frame read() throws IOException {
+        final byte[] header = new byte[9];
+        try {
+            in.readFully(header);
+        } catch (EOFException e) {
+            return null;
+        }
+        final int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+        final byte[] payload = new byte[length];
+        in.readFully(payload);
+        final int type = header[3] & 0xff;
+        // Every block is decoded, in order, to keep the dynamic table in sync with the server's.
+        final List<Hpack.Header> headers = type == TYPE_HEADERS ? hpackDecoder.decode(payload, 0, payload.length, Integer.MAX_VALUE) : null;
+        return new Frame(type, header[4] & 0xff, readInt(header, 5) & 0x7fffffff, payload, headers);
+    }
+
+    private Frame readFrame(final int type) throws IOException {
+        Frame frame;
+        while ((frame = read()) != null) {
+            if (frame.type() == type) {
+                return frame;
+            }
+        }
+        return fail("Connection closed before a frame of type " + type);
+    }
+
+    private List<Frame> readUntilStreamsEnd(final int... streamIds) throws IOException {
+        final List<Frame> frames = new ArrayList<>();
+        int open = streamIds.length;
+        while (open > 0) {
+            final Frame frame = read();
+            assertNotNull(frame, "Connection closed before the responses ended");
+            frames.add(frame);
+            if ((frame.type() == TYPE_HEADERS || frame.type() == TYPE_DATA) && (frame.flags() & FLAG_END_STREAM) != 0
+                    && Arrays.stream(streamIds).anyMatch(id -> id == frame.streamId())) {
+                open--;
+            }
+        }
+        return frames;
+    }
+
+    private String readStatus(final int streamId) throws IOException {
+        Frame frame;
+        while ((frame = read()) != null) {
+            if (frame.type() == TYPE_HEADERS && frame.streamId() == streamId) {
+                return statusOf(frame);
+            }
+        }
+        return fail("Connection closed before the response headers");
+    }
+
+    private String readBody(final int streamId) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Frame frame;
+        while ((frame = read()) != null) {
+            if (frame.type() == TYPE_DATA && frame.streamId() == streamId) {
+                body.write(frame.payload());
+                if ((frame.flags() & FLAG_END_STREAM) != 0) {
+                    return body.toString(StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return fail("Connection closed before the response body ended");
+    }
+
+    private static String statusOf(final List<Frame> frames, final int streamId) {
+        return frames.stream().filter(frame -> frame.type() == TYPE_HEADERS && frame.streamId() == streamId).findFirst()
+                .map(Http2ConnectionTest::statusOf).orElseGet(() -> fail("No response headers on stream " + streamId));
+    }
+
+    private static String statusOf(final Frame frame) {
+        return frame.headers().stream().filter(header -> header.name().equals(":status")).findFirst()
+                .map(Hpack.Header::value).orElseGet(() -> fail("No :status header"));
+    }
+
+    private void assertEndOfStream() throws IOException {
+        try {
+            while (read() != null) {
+                // Frames sent before the connection ended.
+            }
+        } catch (SocketException e) {
+            // Reset instead of closed: the server did not read all the client sent.
+        }
+    }
+
+    private static byte[] request(final String method, final String path, final String... headers) {
+        final ByteArrayOutputStream block = new ByteArrayOutputStream();
+        literal(block, ":method", method);
+        literal(block, ":scheme", "http");
+        literal(block, ":path", path);
+        literal(block, ":authority", "localhost");
+        for (int i = 0; i < headers.length; i += 2) {
+            literal(block, headers[i], headers[i + 1]);
+        }
+        return block.toByteArray();
+    }
+
+    /**
+     * Appends a literal field without indexing and with a new name (RFC 7541, section 6.2.2); strings are shorter than 127 bytes.
+     */
+    private static void literal(final ByteArrayOutputStream block, final String name, final String value) {
+        block.write(0x00);
+        for (final String string : new String[]{name, value}) {
+            final byte[] bytes = string.getBytes(StandardCharsets.ISO_8859_1);
+            block.write(bytes.length);
+            block.writeBytes(bytes);
+        }
+    }
+
+    private static int readInt(final byte[] bytes, final int position) {
+        return ((bytes[position] & 0xff) << 24) | ((bytes[position + 1] & 0xff) << 16) | ((bytes[position + 2] & 0xff) << 8) | (bytes[position + 3] & 0xff);
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpRequestParserTest {
+    private static final int MAX_REQUEST_LINE_BYTES = 64;
+    private static final int MAX_HEADER_BYTES = 256;
+    private static final int MAX_BODY_BYTES = 16;
+
+    private static final String CHUNKED_REQUEST = "PUT /data/lighting.json HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "4;name=value\r\nWiki\r\n5\r\npedia\r\n0\r\nExpires: never\r\n\r\n";
+
+    @Test
+    void parsesRequestWithContentLengthBody() {
+        final HttpRequestParser parser = newParser();
+        final byte[] request = bytes("PUT /data/lighting.json HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello");
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse(request, 0, request.length));
+        assertEquals("PUT", parser.getRequest().getMethod());
+        assertEquals("/data/lighting.json", parser.getRequest().getPath());
+        assertEquals("localhost", parser.getRequest().getHeader("host"));
+        assertNull(parser.getRequest().getHeader("accept"));
+        assertEquals("hello", string(parser.getRequest().getBody()));
+        assertEquals(request.length, parser.getRequestEnd());
+    }
+
+    @Test
+    void resumesParsingAsBytesArrive() {
+        final HttpRequestParser parser = newParser();
+        final byte[] request = bytes("PUT / HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc");
+        for (int end = 0; end < request.length; end++) {
+            assertEquals(HttpRequestParser.Result.INCOMPLETE, parser.parse(request, 0, end), "after " + end + " bytes");
+        }
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse(request, 0, request.length));
+        assertEquals("abc", string(parser.getRequest().getBody()));
+    }
+
+    @Test
+    void decodesChunkedBodyWithExtensionsAndTrailers() {
+        final HttpRequestParser parser = newParser();
+        final byte[] request = bytes(CHUNKED_REQUEST);
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse(request, 0, request.length));
+        assertEquals("Wikipedia", string(parser.getRequest().getBody()));
+        // The request ends after the trailer section, not after the decoded body.
+        assertEquals(request.length, parser.getRequestEnd());
+    }
+
+    @Test
+    void decodesChunkedBodyArrivingByteByByte() {
+        final HttpRequestParser parser = newParser();
+        final byte[] request = bytes(CHUNKED_REQUEST);
+        for (int end = 0; end < request.length; end++) {
+            assertEquals(HttpRequestParser.Result.INCOMPLETE, parser.parse(request, 0, end), "after " + end + " bytes");
+        }
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse(request, 0, request.length));
+        assertEquals("Wikipedia", string(parser.getRequest().getBody()));
+    }
+
+    @Test
+    void leavesPipelinedRequestIntact() {
+        // Decoding the chunked body in place must not touch the bytes of the next request.
+        final String second = "GET /index.html HTTP/1.1\r\nConnection: keep-alive\r\n\r\n";
+        final byte[] requests = bytes(CHUNKED_REQUEST + second);
+        final HttpRequestParser parser = newParser();
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse(requests, 0, requests.length));
+        final int secondStart = parser.getRequestEnd();
+        assertEquals(CHUNKED_REQUEST.length(), secondStart);
+
+        parser.reset();
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse(requests, secondStart, requests.length));
+        assertEquals("GET", parser.getRequest().getMethod());
+        assertEquals("/index.html", parser.getRequest().getPath());
+        assertEquals(0, parser.getRequest().getBody().length);
+        assertTrue(parser.isKeepAliveRequested());
+        assertEquals(requests.length, parser.getRequestEnd());
+    }
+
+    @Test
+    void findsKeepAliveAmongConnectionOptions() {
+        assertTrue(isKeepAliveRequested("Connection: Upgrade, Keep-Alive\r\n"));
+        assertFalse(isKeepAliveRequested("Connection: close\r\n"));
+        assertFalse(isKeepAliveRequested(""));
+    }
+
+    @Test
+    void rejectsContentLengthWithTransferEncoding() {
+        assertResult(HttpRequestParser.Result.BAD_REQUEST,
+                "PUT / HTTP/1.1\r\nContent-Length: 4\r\nTransfer-Encoding: chunked\r\n\r\n4\r\nWiki\r\n0\r\n\r\n");
+    }
+
+    @Test
+    void rejectsUnsupportedTransferEncoding() {
+        assertResult(HttpRequestParser.Result.BAD_REQUEST, "PUT / HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n");
+    }
+
+    @Test
+    void rejectsDifferingContentLengths() {
+        assertResult(HttpRequestParser.Result.BAD_REQUEST, "PUT / HTTP/1.1\r\nContent-Length: 4\r\nContent-Length: 5\r\n\r\nhello");
+        assertResult(HttpRequestParser.Result.COMPLETE, "PUT / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\nhello");
+    }
+
+    @Test
+    void rejectsInvalidContentLength() {
+        assertResult(HttpRequestParser.Result.BAD_REQUEST, "PUT / HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+        assertResult(HttpRequestParser.Result.BAD_REQUEST, "PUT / HTTP/1.1\r\nContent-Length: 0x10\r\n\r\n");
+        assertResult(HttpRequestParser.Result.BAD_REQUEST, "PUT / HTTP/1.1\r\nContent-Length:\r\n\r\n");
+    }
+
+    @Test
+    void rejectsOversizeBodies() {
+        assertResult(HttpRequestParser.Result.BODY_TOO_LARGE, "PUT / HTTP/1.1\r\nContent-Length: 17\r\n\r\n");
+        assertResult(HttpRequestParser.Result.BODY_TOO_LARGE, "PUT / HTTP/1.1\r\nContent-Length: 99999999999999999999\r\n\r\n");
+        // Each chunk is small, but together they exceed the limit.
+        assertResult(HttpRequestParser.Result.BODY_TOO_LARGE,
+                "PUT / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n8\r\n12345678\r\n8\r\n12345678\r\n1\r\n");
+    }
+
+    @Test
+    void rejectsChunkSizeOverflow() {
+        // Would wrap around a long if the size were accumulated without the limit.
+        assertResult(HttpRequestParser.Result.BODY_TOO_LARGE, "PUT / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n10000000000000001\r\n");
+    }
+
+    @Test
+    void rejectsMalformedChunks() {
+        assertResult(HttpRequestParser.Result.BAD_REQUEST, "PUT / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nxyz\r\n");
+        assertResult(HttpRequestParser.Result.BAD_REQUEST, "PUT / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n4x\r\nWiki\r\n");
+        // The chunk data is longer than its size.
+        assertResult(HttpRequestParser.Result.BAD_REQUEST, "PUT / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n4\r\nWikipedia\r\n");
+    }
+
+    @Test
+    void boundsChunkFraming() {
+        // Extensions make up most of the bytes; they must not be buffered without limit.
+        final String extension = ";" + "x".repeat(100);
+        assertResult(HttpRequestParser.Result.BODY_TOO_LARGE, "PUT / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + ("1" + extension + "\r\na\r\n").repeat(3));
+        // A chunk size line without its end.
+        final HttpRequestParser parser = new HttpRequestParser();
+        final byte[] request = bytes("PUT / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n1;" + "x".repeat(2000));
+        assertEquals(HttpRequestParser.Result.BAD_REQUEST, parser.parse(request, 0, request.length));
+    }
+
+    @Test
+    void rejectsOversizeHead() {
+        assertResult(HttpRequestParser.Result.URI_TOO_LONG, "GET /" + "a".repeat(MAX_REQUEST_LINE_BYTES));
+        assertResult(HttpRequestParser.Result.URI_TOO_LONG, "GET /" + "a".repeat(MAX_REQUEST_LINE_BYTES) + " HTTP/1.1\r\n\r\n");
+        assertResult(HttpRequestParser.Result.HEADERS_TOO_LARGE, "GET / HTTP/1.1\r\n" + "X-Filler: abcdefghij\r\n".repeat(20));
+    }
+
+    @Test
+    void rejectsMalformedHeaders() {
+        assertResult(HttpRequestParser.Result.BAD_REQUEST, "GET / HTTP/1.1\r\nHost: localhost\r\n folded\r\n\r\n");
+        assertResult(HttpRequestParser.Result.BAD_REQUEST, "GET / HTTP/1.1\r\nHost : localhost\r\n\r\n");
+        assertResult(HttpRequestParser.Result.BAD_REQUEST, "GET / HTTP/1.1\r\nNoColon\r\n\r\n");
+        assertResult(HttpRequestParser.Result.BAD_REQUEST, "GET\r\n\r\n");
+    }
+
+    private static boolean isKeepAliveRequested(final String headers) {
+        final HttpRequestParser parser = newParser();
+        final byte[] request = bytes("GET / HTTP/1.1\r\n" + headers + "\r\n");
+        assertEquals(HttpRequestParser.Result.COMPLETE, parser.parse(request, 0, request.length));
+        return parser.isKeepAliveRequested();
+    }
+
+    private static void assertResult(final HttpRequestParser.Result expected, final String request) {
+        final byte[] bytes = bytes(request);
+        assertEquals(expected, newParser().parse(bytes, 0, bytes.length), request);
+    }
+
+    private static HttpRequestParser newParser() {
+        return new HttpRequestParser(MAX_REQUEST_LINE_BYTES, MAX_HEADER_BYTES, MAX_BODY_BYTES);
+    }
+
+    private static byte[] bytes(final String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String string(final byte[] value) {
+        return new String(value, StandardCharsets.ISO_8859_1);
+    }
+}
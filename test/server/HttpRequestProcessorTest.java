@@ -0,0 +1,245 @@
+package server;
+
+import common.Utility;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpRequestProcessorTest {
+    // Above COMPRESSION_MIN_BYTES and compressing well.
+    private static final String STYLE_CSS = "body { margin: 0; padding: 0; color: #333; }\n".repeat(20);
+
+    @TempDir
+    Path directory;
+
+    private ServerFixture fixture;
+
+    @BeforeEach
+    void createFixture() throws IOException {
+        fixture = new ServerFixture(directory);
+        Files.writeString(fixture.webRoot.resolve("style.css"), STYLE_CSS, StandardCharsets.UTF_8);
+    }
+
+    @AfterEach
+    void closeFixture() throws IOException {
+        fixture.close();
+    }
+
+    @Test
+    void negotiatesContentEncoding() {
+        assertEquals("gzip", HttpRequestProcessor.negotiateContentEncoding("gzip, deflate, br", true, true));
+        assertEquals("deflate", HttpRequestProcessor.negotiateContentEncoding("gzip;q=0.5, deflate", true, true));
+        assertEquals("gzip", HttpRequestProcessor.negotiateContentEncoding("x-gzip", true, true));
+        // Codings not listed explicitly are only acceptable through "*".
+        assertEquals("gzip", HttpRequestProcessor.negotiateContentEncoding("br, *;q=0.1", true, true));
+        assertNull(HttpRequestProcessor.negotiateContentEncoding("br", true, true));
+        // q=0 means "not acceptable".
+        assertNull(HttpRequestProcessor.negotiateContentEncoding("gzip;q=0, deflate;q=0", true, true));
+        assertEquals("deflate", HttpRequestProcessor.negotiateContentEncoding("*;q=0, deflate", true, true));
+        // Codings without a variant are skipped.
+        assertEquals("deflate", HttpRequestProcessor.negotiateContentEncoding("gzip, deflate;q=0.1", false, true));
+        assertNull(HttpRequestProcessor.negotiateContentEncoding("gzip", false, true));
+        assertNull(HttpRequestProcessor.negotiateContentEncoding(null, true, true));
+        assertNull(HttpRequestProcessor.negotiateContentEncoding("", true, true));
+    }
+
+    @Test
+    void servesNegotiatedVariants() throws IOException {
+        final HttpResponse identity = process(TestRequest.get("/style.css"));
+        assertEquals(200, identity.getStatusCode());
+        assertNull(identity.getHeaders().get("Content-Encoding"));
+        assertEquals("Accept-Encoding", identity.getHeaders().get("Vary"));
+        assertEquals(STYLE_CSS, new String(identity.getBody(), StandardCharsets.UTF_8));
+
+        final HttpResponse gzip = process(TestRequest.get("/style.css").header("Accept-Encoding", "gzip"));
+        assertEquals("gzip", gzip.getHeaders().get("Content-Encoding"));
+        assertEquals("Accept-Encoding", gzip.getHeaders().get("Vary"));
+        assertEquals(STYLE_CSS, decode(new GZIPInputStream(new ByteArrayInputStream(gzip.getBody()))));
+
+        final HttpResponse deflate = process(TestRequest.get("/style.css").header("Accept-Encoding", "deflate"));
+        assertEquals("deflate", deflate.getHeaders().get("Content-Encoding"));
+        assertEquals(STYLE_CSS, decode(new InflaterInputStream(new ByteArrayInputStream(deflate.getBody()))));
+
+        // Each representation has its own entity tag.
+        final String identityEtag = identity.getHeaders().get("ETag");
+        assertEquals(3, Set.of(identityEtag, gzip.getHeaders().get("ETag"), deflate.getHeaders().get("ETag")).size());
+    }
+
+    @Test
+    void sendsSmallFilesUncompressed() {
+        // index.html is below COMPRESSION_MIN_BYTES.
+        final HttpResponse response = process(TestRequest.get("/index.html").header("Accept-Encoding", "gzip"));
+        assertEquals(200, response.getStatusCode());
+        assertNull(response.getHeaders().get("Content-Encoding"));
+        assertNull(response.getHeaders().get("Vary"));
+        assertEquals(ServerFixture.INDEX_HTML, new String(response.getBody(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void sendsAlreadyCompressedTypesAsTheyAre() throws IOException {
+        final byte[] image = new byte[1024];
+        Files.write(fixture.webRoot.resolve("image.png"), image);
+        final HttpResponse response = process(TestRequest.get("/image.png").header("Accept-Encoding", "gzip, deflate"));
+        assertEquals(200, response.getStatusCode());
+        assertEquals("image/png", response.getContentType());
+        assertNull(response.getHeaders().get("Content-Encoding"));
+        assertNull(response.getHeaders().get("Vary"));
+        assertArrayEquals(image, response.getBody());
+    }
+
+    @Test
+    void answersMatchingEntityTagWithNotModified() {
+        final HttpResponse response = process(TestRequest.get("/index.html"));
+        final String etag = response.getHeaders().get("ETag");
+        assertEquals(200, response.getStatusCode());
+
+        final HttpResponse notModified = process(TestRequest.get("/index.html").header("If-None-Match", etag));
+        assertEquals(304, notModified.getStatusCode());
+        assertEquals(0, notModified.getContentLength());
+        assertEquals(etag, notModified.getHeaders().get("ETag"));
+        assertEquals(response.getHeaders().get("Last-Modified"), notModified.getHeaders().get("Last-Modified"));
+
+        // Weak comparison, in a list, and the wildcard.
+        assertEquals(304, process(TestRequest.get("/index.html").header("If-None-Match", "\"other\", W/" + etag)).getStatusCode());
+        assertEquals(304, process(TestRequest.get("/index.html").header("If-None-Match", "*")).getStatusCode());
+        assertEquals(200, process(TestRequest.get("/index.html").header("If-None-Match", "\"other\"")).getStatusCode());
+    }
+
+    @Test
+    void comparesEntityTagOfNegotiatedRepresentation() {
+        final String gzipEtag = process(TestRequest.get("/style.css").header("Accept-Encoding", "gzip")).getHeaders().get("ETag");
+        assertEquals(304, process(TestRequest.get("/style.css").header("Accept-Encoding", "gzip").header("If-None-Match", gzipEtag))
+                .getStatusCode());
+        // The client's copy is gzip-encoded, so it does not match the identity representation.
+        assertEquals(200, process(TestRequest.get("/style.css").header("If-None-Match", gzipEtag)).getStatusCode());
+    }
+
+    @Test
+    void answersUnmodifiedSinceDateWithNotModified() {
+        final String lastModified = process(TestRequest.get("/index.html")).getHeaders().get("Last-Modified");
+        final long lastModifiedSeconds = Utility.parseHttpDate(lastModified);
+        assertEquals(304, process(TestRequest.get("/index.html").header("If-Modified-Since", lastModified)).getStatusCode());
+        assertEquals(200, process(TestRequest.get("/index.html")
+                .header("If-Modified-Since", Utility.formatHttpDate(lastModifiedSeconds - 1))).getStatusCode());
+        assertEquals(200, process(TestRequest.get("/index.html").header("If-Modified-Since", "yesterday")).getStatusCode());
+        // If-None-Match takes precedence (RFC 9110, section 13.2.2).
+        assertEquals(200, process(TestRequest.get("/index.html").header("If-None-Match", "\"other\"")
+                .header("If-Modified-Since", lastModified)).getStatusCode());
+    }
+
+    @Test
+    void revalidatesDeviceStates() {
+        final String etag = process(TestRequest.get("/data/lighting.json")).getHeaders().get("ETag");
+        assertEquals(304, process(TestRequest.get("/data/lighting.json").header("If-None-Match", etag)).getStatusCode());
+
+        final HttpResponse update = process(TestRequest.put("/data/lighting.json", "{\"on\":true}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(200, update.getStatusCode());
+        final HttpResponse changed = process(TestRequest.get("/data/lighting.json").header("If-None-Match", etag));
+        assertEquals(200, changed.getStatusCode());
+        assertEquals(update.getHeaders().get("ETag"), changed.getHeaders().get("ETag"));
+        assertEquals("{\"on\":true}", new String(changed.getBody(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void answersSingleRangeWithPartialContent() {
+        final HttpResponse response = process(TestRequest.get("/style.css").header("Range", "bytes=5-14"));
+        assertEquals(206, response.getStatusCode());
+        assertEquals("text/css", response.getContentType());
+        assertEquals("bytes 5-14/" + STYLE_CSS.length(), response.getHeaders().get("Content-Range"));
+        assertEquals("bytes", response.getHeaders().get("Accept-Ranges"));
+        assertEquals(STYLE_CSS.substring(5, 15), new String(response.getBody(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void answersSeveralRangesWithMultipartBody() {
+        final HttpResponse response = process(TestRequest.get("/style.css").header("Range", "bytes=10-14,0-4"));
+        assertEquals(206, response.getStatusCode());
+        assertNull(response.getHeaders().get("Content-Range"));
+        final String contentType = response.getContentType();
+        assertTrue(contentType.startsWith("multipart/byteranges; boundary="), contentType);
+        final String boundary = contentType.substring(contentType.indexOf('=') + 1);
+        final String expected = part(boundary, "bytes 0-4/" + STYLE_CSS.length()) + STYLE_CSS.substring(0, 5)
+                + part(boundary, "bytes 10-14/" + STYLE_CSS.length()) + STYLE_CSS.substring(10, 15)
+                + "\r\n--" + boundary + "--\r\n";
+        assertEquals(expected, new String(response.getBody(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void answersUnsatisfiableRangeWith416() {
+        final HttpResponse response = process(TestRequest.get("/style.css").header("Range", "bytes=5000-"));
+        assertEquals(416, response.getStatusCode());
+        assertEquals("bytes */" + STYLE_CSS.length(), response.getHeaders().get("Content-Range"));
+        assertEquals(0, response.getContentLength());
+        // A malformed header is ignored.
+        assertEquals(200, process(TestRequest.get("/style.css").header("Range", "bytes=5-1")).getStatusCode());
+    }
+
+    @Test
+    void sendsRangeOnlyIfClientCopyIsCurrent() {
+        final HttpResponse full = process(TestRequest.get("/style.css"));
+        final String etag = full.getHeaders().get("ETag");
+        assertEquals(206, process(TestRequest.get("/style.css").header("Range", "bytes=0-9").header("If-Range", etag)).getStatusCode());
+        assertEquals(206, process(TestRequest.get("/style.css").header("Range", "bytes=0-9")
+                .header("If-Range", full.getHeaders().get("Last-Modified"))).getStatusCode());
+        final HttpResponse changed = process(TestRequest.get("/style.css").header("Range", "bytes=0-9").header("If-Range", "\"other\""));
+        assertEquals(200, changed.getStatusCode());
+        assertEquals(STYLE_CSS.length(), changed.getBody().length);
+    }
+
+    @Test
+    void appliesRangesToNegotiatedRepresentation() {
+        final byte[] gzip = process(TestRequest.get("/style.css").header("Accept-Encoding", "gzip")).getBody();
+        final HttpResponse response = process(TestRequest.get("/style.css").header("Accept-Encoding", "gzip").header("Range", "bytes=0-1"));
+        assertEquals(206, response.getStatusCode());
+        assertEquals("gzip", response.getHeaders().get("Content-Encoding"));
+        assertEquals("bytes 0-1/" + gzip.length, response.getHeaders().get("Content-Range"));
+        assertArrayEquals(new byte[]{gzip[0], gzip[1]}, response.getBody());
+    }
+
+    @Test
+    void sendsRangesOfLargeFilesFromTheFile() {
+        final HttpResponse single = process(TestRequest.get("/large.js").header("Range", "bytes=100-199"));
+        assertEquals(206, single.getStatusCode());
+        assertEquals("bytes 100-199/" + ServerFixture.LARGE_FILE_BYTES, single.getHeaders().get("Content-Range"));
+        assertEquals(1, single.getFileRegions().size());
+        assertEquals(100, single.getFileRegions().get(0).offset());
+        assertEquals(100, single.getFileRegions().get(0).length());
+        assertEquals(100, single.getContentLength());
+
+        final HttpResponse multipart = process(TestRequest.get("/large.js").header("Range", "bytes=0-9,-10"));
+        assertEquals(206, multipart.getStatusCode());
+        assertEquals(2, multipart.getFileRegions().size());
+        assertEquals(ServerFixture.LARGE_FILE_BYTES - 10, multipart.getFileRegions().get(1).offset());
+        assertEquals(ServerFixture.LARGE_FILE_BYTES, multipart.getFileRegionsEnd());
+    }
+
+    private HttpResponse process(final HttpRequest request) {
+        return fixture.requestProcessor.process(request, null);
+    }
+
+    private static String part(final String boundary, final String contentRange) {
+        return "\r\n--" + boundary + "\r\nContent-Type: text/css\r\nContent-Range: " + contentRange + "\r\n\r\n";
+    }
+
+    private static String decode(final InputStream in) throws IOException {
+        try (in) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class HttpRequestReaderTest {
+    @Test
+    void readsPipelinedRequests() throws IOException {
+        final HttpRequestReader reader = new HttpRequestReader(stream("GET /a HTTP/1.1\r\n\r\n"
+                + "PUT /b HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n0\r\n\r\n"
+                + "GET /c HTTP/1.1\r\n\r\nGET /d"));
+        assertEquals(HttpRequestParser.Result.COMPLETE, reader.next());
+        assertEquals("/a", reader.getRequest().getPath());
+        // The following requests arrived with the first one.
+        assertEquals(HttpRequestParser.Result.COMPLETE, reader.nextBuffered());
+        assertEquals("/b", reader.getRequest().getPath());
+        assertEquals("abc", new String(reader.getRequest().getBody(), StandardCharsets.ISO_8859_1));
+        assertEquals(HttpRequestParser.Result.COMPLETE, reader.nextBuffered());
+        assertEquals("/c", reader.getRequest().getPath());
+        assertEquals(HttpRequestParser.Result.INCOMPLETE, reader.nextBuffered());
+        // The stream ends within the last request.
+        assertNull(reader.next());
+    }
+
+    @Test
+    void readsRequestsSplitAcrossReads() throws IOException {
+        // Every read returns a single byte.
+        final InputStream in = new ByteArrayInputStream(bytes("PUT /a HTTP/1.1\r\nContent-Length: 2\r\n\r\nokGET /b HTTP/1.1\r\n\r\n")) {
+            @Override
+            public synchronized int read(final byte[] b, final int off, final int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        final HttpRequestReader reader = new HttpRequestReader(in);
+        assertEquals(HttpRequestParser.Result.COMPLETE, reader.next());
+        assertEquals("ok", new String(reader.getRequest().getBody(), StandardCharsets.ISO_8859_1));
+        assertEquals(HttpRequestParser.Result.COMPLETE, reader.next());
+        assertEquals("/b", reader.getRequest().getPath());
+        assertNull(reader.next());
+    }
+
+    @Test
+    void growsBufferForLargeBody() throws IOException {
+        final String body = "x".repeat(100_000);
+        final HttpRequestReader reader = new HttpRequestReader(stream("PUT /a HTTP/1.1\r\nContent-Length: " + body.length() + "\r\n\r\n"
+                + body + "GET /b HTTP/1.1\r\n\r\n"));
+        assertEquals(HttpRequestParser.Result.COMPLETE, reader.next());
+        assertEquals(body, new String(reader.getRequest().getBody(), StandardCharsets.ISO_8859_1));
+        assertEquals(HttpRequestParser.Result.COMPLETE, reader.next());
+        assertEquals("/b", reader.getRequest().getPath());
+    }
+
+    @Test
+    void detachesWithBytesFollowingRequest() throws IOException {
+        final HttpRequestReader reader = new HttpRequestReader(stream("GET / HTTP/1.1\r\nUpgrade: h2c\r\n\r\nPRI * HTTP/2.0"));
+        assertEquals(HttpRequestParser.Result.COMPLETE, reader.next());
+        try (InputStream rest = reader.detach(true)) {
+            assertEquals("PRI * HTTP/2.0", new String(rest.readAllBytes(), StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    private static InputStream stream(final String value) {
+        return new ByteArrayInputStream(bytes(value));
+    }
+
+    private static byte[] bytes(final String value) {
+        return value.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,164 @@
+package server;
+
+import common.Constants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdleConnectionReaperTest {
+    private static final long TICK_MILLIS = 10;
+    // One revolution takes 80 ms, shorter than some of the timeouts below.
+    private static final int WHEEL_SIZE = 8;
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final byte[] REQUEST = "GET /index.html HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final IdleConnectionReaper reaper = new IdleConnectionReaper(TICK_MILLIS, WHEEL_SIZE);
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void closeReaper() {
+        reaper.close();
+    }
+
+    @Test
+    void expiresAfterDeadline() throws InterruptedException {
+        final CountDownLatch expired = new CountDownLatch(1);
+        final IdleConnectionReaper.Timeout timeout = reaper.newTimeout(expired::countDown);
+        final long start = System.nanoTime();
+        timeout.arm(300);
+
+        assertTrue(expired.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300), "expired early");
+        assertEquals(1, reaper.getReapedCount());
+    }
+
+    @Test
+    void keepsDisarmedAndCancelledTimeouts() throws InterruptedException {
+        final AtomicInteger expired = new AtomicInteger();
+        final IdleConnectionReaper.Timeout disarmed = reaper.newTimeout(expired::incrementAndGet);
+        disarmed.arm(20);
+        disarmed.disarm();
+        final IdleConnectionReaper.Timeout cancelled = reaper.newTimeout(expired::incrementAndGet);
+        cancelled.arm(20);
+        cancelled.cancel();
+        // Arming a cancelled timeout has no effect.
+        cancelled.arm(20);
+
+        Thread.sleep(200);
+        assertEquals(0, expired.get());
+        assertFalse(disarmed.isArmed());
+        assertFalse(cancelled.isArmed());
+    }
+
+    @Test
+    void postponesRearmedTimeout() throws InterruptedException {
+        final CountDownLatch expired = new CountDownLatch(1);
+        final IdleConnectionReaper.Timeout timeout = reaper.newTimeout(expired::countDown);
+        // A connection answering a request every 20 ms, well within its timeout.
+        for (int request = 0; request < 10; request++) {
+            timeout.arm(100);
+            Thread.sleep(20);
+            timeout.disarm();
+        }
+        assertEquals(1, expired.getCount());
+
+        timeout.arm(100);
+        assertTrue(expired.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void httpClientHandlerIgnoresRequestAfterExpiry() throws Exception {
+        try (ServerFixture fixture = new ServerFixture(directory)) {
+            assertNotAnsweredAfterExpiry(new HttpClientHandlerImpl(fixture.requestProcessor, fixture.idleConnectionReaper));
+        }
+    }
+
+    @Test
+    void keepAliveHandlerIgnoresRequestAfterExpiry() throws Exception {
+        try (ServerFixture fixture = new ServerFixture(directory)) {
+            assertNotAnsweredAfterExpiry(new KeepAliveHttpClientHandlerImpl(fixture.requestProcessor, fixture.idleConnectionReaper));
+        }
+    }
+
+    /**
+     * The request arrives just after the idle timeout expired: the reaper has closed the connection, so the handler must
+     * neither process the request nor write a response.
+     */
+    private static void assertNotAnsweredAfterExpiry(final HttpClientHandler handler) throws Exception {
+        final LateRequestSocket socket = new LateRequestSocket();
+        final long start = System.nanoTime();
+        handler.handleClient(socket);
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(Constants.KEEP_ALIVE_TIMEOUT_MILLI_SECONDS));
+        assertEquals(1, socket.requestsRead.get());
+        assertEquals(0, socket.written.size(), () -> "Answered a reaped connection: " + socket.written);
+    }
+
+    /**
+     * A socket whose request only arrives once it was closed, as it happens when a request races the reaper.
+     */
+    private static final class LateRequestSocket extends Socket {
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private final AtomicInteger requestsRead = new AtomicInteger();
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private final InputStream in = new InputStream() {
+            private final ByteArrayInputStream request = new ByteArrayInputStream(REQUEST);
+
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                try {
+                    if (!closed.await(TIMEOUT_SECONDS * 2, TimeUnit.SECONDS)) {
+                        throw new IOException("Connection was not reaped");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+                if (request.available() == REQUEST.length) {
+                    requestsRead.incrementAndGet();
+                }
+                return request.read(b, off, len);
+            }
+        };
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return written;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed.countDown();
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import common.Constants;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The components a connection handler needs, over a small web root in a temporary directory:
+ * {@code index.html}, {@code large.js} and the device state {@code data/lighting.json}. Tests may add further files to
+ * {@link #webRoot}; they are read when first requested.
+ */
+final class ServerFixture implements Closeable {
+    static final String INDEX_HTML = "<!DOCTYPE html><html><head><title>Test</title></head><body>Hello</body></html>";
+    static final String LIGHTING_JSON = "{\"on\":false,\"level\":0}";
+    // Larger than the initial HTTP/2 flow-control window, so its response waits for WINDOW_UPDATE.
+    static final int LARGE_FILE_BYTES = 256 * 1024;
+
+    final Path webRoot;
+    final HttpRequestProcessor requestProcessor;
+    final IdleConnectionReaper idleConnectionReaper;
+    private final StaticFileCache staticFileCache;
+    private final DeviceStateStore deviceStateStore;
+    private final EventBroadcaster eventBroadcaster;
+    private final AccessLog accessLog;
+
+    ServerFixture(final Path directory) throws IOException {
+        webRoot = directory.resolve("www");
+        Files.createDirectories(webRoot.resolve(Constants.DEVICE_STATE_DIRECTORY));
+        Files.writeString(webRoot.resolve("index.html"), INDEX_HTML, StandardCharsets.UTF_8);
+        Files.write(webRoot.resolve("large.js"), "x".repeat(LARGE_FILE_BYTES).getBytes(StandardCharsets.US_ASCII));
+        Files.writeString(webRoot.resolve(Constants.DEVICE_STATE_DIRECTORY).resolve("lighting.json"), LIGHTING_JSON, StandardCharsets.UTF_8);
+
+        staticFileCache = new StaticFileCache(webRoot, Constants.STATIC_CACHE_MAX_BYTES, Constants.ZERO_COPY_THRESHOLD_BYTES,
+                Constants.COMPRESSION_MIN_BYTES);
+        deviceStateStore = new DeviceStateStore(webRoot.resolve(Constants.DEVICE_STATE_DIRECTORY), Constants.DEVICE_STATE_PATH_PREFIX,
+                Constants.DEVICE_STATE_MAX_BYTES, Constants.DEVICE_STATE_PERSIST_INTERVAL_MILLI_SECONDS);
+        eventBroadcaster = new EventBroadcaster(Constants.EVENT_STREAM_CAPACITY, Constants.MAX_EVENT_STREAM_SUBSCRIBERS,
+                Constants.EVENT_STREAM_HEARTBEAT_SECONDS);
+        accessLog = new AccessLog(directory.resolve("logs").resolve("access.log"), Constants.ACCESS_LOG_CAPACITY,
+                Constants.ACCESS_LOG_FLUSH_INTERVAL_MILLI_SECONDS, Constants.ACCESS_LOG_MAX_FILE_BYTES, Constants.ACCESS_LOG_MAX_FILES);
+        requestProcessor = new HttpRequestProcessor(staticFileCache, deviceStateStore, eventBroadcaster, new ServerMetrics(), accessLog);
+        idleConnectionReaper = new IdleConnectionReaper(Constants.IDLE_REAPER_TICK_MILLI_SECONDS, Constants.IDLE_REAPER_WHEEL_SIZE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        idleConnectionReaper.close();
+        eventBroadcaster.close();
+        deviceStateStore.close();
+        accessLog.close();
+        staticFileCache.close();
+    }
+}
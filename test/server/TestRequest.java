@@ -0,0 +1,57 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A request built in memory, for calling the {@link HttpRequestProcessor} without a connection.
+ */
+final class TestRequest implements HttpRequest {
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private final String method;
+    private final String path;
+    private final Map<String, String> headers = new HashMap<>();
+    private byte[] body = NO_BYTES;
+
+    private TestRequest(final String method, final String path) {
+        this.method = method;
+        this.path = path;
+    }
+
+    static TestRequest get(final String path) {
+        return new TestRequest("GET", path);
+    }
+
+    static TestRequest put(final String path, final byte[] body) {
+        final TestRequest request = new TestRequest("PUT", path);
+        request.body = body;
+        return request;
+    }
+
+    TestRequest header(final String name, final String value) {
+        headers.put(name.toLowerCase(Locale.ROOT), value);
+        return this;
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public String getHeader(final String lowerCaseName) {
+        return headers.get(lowerCaseName);
+    }
+
+    @Override
+    public byte[] getBody() {
+        return body;
+    }
+}
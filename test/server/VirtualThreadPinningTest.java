@@ -0,0 +1,200 @@
+package server;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Serves requests with the blocking handlers on virtual threads, as with {@code VIRTUAL_THREADS}, while
+ * JFR records {@code jdk.VirtualThreadPinned}: a virtual thread that blocks while pinned to its carrier
+ * (e.g. inside {@code synchronized}) fails the test.
+ */
+class VirtualThreadPinningTest {
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final int CLIENTS = 8;
+    private static final int REQUESTS_PER_CLIENT = 20;
+    private static final long TIMEOUT_SECONDS = 30;
+
+    @TempDir
+    Path directory;
+
+    private ServerFixture fixture;
+
+    @BeforeEach
+    void createFixture() throws IOException {
+        fixture = new ServerFixture(directory);
+    }
+
+    @AfterEach
+    void closeFixture() throws IOException {
+        fixture.close();
+    }
+
+    @Test
+    void recordingDetectsPinning() throws Exception {
+        // Makes sure the check below can fail at all.
+        final Object monitor = new Object();
+        final List<RecordedEvent> pinned = recordPinning(() -> {
+            final Thread thread = Thread.ofVirtual().start(() -> {
+                synchronized (monitor) {
+                    sleep(50);
+                }
+            });
+            thread.join();
+        });
+        assertFalse(pinned.isEmpty(), "No pinning recorded");
+    }
+
+    @Test
+    void httpClientHandlerDoesNotPin() throws Exception {
+        assertNoPinning(new HttpClientHandlerImpl(fixture.requestProcessor, fixture.idleConnectionReaper), HttpClient.Version.HTTP_1_1);
+    }
+
+    @Test
+    void keepAliveHandlerDoesNotPin() throws Exception {
+        assertNoPinning(new KeepAliveHttpClientHandlerImpl(fixture.requestProcessor, fixture.idleConnectionReaper), HttpClient.Version.HTTP_1_1);
+    }
+
+    @Test
+    void http2HandlerDoesNotPin() throws Exception {
+        assertNoPinning(new KeepAliveHttpClientHandlerImpl(fixture.requestProcessor, fixture.idleConnectionReaper,
+                new Http2ClientHandlerImpl(fixture.requestProcessor, fixture.idleConnectionReaper)), HttpClient.Version.HTTP_2);
+    }
+
+    private interface Workload {
+        void run() throws Exception;
+    }
+
+    private void assertNoPinning(final HttpClientHandler handler, final HttpClient.Version version) throws Exception {
+        final List<RecordedEvent> pinned = recordPinning(() -> serve(handler, version));
+        assertTrue(pinned.isEmpty(), () -> "Carrier threads pinned:\n" + pinned.stream().map(RecordedEvent::toString).collect(Collectors.joining("\n")));
+    }
+
+    private List<RecordedEvent> recordPinning(final Workload workload) throws Exception {
+        final Path file = directory.resolve("pinning.jfr");
+        try (Recording recording = new Recording()) {
+            // Any pinned blocking, not only the default of 20 ms or more.
+            recording.enable(PINNED_EVENT).withThreshold(Duration.ZERO).withStackTrace();
+            recording.start();
+            workload.run();
+            recording.stop();
+            recording.dump(file);
+        }
+        return RecordingFile.readAllEvents(file).stream().filter(event -> event.getEventType().getName().equals(PINNED_EVENT)).toList();
+    }
+
+    /**
+     * Accepts connections like {@code Main} with {@code VIRTUAL_THREADS}, and has concurrent clients fetch files, update
+     * a device state and follow the event stream.
+     */
+    private void serve(final HttpClientHandler handler, final HttpClient.Version version) throws Exception {
+        // Not a resource: it is closed before the connections are ended, while the client is still open.
+        final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        try (ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+             HttpClient client = HttpClient.newBuilder().version(version).connectTimeout(Duration.ofSeconds(TIMEOUT_SECONDS)).build()) {
+            final Thread acceptor = Thread.ofPlatform().name("test-acceptor").start(() -> {
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+                        connections.submit(() -> {
+                            handler.handleClient(socket);
+                            return null;
+                        });
+                    }
+                } catch (IOException e) {
+                    // The server socket was closed.
+                }
+            });
+            final URI base = URI.create("http://localhost:" + serverSocket.getLocalPort());
+
+            final HttpResponse<Stream<String>> events = client.send(HttpRequest.newBuilder(base.resolve("/events")).build(),
+                    HttpResponse.BodyHandlers.ofLines());
+            assertEquals(200, events.statusCode());
+            final Iterator<String> eventLines = events.body().iterator();
+
+            final List<Future<?>> clients = new ArrayList<>();
+            try (ExecutorService clientThreads = Executors.newFixedThreadPool(CLIENTS)) {
+                for (int i = 0; i < CLIENTS; i++) {
+                    final int clientNumber = i;
+                    clients.add(clientThreads.submit(() -> {
+                        for (int request = 0; request < REQUESTS_PER_CLIENT; request++) {
+                            assertEquals(200, get(client, base.resolve("/index.html")).statusCode());
+                            assertEquals(404, get(client, base.resolve("/missing.html")).statusCode());
+                            final HttpResponse<byte[]> large = get(client, base.resolve("/large.js"));
+                            assertEquals(200, large.statusCode());
+                            assertEquals(version, large.version());
+                            assertEquals(ServerFixture.LARGE_FILE_BYTES, large.body().length);
+                            final String state = "{\"on\":true,\"level\":%d}".formatted(clientNumber * REQUESTS_PER_CLIENT + request);
+                            assertEquals(200, client.send(HttpRequest.newBuilder(base.resolve("/data/lighting.json"))
+                                    .PUT(HttpRequest.BodyPublishers.ofString(state)).build(), HttpResponse.BodyHandlers.discarding()).statusCode());
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : clients) {
+                    future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                }
+            }
+
+            // The updates were pushed to the event stream.
+            final CompletableFuture<Boolean> stateEvent = CompletableFuture.supplyAsync(() -> {
+                while (eventLines.hasNext()) {
+                    if (eventLines.next().equals("event: state")) {
+                        return true;
+                    }
+                }
+                return false;
+            });
+            assertTrue(stateEvent.get(TIMEOUT_SECONDS, TimeUnit.SECONDS), "No state event received");
+            events.body().close();
+
+            serverSocket.close();
+            acceptor.join();
+            // Ends the connections the client keeps open, blocked reading the next request or waiting for events.
+            connections.shutdownNow();
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    private static HttpResponse<byte[]> get(final HttpClient client, final URI uri) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static void sleep(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
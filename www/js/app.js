@@ -26,6 +26,35 @@ $(document).ready(() => {
     curtain.fetchState(panel);
     curtain.render(panel);
      */
+
+    // State changes made by any client are pushed by the server; the browser reconnects on its own after network errors.
+    // A refused stream (e.g. 503 while the server's event streams are at their limit) is not retried by the browser:
+    // the states are polled instead, and the stream is tried again later.
+    const POLL_INTERVAL_MS = 5000;
+    const STREAM_RETRY_MS = 60000;
+    const refreshStates = () => components.forEach(component => component.fetchState(panel));
+    const subscribe = (afterRefusal) => {
+        const events = new EventSource("events");
+        events.addEventListener("state", (e) => {
+            const change = JSON.parse(e.data);
+            components.find(component => component.name === change.component)?.applyState(change.state);
+        });
+        if (afterRefusal) {
+            // Changes made since the last poll
+            events.addEventListener("open", refreshStates, {once: true});
+        }
+        events.addEventListener("error", () => {
+            if (events.readyState !== EventSource.CLOSED) {
+                return;
+            }
+            const polling = setInterval(refreshStates, POLL_INTERVAL_MS);
+            setTimeout(() => {
+                clearInterval(polling);
+                subscribe(true);
+            }, STREAM_RETRY_MS);
+        });
+    };
+    subscribe(false);
 });
 
 $(document).on("componentStateChanged", (e, data) => {
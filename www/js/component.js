@@ -9,4 +9,8 @@ class Component {
 
     fetchState() {
     }
+
+    // Applies a state as stored on the server, e.g. when pushed by another client
+    applyState(state) {
+    }
 }
\ No newline at end of file
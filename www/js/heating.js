@@ -29,9 +29,11 @@ class Heating extends Component {
     }
 
     fetchState(container) {
-        $.getJSON(`data/${this.name}.json`, (data) => {
-            this.updateState(data.temperature);
-        });
+        $.getJSON(`data/${this.name}.json`, (data) => this.applyState(data));
+    }
+
+    applyState(state) {
+        this.updateState(parseInt(state.temperature));
     }
 
     updateState(newTemp) {
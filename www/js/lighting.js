@@ -29,9 +29,11 @@ class Lighting extends Component {
     }
 
     fetchState(container) {
-        $.getJSON(`data/${this.name}.json`, (data) => {
-            this.updateState(data.lighting_state);
-        });
+        $.getJSON(`data/${this.name}.json`, (data) => this.applyState(data));
+    }
+
+    applyState(state) {
+        this.updateState(state.lighting_state);
     }
 
     updateState(newState) {